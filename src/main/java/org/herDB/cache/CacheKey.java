@@ -0,0 +1,48 @@
+package org.herDB.cache;
+
+import java.util.Arrays;
+
+/**
+ * 按内容比较的key：byte[]本身的equals与hashCode只比较引用，每次get新生成的key永远命中不了
+ *
+ * @author funeyu
+ */
+final class CacheKey {
+
+    private final byte[] bytes;
+    private final int hash;
+
+    /**
+     * @param bytes key的bytes
+     * @param hash  由key的64位hash值打散得到的32位hash值
+     */
+    CacheKey(byte[] bytes, int hash) {
+
+        this.bytes = bytes;
+        this.hash = hash;
+    }
+
+    byte[] bytes() {
+
+        return bytes;
+    }
+
+    @Override
+    public int hashCode() {
+
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) obj;
+        return hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+}
@@ -0,0 +1,463 @@
+package org.herDB.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 缓存的一个分片，W-TinyLFU的淘汰策略：
+ * <ul>
+ * <li>window: 占总容量的1%的LRU，新put的key先进入window</li>
+ * <li>probation与protected: 剩下的容量为分段LRU(SLRU)，protected占其中的80%，在probation里再次被访问的key进入protected</li>
+ * </ul>
+ * window满了的时候，它最久没有访问的key要与probation里最久没有访问的key比较{@link FrequencySketch}估计的访问频率，
+ * 更常访问的留下；一次性扫描大量的key只会在window里进出，不会把热点的key挤出去
+ * <p>
+ * 容量按字节计算，包括key与value之外每个缓存项占用的对象的大小，见{@link #weigh(byte[], byte[])}
+ * <p>
+ * 另外按个数缓存最近查过的不存在的key(LRU)，与value共用一把锁与{@link VersionStripes}，put的时候一起去掉
+ *
+ * @author funeyu
+ */
+@SuppressWarnings("serial")
+final class CacheShard extends ReentrantLock {
+
+    // 缓存项所在的队列
+    private final static int WINDOW = 0;
+    private final static int PROBATION = 1;
+    private final static int PROTECTED = 2;
+    // 除了key与value的字节数之外每个缓存项占用的内存：Node(40字节) + CacheKey(24字节) + HashMap.Node(32字节)
+    // + HashMap的数组里的引用(装载因子0.75时约8字节)
+    final static int ENTRY_OVERHEAD = 104;
+    // get查到key缓存为不存在的时候返回的value
+    final static byte[] ABSENT = new byte[0];
+    // 估计sketch大小时每个缓存项的平均字节数
+    private final static int AVERAGE_ENTRY_WEIGHT = 256;
+
+    private final HashMap<CacheKey, Node> nodes = new HashMap<CacheKey, Node>();
+    private final FrequencySketch sketch;
+    // 分片最多缓存的字节数
+    private final long maxWeight;
+    // window最多缓存的字节数
+    private final long windowMax;
+    // protected最多缓存的字节数
+    private final long protectedMax;
+    // 各个队列的头节点，队列里从前往后为最久没有访问到最近访问
+    private final Node[] queues = new Node[3];
+    // 各个队列缓存的字节数
+    private final long[] weights = new long[3];
+    // 不存在的key，没有开启的话为null
+    private final AbsentKeys absent;
+    private long absentHits;
+    private long hits;
+    private long misses;
+    private long evictions;
+    // key每次invalidate都在所在的条上加一，见{@link #put(CacheKey, byte[], int)}
+    private final VersionStripes versions = new VersionStripes();
+
+    /**
+     * @param maxWeight 分片最多缓存的字节数，为0的时候只缓存不存在的key
+     * @param maxAbsent 最多缓存多少个不存在的key，为0的时候不缓存
+     */
+    CacheShard(long maxWeight, int maxAbsent) {
+
+        this.maxWeight = maxWeight;
+        this.absent = maxAbsent > 0 ? new AbsentKeys(maxAbsent) : null;
+        this.windowMax = Math.max(1, maxWeight / 100);
+        this.protectedMax = (maxWeight - windowMax) * 4 / 5;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, maxWeight / AVERAGE_ENTRY_WEIGHT));
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new Node(null, null, 0);
+            queues[i].prev = queues[i].next = queues[i];
+        }
+    }
+
+    /**
+     * 缓存项占用的字节数：byte[]的对象头16字节，按8字节对齐
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    static int weigh(byte[] key, byte[] value) {
+
+        return ENTRY_OVERHEAD + ((16 + key.length + 7) & ~7) + ((16 + value.length + 7) & ~7);
+    }
+
+    /**
+     * 查询key缓存的value，不论命中与否都记录一次访问
+     *
+     * @param key
+     * @return 没有缓存的话返回null，缓存为不存在的话返回{@link #ABSENT}
+     */
+    byte[] get(CacheKey key) {
+
+        lock();
+        try {
+            sketch.increment(key.hashCode());
+            Node node = nodes.get(key);
+            if (node == null) {
+                if (absent != null && absent.get(key) != null) {
+                    absentHits++;
+                    return ABSENT;
+                }
+                misses++;
+                return null;
+            }
+            hits++;
+            onAccess(node);
+            return node.value;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * key是否缓存为不存在
+     *
+     * @param key
+     * @return
+     */
+    boolean isAbsent(CacheKey key) {
+
+        if (absent == null) {
+            return false;
+        }
+        lock();
+        try {
+            if (absent.get(key) == null) {
+                return false;
+            }
+            absentHits++;
+            return true;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 记录数据文件里没有key
+     *
+     * @param key
+     * @param expectedVersion 查询数据文件之前的{@link #version(int)}，之后有过put的话不缓存
+     */
+    void putAbsent(CacheKey key, int expectedVersion) {
+
+        if (absent == null) {
+            return;
+        }
+        lock();
+        try {
+            if (versions.get(key.hashCode()) == expectedVersion) {
+                absent.put(key, Boolean.TRUE);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    boolean contains(CacheKey key) {
+
+        lock();
+        try {
+            return nodes.containsKey(key);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * hash所在的条invalidate的次数；读数据文件之前取得，put的时候没有变化才说明读到的value不是invalidate之前的旧数据
+     *
+     * @param hash 分片内的hash值
+     * @return
+     */
+    int version(int hash) {
+
+        return versions.get(hash);
+    }
+
+    /**
+     * 缓存key的value
+     *
+     * @param key
+     * @param value
+     * @param expectedVersion 读取value之前的{@link #version(int)}，之后有过invalidate的话不缓存
+     */
+    void put(CacheKey key, byte[] value, int expectedVersion) {
+
+        lock();
+        try {
+            if (versions.get(key.hashCode()) != expectedVersion) {
+                return;
+            }
+            store(key, value);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * key被put之后直接缓存新的value：与invalidate一样让之前开始的读不再缓存读到的旧数据
+     *
+     * @param key
+     * @param value
+     */
+    void update(CacheKey key, byte[] value) {
+
+        lock();
+        try {
+            versions.increment(key.hashCode());
+            store(key, value);
+        } finally {
+            unlock();
+        }
+    }
+
+    // 放入或者替换缓存项，调用时持有锁
+    private void store(CacheKey key, byte[] value) {
+
+        if (absent != null) {
+            absent.remove(key);
+        }
+        int weight = weigh(key.bytes(), value);
+        Node node = nodes.get(key);
+        if (weight > maxWeight) {
+            if (node != null) {
+                remove(node);
+            }
+            return;
+        }
+        if (node != null) {
+            weights[node.queue] += weight - node.weight;
+            node.value = value;
+            node.weight = weight;
+            onAccess(node);
+        } else {
+            node = new Node(key, value, weight);
+            nodes.put(key, node);
+            link(node, WINDOW);
+        }
+        evict();
+    }
+
+    /**
+     * 去掉key的缓存
+     *
+     * @param key
+     */
+    void invalidate(CacheKey key) {
+
+        lock();
+        try {
+            versions.increment(key.hashCode());
+            Node node = nodes.get(key);
+            if (node != null) {
+                remove(node);
+            }
+            if (absent != null) {
+                absent.remove(key);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    // 去掉所有的缓存
+    void clear() {
+
+        lock();
+        try {
+            versions.incrementAll();
+            nodes.clear();
+            if (absent != null) {
+                absent.clear();
+            }
+            for (int i = 0; i < queues.length; i++) {
+                queues[i].prev = queues[i].next = queues[i];
+                weights[i] = 0;
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 将这个分片的统计加到stats上
+     *
+     * @param stats [命中次数, 没有命中的次数, 淘汰的个数, 缓存项个数, 缓存的字节数, 不存在的key的命中次数, 不存在的key的个数]
+     */
+    void addStats(long[] stats) {
+
+        lock();
+        try {
+            stats[0] += hits;
+            stats[1] += misses;
+            stats[2] += evictions;
+            stats[3] += nodes.size();
+            stats[4] += weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+            stats[5] += absentHits;
+            stats[6] += absent == null ? 0 : absent.size();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 最近访问的key：依次为protected、probation、window里最近访问的
+     *
+     * @param limit 最多取多少个
+     * @param keys  取到的key加到这里
+     */
+    void hotKeys(int limit, List<byte[]> keys) {
+
+        lock();
+        try {
+            for (int queue : new int[]{PROTECTED, PROBATION, WINDOW}) {
+                Node head = queues[queue];
+                for (Node node = head.prev; node != head && limit > 0; node = node.prev, limit--) {
+                    keys.add(node.key.bytes());
+                }
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    // 被访问的缓存项：probation里的进入protected，其余的移到队列末尾
+    private void onAccess(Node node) {
+
+        if (node.queue != PROBATION) {
+            unlink(node);
+            link(node, node.queue);
+            return;
+        }
+        unlink(node);
+        link(node, PROTECTED);
+        // protected满了，最久没有访问的退回probation
+        while (weights[PROTECTED] > protectedMax) {
+            Node demoted = queues[PROTECTED].next;
+            unlink(demoted);
+            link(demoted, PROBATION);
+        }
+    }
+
+    // window超出的部分交给admit决定去留；更新后的value变大的话再按LRU淘汰
+    private void evict() {
+
+        while (weights[WINDOW] > windowMax) {
+            Node candidate = queues[WINDOW].next;
+            unlink(candidate);
+            admit(candidate);
+        }
+        while (weights[WINDOW] + weights[PROBATION] + weights[PROTECTED] > maxWeight) {
+            Node victim = first(PROBATION);
+            if (victim == null) {
+                victim = first(PROTECTED);
+            }
+            if (victim == null) {
+                victim = first(WINDOW);
+            }
+            remove(victim);
+            evictions++;
+        }
+    }
+
+    /**
+     * 从window出来的candidate进入probation，空间不够的时候与probation里最久没有访问的比较访问频率,
+     * 频率高的留下
+     *
+     * @param candidate 已经从window里取下的缓存项
+     */
+    private void admit(Node candidate) {
+
+        long mainMax = maxWeight - windowMax;
+        while (weights[PROBATION] + weights[PROTECTED] + candidate.weight > mainMax) {
+            Node victim = first(PROBATION);
+            if (victim == null) {
+                victim = first(PROTECTED);
+            }
+            if (victim == null
+                    || sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                nodes.remove(candidate.key);
+                evictions++;
+                return;
+            }
+            remove(victim);
+            evictions++;
+        }
+        link(candidate, PROBATION);
+    }
+
+    // 队列里最久没有访问的缓存项，队列为空的话返回null
+    private Node first(int queue) {
+
+        Node head = queues[queue];
+        return head.next == head ? null : head.next;
+    }
+
+    // 加到队列的末尾
+    private void link(Node node, int queue) {
+
+        Node head = queues[queue];
+        node.queue = queue;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        weights[queue] += node.weight;
+    }
+
+    private void unlink(Node node) {
+
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+        weights[node.queue] -= node.weight;
+    }
+
+    private void remove(Node node) {
+
+        unlink(node);
+        nodes.remove(node.key);
+    }
+
+    // 按访问顺序排列的不存在的key，超过上限就去掉最久没有访问的
+    @SuppressWarnings("serial")
+    private final static class AbsentKeys extends LinkedHashMap<CacheKey, Boolean> {
+
+        private final int maxSize;
+
+        AbsentKeys(int maxSize) {
+
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Boolean> eldest) {
+
+            return size() > maxSize;
+        }
+    }
+
+    // 缓存项，同时是所在队列的链表节点
+    private final static class Node {
+
+        private final CacheKey key;
+        private byte[] value;
+        private int weight;
+        private int queue;
+        private Node prev;
+        private Node next;
+
+        Node(CacheKey key, byte[] value, int weight) {
+
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
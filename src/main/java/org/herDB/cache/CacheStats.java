@@ -0,0 +1,137 @@
+package org.herDB.cache;
+
+/**
+ * 缓存在某一时刻的统计
+ *
+ * @author funeyu
+ */
+public final class CacheStats {
+
+    // 堆上命中的次数
+    private final long hits;
+    // 堆上没有命中、在堆外命中的次数
+    private final long offHeapHits;
+    // 两层都没有命中的次数
+    private final long misses;
+    private final long evictions;
+    private final long entries;
+    // 缓存的字节数，包括每个缓存项的对象占用的内存
+    private final long weight;
+    private final long maxWeight;
+    private final long offHeapEntries;
+    // 淘汰slab的时候丢掉的缓存项个数
+    private final long offHeapEvictions;
+    // 已经申请的堆外内存字节数
+    private final long offHeapBytes;
+    private final long offHeapCapacity;
+    // 查询不存在的key时命中的次数
+    private final long absentHits;
+    // 缓存的不存在的key的个数
+    private final long absentEntries;
+
+    CacheStats(long hits, long offHeapHits, long misses, long evictions, long entries, long weight, long maxWeight,
+               long offHeapEntries, long offHeapEvictions, long offHeapBytes, long offHeapCapacity, long absentHits,
+               long absentEntries) {
+
+        this.hits = hits;
+        this.offHeapHits = offHeapHits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.weight = weight;
+        this.maxWeight = maxWeight;
+        this.offHeapEntries = offHeapEntries;
+        this.offHeapEvictions = offHeapEvictions;
+        this.offHeapBytes = offHeapBytes;
+        this.offHeapCapacity = offHeapCapacity;
+        this.absentHits = absentHits;
+        this.absentEntries = absentEntries;
+    }
+
+    public long hits() {
+
+        return hits;
+    }
+
+    public long offHeapHits() {
+
+        return offHeapHits;
+    }
+
+    public long misses() {
+
+        return misses;
+    }
+
+    public long evictions() {
+
+        return evictions;
+    }
+
+    public long entries() {
+
+        return entries;
+    }
+
+    public long weight() {
+
+        return weight;
+    }
+
+    public long maxWeight() {
+
+        return maxWeight;
+    }
+
+    public long offHeapEntries() {
+
+        return offHeapEntries;
+    }
+
+    public long offHeapEvictions() {
+
+        return offHeapEvictions;
+    }
+
+    public long offHeapBytes() {
+
+        return offHeapBytes;
+    }
+
+    public long offHeapCapacity() {
+
+        return offHeapCapacity;
+    }
+
+    public long absentHits() {
+
+        return absentHits;
+    }
+
+    public long absentEntries() {
+
+        return absentEntries;
+    }
+
+    // 任意一层命中的比例，不包括不存在的key
+    public double hitRate() {
+
+        long requests = hits + offHeapHits + misses;
+        return requests == 0 ? 0 : (double) (hits + offHeapHits) / requests;
+    }
+
+    @Override
+    public String toString() {
+
+        String heap = "hits=" + hits + ", misses=" + misses + ", hitRate=" + String.format("%.2f", hitRate())
+                + ", evictions=" + evictions + ", entries=" + entries + ", weight=" + weight + "/" + maxWeight;
+        if (absentHits > 0 || absentEntries > 0) {
+            heap += ", absentHits=" + absentHits + ", absentEntries=" + absentEntries;
+        }
+        if (offHeapCapacity == 0) {
+            return heap;
+        }
+        return heap + ", offHeapHits=" + offHeapHits + ", offHeapEntries=" + offHeapEntries
+                + ", offHeapEvictions=" + offHeapEvictions + ", offHeapBytes=" + offHeapBytes + "/" + offHeapCapacity;
+    }
+}
@@ -0,0 +1,101 @@
+package org.herDB.cache;
+
+/**
+ * 估计key最近被访问次数的count-min sketch：每个key对应4个4位的计数器，取最小值作为访问频率；
+ * 访问的总次数达到sampleSize的时候所有计数器减半，旧的热点会慢慢冷下去
+ * <p>
+ * 不是线程安全的，由所在的{@link CacheShard}加锁访问
+ *
+ * @author funeyu
+ */
+final class FrequencySketch {
+
+    // 每个计数器的最大值
+    private final static int MAX_COUNT = 15;
+    // 计数器减半的时候每个long里16个计数器一起右移一位，去掉借到高位的1
+    private final static long RESET_MASK = 0x7777777777777777L;
+    // 4个计数器用不同的种子计算位置
+    private final static int[] SEEDS = {0x97CB3127, 0xB4B82E39, 0x8EBAD2F7, 0x5A7F10F3};
+
+    // 每个long存16个4位的计数器
+    private final long[] table;
+    // 计数器个数 - 1
+    private final int counterMask;
+    // 计数器减半之前记录的访问次数
+    private final int sampleSize;
+    // 上次减半之后记录的访问次数
+    private int size;
+
+    /**
+     * @param expectedEntries 缓存大约能容纳的key的个数
+     */
+    FrequencySketch(int expectedEntries) {
+
+        int counters = tableSizeFor(Math.max(expectedEntries, 16) << 2);
+        table = new long[counters >>> 4];
+        counterMask = counters - 1;
+        sampleSize = Math.max(expectedEntries, 16) * 10;
+    }
+
+    // 不小于n的2^k
+    private static int tableSizeFor(int n) {
+
+        return n >= 1 << 30 ? 1 << 30 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    // hash的第i个计数器的序号
+    private int indexOf(int hash, int i) {
+
+        int h = (hash ^ SEEDS[i]) * 0x9E3779B9;
+        return (h ^ h >>> 16) & counterMask;
+    }
+
+    private int countAt(int index) {
+
+        return (int) (table[index >>> 4] >>> ((index & 15) << 2)) & MAX_COUNT;
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @param hash key的hash值
+     */
+    void increment(int hash) {
+
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            if (countAt(index) < MAX_COUNT) {
+                table[index >>> 4] += 1L << ((index & 15) << 2);
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * key最近被访问的次数的估计值，最大为15
+     *
+     * @param hash key的hash值
+     * @return
+     */
+    int frequency(int hash) {
+
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, countAt(indexOf(hash, i)));
+        }
+        return frequency;
+    }
+
+    // 所有计数器减半
+    private void reset() {
+
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size >>>= 1;
+    }
+}
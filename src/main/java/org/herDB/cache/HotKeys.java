@@ -0,0 +1,103 @@
+package org.herDB.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.herDB.store.FSDirectory;
+import org.herDB.store.InputOutData;
+import org.herDB.utils.NumberPacker;
+
+/**
+ * 缓存里最热的key的列表，定时写到数据库目录下；重新打开数据库的时候按列表在后台预热缓存，
+ * 不用等缓存从磁盘上慢慢填满
+ * <pre>
+ * 文件格式： MAGIC(4字节) + count(4字节) + records
+ * record格式： keylength(4字节) + key
+ * </pre>
+ * 先写到临时文件里，sync之后再改名，崩溃的时候留下的是上一次完整的列表
+ *
+ * @author funeyu
+ */
+public final class HotKeys {
+
+    // 文件的标识"HOTK"
+    private final static int MAGIC = 0x484F544B;
+    // 文件头的长度：MAGIC(4字节) + count(4字节)
+    private final static int HEADER_SIZE = 8;
+    // 文件名
+    private final static String FILE_NAME = "herDB.hotkeys";
+    // 临时文件的后缀名
+    private final static String TEMFILESUFFIX = ".tep";
+
+    private HotKeys() {
+
+    }
+
+    /**
+     * 写入key的列表，替换掉之前的列表
+     *
+     * @param fsd
+     * @param keys
+     * @throws IOException
+     */
+    public static void save(FSDirectory fsd, List<byte[]> keys) throws IOException {
+
+        int size = HEADER_SIZE;
+        for (byte[] key : keys) {
+            size += 4 + key.length;
+        }
+        byte[] data = new byte[size];
+        NumberPacker.packInt(MAGIC, data, 0);
+        NumberPacker.packInt(keys.size(), data, 4);
+        int position = HEADER_SIZE;
+        for (byte[] key : keys) {
+            NumberPacker.packInt(key.length, data, position);
+            System.arraycopy(key, 0, data, position + 4, key.length);
+            position += 4 + key.length;
+        }
+
+        InputOutData out = fsd.createDataStream(FILE_NAME + TEMFILESUFFIX, false);
+        try {
+            out.truncate(0);
+            out.append(data);
+            out.sync();
+        } finally {
+            out.close();
+        }
+        if (!fsd.rename(FILE_NAME + TEMFILESUFFIX, FILE_NAME)) {
+            throw new IOException("can not rename the hot keys file");
+        }
+    }
+
+    /**
+     * 读取上次写入的key的列表
+     *
+     * @param fsd
+     * @return 没有列表或者文件不完整的话返回空的列表
+     */
+    public static List<byte[]> load(FSDirectory fsd) {
+
+        List<byte[]> keys = new ArrayList<byte[]>();
+        if (!fsd.isExsit(FILE_NAME)) {
+            return keys;
+        }
+        byte[] data = fsd.readIndexFully(FILE_NAME);
+        if (data == null || data.length < HEADER_SIZE || NumberPacker.unpackInt(data, 0) != MAGIC) {
+            return keys;
+        }
+        int count = NumberPacker.unpackInt(data, 4);
+        int position = HEADER_SIZE;
+        for (int i = 0; i < count && position + 4 <= data.length; i++) {
+            int length = NumberPacker.unpackInt(data, position);
+            if (length < 0 || position + 4 + length > data.length) {
+                break;
+            }
+            byte[] key = new byte[length];
+            System.arraycopy(data, position + 4, key, 0, length);
+            keys.add(key);
+            position += 4 + length;
+        }
+        return keys;
+    }
+}
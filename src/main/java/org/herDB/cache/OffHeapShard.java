@@ -0,0 +1,378 @@
+package org.herDB.cache;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外缓存的一个分片：key与value都存在{@link SlabAllocator}分配的chunk里，
+ * 堆上只有一个线性探测的hash表，每个缓存项占一个int的hash值与一个long的chunk引用
+ * <p>
+ * chunk的格式：key的长度(4字节) | value的长度(4字节) | key | value
+ * <p>
+ * slab被淘汰之后指向它的引用失效，查询的时候遇到就删掉；失效的引用太多的时候重建hash表
+ *
+ * @author funeyu
+ */
+@SuppressWarnings("serial")
+final class OffHeapShard extends ReentrantLock {
+
+    // chunk头部的长度
+    final static int CHUNK_HEADER = 8;
+    // hash表的初始大小
+    private final static int INITIAL_CAPACITY = 1024;
+
+    private final SlabAllocator allocator;
+    // 为0表示空位
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private long[] refs = new long[INITIAL_CAPACITY];
+    // hash表里的引用个数，包括已经失效的
+    private int size;
+    private long hits;
+    private long misses;
+    // key每次invalidate都在所在的条上加一，与{@link CacheShard}的version同样的用法
+    private final VersionStripes versions = new VersionStripes();
+
+    OffHeapShard(SlabAllocator allocator) {
+
+        this.allocator = allocator;
+    }
+
+    /**
+     * 查询key缓存的value，从堆外拷贝出来
+     *
+     * @param key
+     * @param hash key打散之后的hash值
+     * @return 没有缓存的话返回null
+     */
+    byte[] get(byte[] key, int hash) {
+
+        lock();
+        try {
+            int index = find(key, hash);
+            if (index < 0) {
+                misses++;
+                return null;
+            }
+            long ref = refs[index];
+            byte[] value = readValue(ref, key.length);
+            // 拷贝期间slab被淘汰了的话value不可信
+            if (value == null || !allocator.isValid(ref)) {
+                delete(index);
+                misses++;
+                return null;
+            }
+            allocator.touch(ref);
+            hits++;
+            return value;
+        } finally {
+            unlock();
+        }
+    }
+
+    boolean contains(byte[] key, int hash) {
+
+        lock();
+        try {
+            return find(key, hash) >= 0;
+        } finally {
+            unlock();
+        }
+    }
+
+    int version(int hash) {
+
+        return versions.get(hash);
+    }
+
+    /**
+     * 缓存key的value，key已经缓存的话替换掉旧的chunk
+     *
+     * @param key
+     * @param hash
+     * @param value
+     * @param expectedVersion 读取value之前的{@link #version(int)}，之后有过invalidate的话不缓存
+     */
+    void put(byte[] key, int hash, byte[] value, int expectedVersion) {
+
+        lock();
+        try {
+            if (versions.get(hash) != expectedVersion) {
+                return;
+            }
+            store(key, hash, value);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * key被put之后直接缓存新的value，同时让之前开始的读不再缓存读到的旧数据
+     *
+     * @param key
+     * @param hash
+     * @param value
+     */
+    void update(byte[] key, int hash, byte[] value) {
+
+        lock();
+        try {
+            versions.increment(hash);
+            store(key, hash, value);
+        } finally {
+            unlock();
+        }
+    }
+
+    // 放入或者替换缓存项，调用时持有锁
+    private void store(byte[] key, int hash, byte[] value) {
+
+        int old = find(key, hash);
+        if (old >= 0) {
+            allocator.free(refs[old]);
+            delete(old);
+        }
+        long ref = allocator.allocate(CHUNK_HEADER + key.length + value.length);
+        if (ref < 0) {
+            return;
+        }
+        allocator.write(ref, key, value);
+        insert(hash, ref);
+    }
+
+    /**
+     * 去掉key的缓存，释放它的chunk
+     *
+     * @param key
+     * @param hash
+     */
+    void invalidate(byte[] key, int hash) {
+
+        lock();
+        try {
+            versions.increment(hash);
+            int index = find(key, hash);
+            if (index >= 0) {
+                allocator.free(refs[index]);
+                delete(index);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    // 去掉所有的缓存
+    void clear() {
+
+        lock();
+        try {
+            versions.incrementAll();
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != 0) {
+                    allocator.free(refs[i]);
+                }
+            }
+            hashes = new int[INITIAL_CAPACITY];
+            refs = new long[INITIAL_CAPACITY];
+            size = 0;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 将这个分片的统计加到stats上
+     *
+     * @param stats [命中次数, 没有命中的次数, 缓存项个数]
+     */
+    void addStats(long[] stats) {
+
+        lock();
+        try {
+            stats[0] += hits;
+            stats[1] += misses;
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != 0 && allocator.isValid(refs[i])) {
+                    stats[2]++;
+                }
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 缓存的key，堆外的一层不记录访问顺序，取hash表里的前limit个
+     *
+     * @param limit 最多取多少个
+     * @param keys  取到的key加到这里
+     */
+    void keys(int limit, List<byte[]> keys) {
+
+        lock();
+        try {
+            for (int i = 0; i < hashes.length && limit > 0; i++) {
+                if (hashes[i] == 0) {
+                    continue;
+                }
+                long ref = refs[i];
+                int offset = allocator.offset(ref);
+                if (offset < 0) {
+                    continue;
+                }
+                ByteBuffer chunk = allocator.slab(ref).duplicate();
+                int length = chunk.getInt(offset);
+                if (length < 0 || length > allocator.slabSize() - offset - CHUNK_HEADER) {
+                    continue;
+                }
+                byte[] key = new byte[length];
+                chunk.position(offset + CHUNK_HEADER);
+                chunk.get(key);
+                if (allocator.isValid(ref)) {
+                    keys.add(key);
+                    limit--;
+                }
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    // 0留给空位
+    private static int nonZero(int hash) {
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * 找到key所在的位置，顺带删掉探测路径上失效的引用
+     *
+     * @param key
+     * @param hash
+     * @return 没有的话返回-1
+     */
+    private int find(byte[] key, int hash) {
+
+        hash = nonZero(hash);
+        int mask = hashes.length - 1;
+        int index = hash & mask;
+        while (hashes[index] != 0) {
+            if (!allocator.isValid(refs[index])) {
+                // 删除之后后面的缓存项可能移到index上，再看一遍这个位置
+                delete(index);
+                continue;
+            }
+            if (hashes[index] == hash && keyEquals(refs[index], key)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    // chunk里的key是否与key相同；读的期间slab被淘汰了的话可能读到别的数据，由调用方再检查引用是否有效
+    private boolean keyEquals(long ref, byte[] key) {
+
+        int offset = allocator.offset(ref);
+        ByteBuffer slab = allocator.slab(ref);
+        if (offset < 0 || slab.getInt(offset) != key.length || valueLength(slab, offset, key.length) < 0) {
+            return false;
+        }
+        offset += CHUNK_HEADER;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 把chunk里的value拷贝出来，长度超出slab的话说明slab已经被淘汰了，返回null
+    private byte[] readValue(long ref, int keyLength) {
+
+        int offset = allocator.offset(ref);
+        ByteBuffer slab = allocator.slab(ref);
+        int length = offset < 0 ? -1 : valueLength(slab, offset, keyLength);
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        ByteBuffer chunk = slab.duplicate();
+        chunk.position(offset + CHUNK_HEADER + keyLength);
+        chunk.get(value);
+        return value;
+    }
+
+    // chunk头部记录的value长度，放不进slab的话返回-1
+    private int valueLength(ByteBuffer slab, int offset, int keyLength) {
+
+        int length = slab.getInt(offset + 4);
+        return length < 0 || length > allocator.slabSize() - offset - CHUNK_HEADER - keyLength ? -1 : length;
+    }
+
+    private void insert(int hash, long ref) {
+
+        if (size + 1 > hashes.length * 3 / 4) {
+            rebuild();
+        }
+        hash = nonZero(hash);
+        int mask = hashes.length - 1;
+        int index = hash & mask;
+        while (hashes[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        hashes[index] = hash;
+        refs[index] = ref;
+        size++;
+    }
+
+    // 线性探测的删除：把后面探测路径经过index的缓存项往前移，不留墓碑
+    private void delete(int index) {
+
+        int mask = hashes.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (hashes[next] != 0) {
+            int home = hashes[next] & mask;
+            // home不在(hole, next]之间的缓存项可以移到hole上
+            if (hole <= next ? (home <= hole || home > next) : (home <= hole && home > next)) {
+                hashes[hole] = hashes[next];
+                refs[hole] = refs[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        hashes[hole] = 0;
+        refs[hole] = 0;
+        size--;
+    }
+
+    // 丢掉失效的引用，有效的缓存项还多的话容量翻倍
+    private void rebuild() {
+
+        int live = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != 0 && allocator.isValid(refs[i])) {
+                live++;
+            }
+        }
+        int capacity = live + 1 > hashes.length / 2 ? hashes.length << 1 : hashes.length;
+        int[] oldHashes = hashes;
+        long[] oldRefs = refs;
+        hashes = new int[capacity];
+        refs = new long[capacity];
+        size = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0 && allocator.isValid(oldRefs[i])) {
+                int index = oldHashes[i] & mask;
+                while (hashes[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                hashes[index] = oldHashes[i];
+                refs[index] = oldRefs[i];
+                size++;
+            }
+        }
+    }
+}
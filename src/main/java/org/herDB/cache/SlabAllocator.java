@@ -0,0 +1,336 @@
+package org.herDB.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外缓存的内存分配：堆外内存按slab(默认1MB)用ByteBuffer.allocateDirect申请，每个slab第一次分配的时候
+ * 归入一个size class，切成等长的chunk；size class的chunk长度从64字节开始每级增长1/4，一直到slab的大小
+ * <p>
+ * 内存用完了就整个淘汰最久没有访问的slab，分给需要的size class：slab的generation加一，
+ * 索引里指向它的引用不再有效，由{@link OffHeapShard}查询的时候顺带删掉，淘汰的时候不用去找这些key
+ * <p>
+ * chunk的引用为long: generation(32位) | slab的序号(16位) | chunk在slab里的序号(16位)
+ * <p>
+ * 分配出去的chunk在{@link #write(long, byte[], byte[])}写完之前钉住所在的slab，不会被淘汰，
+ * 写的时候不用持有锁，不同分片的写入可以并行
+ *
+ * @author funeyu
+ */
+final class SlabAllocator {
+
+    // 最小的chunk长度
+    final static int MIN_CHUNK = 64;
+    // slab个数的上限，slab的序号不超过16位
+    private final static int MAX_SLABS = 1 << 16;
+
+    private final int slabSize;
+    private final int maxSlabs;
+    // 各个size class的chunk长度
+    private final int[] chunkSizes;
+    private final SizeClass[] classes;
+    private final ByteBuffer[] slabs;
+    // slab所属的size class
+    private final int[] slabClasses;
+    // slab里正在使用的chunk个数
+    private final int[] slabUsed;
+    // slab里已经分配还没写完的chunk个数，不为0的slab不淘汰
+    private final int[] slabPins;
+    // slab最近一次分配或者被访问时的clock，淘汰clock最小的slab；读的时候不加锁，偶尔读到旧的值也不要紧
+    private final long[] slabTicks;
+    // slab每次被淘汰都加一
+    private final AtomicIntegerArray generations;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 已经申请的slab个数
+    private int allocated;
+    // 每次分配加一
+    private volatile long clock;
+    // 淘汰slab的时候丢掉的缓存项个数
+    private long evictions;
+
+    /**
+     * @param capacity 堆外内存的总字节数
+     * @param slabSize 每个slab的字节数
+     */
+    SlabAllocator(long capacity, int slabSize) {
+
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.max(1, Math.min(MAX_SLABS, capacity / slabSize));
+        int count = 0;
+        int[] sizes = new int[64];
+        for (int size = MIN_CHUNK; ; size = (size + (size >>> 2) + 7) & ~7) {
+            if (size >= slabSize) {
+                sizes[count++] = slabSize;
+                break;
+            }
+            sizes[count++] = size;
+        }
+        chunkSizes = new int[count];
+        System.arraycopy(sizes, 0, chunkSizes, 0, count);
+        classes = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new SizeClass(slabSize / chunkSizes[i]);
+        }
+        slabs = new ByteBuffer[maxSlabs];
+        slabClasses = new int[maxSlabs];
+        slabUsed = new int[maxSlabs];
+        slabPins = new int[maxSlabs];
+        slabTicks = new long[maxSlabs];
+        generations = new AtomicIntegerArray(maxSlabs);
+    }
+
+    /**
+     * 分配一个能放下length字节的chunk，必要的时候淘汰一个slab；分配成功之后必须调用一次{@link #write(long, byte[], byte[])}
+     *
+     * @param length
+     * @return chunk的引用；length超过slab的大小，或者所有的slab都在写、没有可以淘汰的返回-1
+     */
+    long allocate(int length) {
+
+        int sizeClass = sizeClassOf(length);
+        if (sizeClass < 0) {
+            return -1;
+        }
+        SizeClass cls = classes[sizeClass];
+        lock.lock();
+        try {
+            clock++;
+            int chunk;
+            if (cls.freeCount > 0) {
+                chunk = cls.free[--cls.freeCount];
+            } else {
+                if (cls.slab < 0 || cls.next == cls.chunksPerSlab) {
+                    int slab = allocated < maxSlabs ? newSlab() : evictSlab();
+                    if (slab < 0) {
+                        return -1;
+                    }
+                    cls.slab = slab;
+                    cls.next = 0;
+                    slabClasses[cls.slab] = sizeClass;
+                }
+                chunk = cls.slab << 16 | cls.next++;
+            }
+            int slab = chunk >>> 16;
+            slabUsed[slab]++;
+            slabPins[slab]++;
+            slabTicks[slab] = clock;
+            return (long) generations.get(slab) << 32 | (chunk & 0xFFFFFFFFL);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按{@link OffHeapShard}的chunk格式写入key与value, 写完之后不再钉住slab；
+     * 分配之后slab一直钉着，不会被淘汰分给别的分片，不加锁写也不会覆盖别的分片的chunk
+     *
+     * @param ref   {@link #allocate(int)}分配的chunk
+     * @param key
+     * @param value
+     */
+    void write(long ref, byte[] key, byte[] value) {
+
+        int slab = slabOf(ref);
+        try {
+            // slab被多个线程共用，在duplicate上修改position
+            ByteBuffer chunk = slabs[slab].duplicate();
+            chunk.position(offset(ref));
+            chunk.putInt(key.length);
+            chunk.putInt(value.length);
+            chunk.put(key);
+            chunk.put(value);
+        } finally {
+            lock.lock();
+            try {
+                slabPins[slab]--;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 释放chunk；所在的slab已经被淘汰的话什么也不做
+     *
+     * @param ref
+     */
+    void free(long ref) {
+
+        int slab = slabOf(ref);
+        lock.lock();
+        try {
+            if (!isValid(ref)) {
+                return;
+            }
+            slabUsed[slab]--;
+            classes[slabClasses[slab]].push((int) ref);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 引用的chunk是否还属于当初分配的slab：读完chunk之后还要再检查一遍，读的期间slab可能被淘汰了
+     *
+     * @param ref
+     * @return
+     */
+    boolean isValid(long ref) {
+
+        return generations.get(slabOf(ref)) == (int) (ref >>> 32);
+    }
+
+    // 被访问的slab晚一些淘汰
+    void touch(long ref) {
+
+        slabTicks[slabOf(ref)] = clock;
+    }
+
+    /**
+     * chunk所在的slab，用的时候以chunk的{@link #offset(long)}为绝对位置读写，不修改position
+     *
+     * @param ref
+     * @return
+     */
+    ByteBuffer slab(long ref) {
+
+        return slabs[slabOf(ref)];
+    }
+
+    /**
+     * chunk在slab里的位置；slab被淘汰之后chunk的长度可能变了，算出来的位置可能超出slab，这时返回-1
+     *
+     * @param ref
+     * @return
+     */
+    int offset(long ref) {
+
+        int chunkSize = chunkSizes[slabClasses[slabOf(ref)]];
+        int offset = ((int) ref & 0xFFFF) * chunkSize;
+        return offset + chunkSize > slabSize ? -1 : offset;
+    }
+
+    int slabSize() {
+
+        return slabSize;
+    }
+
+    // 已经申请的堆外内存字节数
+    long allocatedBytes() {
+
+        lock.lock();
+        try {
+            return (long) allocated * slabSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long capacity() {
+
+        return (long) maxSlabs * slabSize;
+    }
+
+    long evictions() {
+
+        lock.lock();
+        try {
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int slabOf(long ref) {
+
+        return (int) ref >>> 16;
+    }
+
+    // 能放下length字节的最小的size class，放不下返回-1
+    private int sizeClassOf(int length) {
+
+        int low = 0, high = chunkSizes.length - 1;
+        if (length > chunkSizes[high]) {
+            return -1;
+        }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunkSizes[mid] < length) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int newSlab() {
+
+        slabs[allocated] = ByteBuffer.allocateDirect(slabSize);
+        return allocated++;
+    }
+
+    // 淘汰没有钉住的slab里clock最小的，从原来的size class里去掉它的chunk；都钉住了返回-1
+    private int evictSlab() {
+
+        int victim = -1;
+        for (int i = 0; i < allocated; i++) {
+            if (slabPins[i] == 0 && (victim < 0 || slabTicks[i] < slabTicks[victim])) {
+                victim = i;
+            }
+        }
+        if (victim < 0) {
+            return -1;
+        }
+        generations.incrementAndGet(victim);
+        evictions += slabUsed[victim];
+        slabUsed[victim] = 0;
+        SizeClass old = classes[slabClasses[victim]];
+        old.removeSlab(victim);
+        if (old.slab == victim) {
+            old.slab = -1;
+        }
+        return victim;
+    }
+
+    // 同一长度的chunk：正在切分的slab与释放了的chunk
+    private final static class SizeClass {
+
+        private final int chunksPerSlab;
+        // 正在切分的slab，-1表示没有
+        private int slab = -1;
+        // 下一个切分的chunk的序号
+        private int next;
+        // 释放了的chunk: slab的序号 << 16 | chunk的序号
+        private int[] free = new int[16];
+        private int freeCount;
+
+        SizeClass(int chunksPerSlab) {
+
+            this.chunksPerSlab = chunksPerSlab;
+        }
+
+        void push(int chunk) {
+
+            if (freeCount == free.length) {
+                int[] grown = new int[free.length << 1];
+                System.arraycopy(free, 0, grown, 0, freeCount);
+                free = grown;
+            }
+            free[freeCount++] = chunk;
+        }
+
+        // 被淘汰的slab里释放了的chunk不能再分配出去
+        void removeSlab(int slab) {
+
+            int count = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (free[i] >>> 16 != slab) {
+                    free[count++] = free[i];
+                }
+            }
+            freeCount = count;
+        }
+    }
+}
@@ -1,78 +1,356 @@
 package org.herDB.cache;
 
-import org.herDB.herdb.Configuration;
-
-import java.util.LinkedHashMap;
-import java.util.Map;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import org.herDB.herdb.Configuration;
 
+/**
+ * value的读缓存：按key的hash值分成多个分片，每个分片单独加锁，并发的get与put只在同一分片上竞争
+ * <ul>
+ * <li>堆上的一层：{@link CacheShard}，W-TinyLFU淘汰，一次性的扫描不会把热点的key挤出去</li>
+ * <li>堆外的一层：{@link OffHeapShard}，key与value存在堆外的slab里，堆上只有hash表，缓存多少都不增加GC的负担；
+ * 内存用完了按slab淘汰，见{@link SlabAllocator}</li>
+ * </ul>
+ * 两层都开启的时候put同时放入两层，堆上没有命中再查堆外，堆外命中的value交给堆上的一层决定是否留下
+ * <p>
+ * 堆上的一层还可以按个数缓存数据文件里不存在的key，重复查询不存在的key只需查一次hash表；key被put的时候去掉
+ * <p>
+ * key按内容比较；缓存里存的是key与value的拷贝，get返回的也是拷贝，调用方修改返回的数组不影响缓存
+ *
+ * @author funeyu
+ */
 public class StorageCache {
 
-    private final LinkedHashMap cache;
-    // 只记录key/value的长度，没有考虑LinkedHashMap每存一个数据占用的字节数
-    private long cacheSize;
-    private long currentSize;
-    private final static float factor = 0.75F;
+    // 每个分片最少缓存的字节数，容量小的时候少分几片
+    private final static long MIN_SHARD_WEIGHT = 64 * 1024;
+    // 最多的分片个数
+    private final static int MAX_SHARDS = 64;
+    // get查到key缓存为不存在的时候返回的value，按引用比较
+    public final static byte[] ABSENT = CacheShard.ABSENT;
 
+    // 堆上的一层，没有开启的话为null
+    private final CacheShard[] shards;
+    // 堆外的一层，没有开启的话为null
+    private final OffHeapShard[] offHeapShards;
+    private final SlabAllocator allocator;
+    private final int shardMask;
+    private final long maxWeight;
 
     /**
-     * 用LinkedHashMap来做lru缓存，利用其removeEldestEntry函数
-     *
-     * @param cacheSize 为lru缓存的最大key/value字节数
+     * @param maxWeight    堆上的缓存最多占用的字节数
+     * @param maxAbsent    最多缓存多少个不存在的key
+     * @param offHeapBytes 堆外的缓存最多占用的字节数
+     * @param slabSize     堆外内存每个slab的字节数
      */
-    private StorageCache(final int cacheSize) {
+    private StorageCache(long maxWeight, int maxAbsent, long offHeapBytes, int slabSize) {
 
-        cache = new LinkedHashMap(cacheSize, factor, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry eldest) {
-
-                boolean isFull = currentSize > cacheSize;
-                if (isFull) {
-                    Object key = eldest.getKey();
-                    Object value = eldest.getValue();
-                    currentSize -= getSize(key) + getSize(value);
-                }
-                return isFull;
+        // 不存在的key每个按ENTRY_OVERHEAD估算，只开启了它的时候也要分片
+        long weight = Math.max(0, maxWeight) + offHeapBytes + (long) maxAbsent * CacheShard.ENTRY_OVERHEAD;
+        int count = (int) Math.min(Math.min(MAX_SHARDS, Runtime.getRuntime().availableProcessors() * 4),
+                Math.max(1, weight / MIN_SHARD_WEIGHT));
+        count = Integer.highestOneBit(count);
+        if (maxWeight > 0 || maxAbsent > 0) {
+            shards = new CacheShard[count];
+            for (int i = 0; i < count; i++) {
+                shards[i] = new CacheShard(Math.max(0, maxWeight / count),
+                        maxAbsent > 0 ? Math.max(1, maxAbsent / count) : 0);
+            }
+        } else {
+            shards = null;
+        }
+        if (offHeapBytes > 0) {
+            allocator = new SlabAllocator(offHeapBytes, slabSize);
+            offHeapShards = new OffHeapShard[count];
+            for (int i = 0; i < count; i++) {
+                offHeapShards[i] = new OffHeapShard(allocator);
             }
-        };
-        this.cacheSize = cacheSize;
+        } else {
+            allocator = null;
+            offHeapShards = null;
+        }
+        shardMask = count - 1;
+        this.maxWeight = Math.max(0, maxWeight);
     }
 
     private StorageCache() {
-        cache = null;
+
+        shards = null;
+        offHeapShards = null;
+        allocator = null;
+        shardMask = 0;
+        maxWeight = 0;
     }
 
     public static StorageCache initCache(Configuration conf) {
 
-        if (conf.isCacheOn() && conf.get(Configuration.STORAGE_CACHE_SIZE) > 0) {
-            return new StorageCache(conf.get(Configuration.STORAGE_CACHE_SIZE));
+        long offHeapBytes = (long) conf.get(Configuration.OFFHEAP_CACHE_SIZE) << 20;
+        int maxAbsent = conf.get(Configuration.NEGATIVE_CACHE_SIZE);
+        if (conf.get(Configuration.STORAGE_CACHE_SIZE) > 0 || maxAbsent > 0 || offHeapBytes > 0) {
+            return new StorageCache(conf.get(Configuration.STORAGE_CACHE_SIZE), maxAbsent, offHeapBytes,
+                    conf.get(Configuration.CACHE_SLAB_SIZE));
         }
         return new NoCache();
     }
 
-    public Object get(Object key) {
+    // 是否开启了缓存
+    public boolean isEnabled() {
 
-        return cache.get(key);
+        return true;
     }
 
-    public void put(Object key, Object value) {
+    // 将key的64位hash值打散，分片与分片内的hash表都从这里取，与分段和bucket用到的位无关
+    private static long spread(long keyHash) {
 
-        currentSize += getSize(key) + getSize(value);
-        cache.put(key, value);
+        keyHash ^= keyHash >>> 33;
+        keyHash *= 0xFF51AFD7ED558CCDL;
+        keyHash ^= keyHash >>> 33;
+        return keyHash;
     }
 
-    public boolean contains(Object key) {
+    // 分片的序号
+    private int shardOf(long spread) {
 
-        return cache.containsKey(key);
+        return (int) spread & shardMask;
     }
 
-    private int getSize(Object obj) {
+    // 分片内hash表用的hash值
+    private static int hashOf(long spread) {
 
-        if (obj == null) {
-            return 0;
+        return (int) (spread >>> 32);
+    }
+
+    /**
+     * 查询key缓存的value
+     *
+     * @param key
+     * @param keyHash key的64位hash值
+     * @return value的拷贝，没有缓存的话返回null，缓存为不存在的话返回{@link #ABSENT}
+     */
+    public byte[] get(byte[] key, long keyHash) {
+
+        long spread = spread(keyHash);
+        int shard = shardOf(spread);
+        int hash = hashOf(spread);
+        if (shards == null) {
+            return offHeapShards[shard].get(key, hash);
+        }
+        byte[] value = shards[shard].get(new CacheKey(key, hash));
+        if (value == ABSENT) {
+            return ABSENT;
+        }
+        if (value != null) {
+            return value.clone();
+        }
+        if (offHeapShards == null) {
+            return null;
+        }
+        int version = shards[shard].version(hash);
+        value = offHeapShards[shard].get(key, hash);
+        if (value != null) {
+            shards[shard].put(new CacheKey(key.clone(), hash), value.clone(), version);
+        }
+        return value;
+    }
+
+    /**
+     * key是否缓存为不存在
+     *
+     * @param key
+     * @param keyHash
+     * @return
+     */
+    public boolean isAbsent(byte[] key, long keyHash) {
+
+        if (shards == null) {
+            return false;
+        }
+        long spread = spread(keyHash);
+        return shards[shardOf(spread)].isAbsent(new CacheKey(key, hashOf(spread)));
+    }
+
+    /**
+     * 数据文件里没有key的时候调用；查询之后key被put过的话不缓存
+     *
+     * @param key
+     * @param keyHash
+     * @param version 查询数据文件之前{@link #version(long)}的返回值
+     */
+    public void putAbsent(byte[] key, long keyHash, long version) {
+
+        if (shards == null) {
+            return;
+        }
+        long spread = spread(keyHash);
+        shards[shardOf(spread)].putAbsent(new CacheKey(key.clone(), hashOf(spread)), (int) version);
+    }
+
+    /**
+     * key是否有缓存，不算作一次访问
+     *
+     * @param key
+     * @param keyHash
+     * @return
+     */
+    public boolean contains(byte[] key, long keyHash) {
+
+        long spread = spread(keyHash);
+        int shard = shardOf(spread);
+        int hash = hashOf(spread);
+        return (shards != null && shards[shard].contains(new CacheKey(key, hash)))
+                || (offHeapShards != null && offHeapShards[shard].contains(key, hash));
+    }
+
+    /**
+     * 在从数据文件里读取key的value之前调用，put缓存的时候用来判断期间是否有过invalidate；
+     * version按key的hash值分条，见{@link VersionStripes}，别的key的put一般不影响
+     *
+     * @param keyHash
+     * @return 低32位为堆上的分片的version，高32位为堆外的分片的version
+     */
+    public long version(long keyHash) {
+
+        long spread = spread(keyHash);
+        int shard = shardOf(spread);
+        int hash = hashOf(spread);
+        long version = shards == null ? 0 : shards[shard].version(hash) & 0xFFFFFFFFL;
+        return offHeapShards == null ? version : (long) offHeapShards[shard].version(hash) << 32 | version;
+    }
+
+    /**
+     * 缓存从数据文件里读到的value；读取之后key所在的条有过invalidate的话不缓存，以免缓存被覆盖之前的旧数据
+     *
+     * @param key
+     * @param keyHash
+     * @param value
+     * @param version 读取value之前{@link #version(long)}的返回值
+     */
+    public void put(byte[] key, long keyHash, byte[] value, long version) {
+
+        long spread = spread(keyHash);
+        int shard = shardOf(spread);
+        int hash = hashOf(spread);
+        if (shards != null) {
+            shards[shard].put(new CacheKey(key.clone(), hash), value.clone(), (int) version);
+        }
+        if (offHeapShards != null) {
+            offHeapShards[shard].put(key, hash, value, (int) (version >>> 32));
+        }
+    }
+
+    /**
+     * write-through模式下key被put之后调用，直接缓存新的value；同一个key的并发put要按写入数据文件的顺序调用
+     *
+     * @param key
+     * @param keyHash
+     * @param value
+     */
+    public void update(byte[] key, long keyHash, byte[] value) {
+
+        long spread = spread(keyHash);
+        int shard = shardOf(spread);
+        int hash = hashOf(spread);
+        // 先换掉堆外的，见invalidate
+        if (offHeapShards != null) {
+            offHeapShards[shard].update(key, hash, value);
+        }
+        if (shards != null) {
+            shards[shard].update(new CacheKey(key.clone(), hash), value.clone());
+        }
+    }
+
+    /**
+     * key被put之后调用，去掉旧的缓存
+     *
+     * @param key
+     * @param keyHash
+     */
+    public void invalidate(byte[] key, long keyHash) {
+
+        long spread = spread(keyHash);
+        int shard = shardOf(spread);
+        int hash = hashOf(spread);
+        // 先去掉堆外的：get在堆上没有命中之后取得堆上的version再查堆外，堆上先去掉的话，
+        // get可能取到去掉之后的version，又在堆外查到旧的value，放回堆上
+        if (offHeapShards != null) {
+            offHeapShards[shard].invalidate(key, hash);
+        }
+        if (shards != null) {
+            shards[shard].invalidate(new CacheKey(key, hash));
         }
-        return ((byte[]) obj).length;
+    }
+
+    // 去掉所有的缓存
+    public void clear() {
+
+        for (int i = 0; i <= shardMask; i++) {
+            if (shards != null) {
+                shards[i].clear();
+            }
+            if (offHeapShards != null) {
+                offHeapShards[i].clear();
+            }
+        }
+    }
+
+    /**
+     * 缓存里最近访问的key，堆上的一层不够的话再从堆外的一层里取
+     *
+     * @param max 最多取多少个
+     * @return
+     */
+    public List<byte[]> hotKeys(int max) {
+
+        List<byte[]> keys = new ArrayList<byte[]>();
+        int perShard = (max + shardMask) / (shardMask + 1);
+        for (int i = 0; i <= shardMask; i++) {
+            List<byte[]> shardKeys = new ArrayList<byte[]>();
+            if (shards != null) {
+                shards[i].hotKeys(perShard, shardKeys);
+            }
+            if (offHeapShards != null && shardKeys.size() < perShard) {
+                // 两层都缓存的key只取一次
+                Set<CacheKey> seen = new HashSet<CacheKey>();
+                for (byte[] key : shardKeys) {
+                    seen.add(new CacheKey(key, Arrays.hashCode(key)));
+                }
+                List<byte[]> offHeapKeys = new ArrayList<byte[]>();
+                offHeapShards[i].keys(perShard, offHeapKeys);
+                for (int j = 0; j < offHeapKeys.size() && shardKeys.size() < perShard; j++) {
+                    byte[] key = offHeapKeys.get(j);
+                    if (seen.add(new CacheKey(key, Arrays.hashCode(key)))) {
+                        shardKeys.add(key);
+                    }
+                }
+            }
+            keys.addAll(shardKeys);
+        }
+        return keys;
+    }
+
+    // 所有分片的统计之和
+    public CacheStats stats() {
+
+        long[] stats = new long[7];
+        if (shards != null) {
+            for (CacheShard shard : shards) {
+                shard.addStats(stats);
+            }
+        }
+        long[] offHeap = new long[3];
+        if (offHeapShards != null) {
+            for (OffHeapShard shard : offHeapShards) {
+                shard.addStats(offHeap);
+            }
+        }
+        // 两层都开启的时候堆外只查堆上没有命中的key，堆外命中的不算没有命中
+        long misses = shards == null ? offHeap[1] : stats[1] - offHeap[0];
+        return new CacheStats(stats[0], offHeap[0], misses, stats[2], stats[3], stats[4], maxWeight, offHeap[2],
+                allocator == null ? 0 : allocator.evictions(), allocator == null ? 0 : allocator.allocatedBytes(),
+                allocator == null ? 0 : allocator.capacity(), stats[5], stats[6]);
     }
 
     private static class NoCache extends StorageCache {
@@ -82,13 +360,63 @@ public class StorageCache {
         }
 
         @Override
-        public Object get(Object key) {
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public byte[] get(byte[] key, long keyHash) {
             return null;
         }
 
         @Override
-        public void put(Object key, Object value) {
+        public boolean isAbsent(byte[] key, long keyHash) {
+            return false;
+        }
+
+        @Override
+        public void putAbsent(byte[] key, long keyHash, long version) {
+
+        }
+
+        @Override
+        public boolean contains(byte[] key, long keyHash) {
+            return false;
+        }
+
+        @Override
+        public long version(long keyHash) {
+            return 0;
+        }
+
+        @Override
+        public void put(byte[] key, long keyHash, byte[] value, long version) {
+
+        }
 
+        @Override
+        public void update(byte[] key, long keyHash, byte[] value) {
+
+        }
+
+        @Override
+        public void invalidate(byte[] key, long keyHash) {
+
+        }
+
+        @Override
+        public void clear() {
+
+        }
+
+        @Override
+        public List<byte[]> hotKeys(int max) {
+            return new ArrayList<byte[]>();
+        }
+
+        @Override
+        public CacheStats stats() {
+            return new CacheStats(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
         }
     }
 
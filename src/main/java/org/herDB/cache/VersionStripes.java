@@ -0,0 +1,43 @@
+package org.herDB.cache;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 分片里按key的hash值分条的invalidate计数：读数据文件之前取得key所在条的version，
+ * 缓存读到的value(或者不存在)的时候这一条没有变化，才说明期间没有put过这个key
+ * <p>
+ * 整个分片共用一个version的话，分片里任何一个key被put都让同时在读的所有key缓存不了；
+ * 分成1024条之后只有落在同一条的key互相影响。version不加锁读，只在分片的锁里修改
+ *
+ * @author funeyu
+ */
+final class VersionStripes {
+
+    // 条数，2的幂
+    private final static int STRIPES = 1024;
+
+    private final AtomicIntegerArray versions = new AtomicIntegerArray(STRIPES);
+
+    /**
+     * @param hash 分片内hash表用的hash值
+     * @return key所在条的version
+     */
+    int get(int hash) {
+
+        return versions.get(hash & (STRIPES - 1));
+    }
+
+    // key被put或者去掉的时候调用
+    void increment(int hash) {
+
+        versions.incrementAndGet(hash & (STRIPES - 1));
+    }
+
+    // 清空分片的时候调用，之前开始的读都不再缓存
+    void incrementAll() {
+
+        for (int i = 0; i < STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.herDB.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * write-back模式下put的缓冲：put只把value放在这里，每隔一段时间或者缓冲满了再一起写入数据文件；
+ * 同一个key在两次写入之间的多次put只写最后一次，热点key的覆盖不再每次都追加到数据文件
+ * <p>
+ * get要先查这里，没有再查缓存与数据文件；写入数据文件之后才从这里去掉，并且只去掉写入的那个value，
+ * 写入期间又被put的话留到下一次写入，任何时候都能读到最后一次put的value
+ * <p>
+ * 还没写入的数据在进程崩溃的时候会丢失，所以不能与{@link org.herDB.herdb.Configuration#DURABILITY_SYNC}一起用
+ *
+ * @author funeyu
+ */
+public final class WriteBackBuffer {
+
+    // 定时写入的线程
+    private final static ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "herDB-writeback");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // 分片个数
+    private final static int SHARDS = 16;
+
+    private final Writer writer;
+    // 缓冲最多的字节数，超出的时候put的线程自己写入
+    private final long maxBytes;
+    private final Shard[] shards = new Shard[SHARDS];
+    // 缓冲里key与value的字节数
+    private final AtomicLong bytes = new AtomicLong();
+    // 同一时刻只有一个线程写入，保证同一个key的value按put的顺序写入数据文件
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private ScheduledFuture<?> flushTask;
+
+    /**
+     * 将缓冲里的value写入数据文件
+     */
+    public interface Writer {
+
+        void write(byte[] key, long keyHash, byte[] value) throws IOException;
+    }
+
+    private WriteBackBuffer(Writer writer, long maxBytes) {
+
+        this.writer = writer;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * @param writer   写入数据文件
+     * @param maxBytes 缓冲最多的字节数
+     * @param interval 定时写入的间隔(毫秒)
+     * @return
+     */
+    public static WriteBackBuffer create(Writer writer, long maxBytes, long interval) {
+
+        final WriteBackBuffer buffer = new WriteBackBuffer(writer, maxBytes);
+        buffer.flushTask = FLUSHER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                buffer.flush();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return buffer;
+    }
+
+    private static int hashOf(long keyHash) {
+
+        return (int) (keyHash >>> 32) ^ (int) keyHash;
+    }
+
+    private Shard shardFor(int hash) {
+
+        return shards[(hash ^ hash >>> 16) & (SHARDS - 1)];
+    }
+
+    /**
+     * 还没写入数据文件的value
+     *
+     * @param key
+     * @param keyHash
+     * @return value的拷贝，没有的话返回null
+     */
+    public byte[] get(byte[] key, long keyHash) {
+
+        int hash = hashOf(keyHash);
+        Shard shard = shardFor(hash);
+        shard.lock();
+        try {
+            Entry entry = shard.entries.get(new CacheKey(key, hash));
+            return entry == null ? null : entry.value.clone();
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    public boolean contains(byte[] key, long keyHash) {
+
+        int hash = hashOf(keyHash);
+        Shard shard = shardFor(hash);
+        shard.lock();
+        try {
+            return shard.entries.containsKey(new CacheKey(key, hash));
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * 放入缓冲，覆盖还没写入的旧value；缓冲满了的话先写入数据文件
+     *
+     * @param key
+     * @param keyHash
+     * @param value
+     */
+    public void put(byte[] key, long keyHash, byte[] value) {
+
+        int hash = hashOf(keyHash);
+        Shard shard = shardFor(hash);
+        CacheKey cacheKey = new CacheKey(key.clone(), hash);
+        Entry entry = new Entry(keyHash, value.clone());
+        shard.lock();
+        try {
+            Entry old = shard.entries.put(cacheKey, entry);
+            if (old == null) {
+                bytes.addAndGet(key.length + value.length);
+            } else {
+                bytes.addAndGet(value.length - old.value.length);
+            }
+        } finally {
+            shard.unlock();
+        }
+        if (bytes.get() > maxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * 将缓冲里的value都写入数据文件；写入失败的留在缓冲里下次再写
+     */
+    public void flush() {
+
+        flushLock.lock();
+        try {
+            for (Shard shard : shards) {
+                List<CacheKey> keys;
+                List<Entry> batch;
+                shard.lock();
+                try {
+                    keys = new ArrayList<CacheKey>(shard.entries.keySet());
+                    batch = new ArrayList<Entry>(shard.entries.values());
+                } finally {
+                    shard.unlock();
+                }
+                for (int i = 0, size = keys.size(); i < size; i++) {
+                    CacheKey key = keys.get(i);
+                    Entry entry = batch.get(i);
+                    try {
+                        writer.write(key.bytes(), entry.keyHash, entry.value);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        continue;
+                    }
+                    shard.lock();
+                    try {
+                        // 写入期间又被put的话留着新的value
+                        if (shard.entries.get(key) == entry) {
+                            shard.entries.remove(key);
+                            bytes.addAndGet(-(key.bytes().length + entry.value.length));
+                        }
+                    } finally {
+                        shard.unlock();
+                    }
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 停止定时写入，并把缓冲里剩下的value写入数据文件
+     */
+    public void close() {
+
+        flushTask.cancel(false);
+        flush();
+    }
+
+    @SuppressWarnings("serial")
+    private final static class Shard extends ReentrantLock {
+
+        private final HashMap<CacheKey, Entry> entries = new HashMap<CacheKey, Entry>();
+    }
+
+    // 每次put都是新的Entry，写入之后按引用判断是否又被put过
+    private final static class Entry {
+
+        private final long keyHash;
+        private final byte[] value;
+
+        Entry(long keyHash, byte[] value) {
+
+            this.keyHash = keyHash;
+            this.value = value;
+        }
+    }
+}
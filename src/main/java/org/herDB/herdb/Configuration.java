@@ -9,9 +9,11 @@ import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
+import org.herDB.utils.Hash;
+
 public class Configuration {
 
-    // 读写缓冲块的大小
+    // 读写缓冲块的大小，扩容与compact的时候每次交给一个线程判断是否有效的数据量
     public final static String BUFFERED_BLOCK_SIZE = "buffered.block.size";
     // key/value 数据的最大长度
     public final static String ITEM_DATA_MAX_SIZE = "item.max.size";
@@ -21,6 +23,90 @@ public class Configuration {
     public final static String SEGMENTS_SIZE = "segments.size";
     // 配置lru缓存的内存大小
     public final static String STORAGE_CACHE_SIZE = "storage.main.java.org.herDB.cache.size";
+    // 最多缓存多少个数据文件里不存在的key，重复查询不存在的key不用再查索引；为0的时候不开启
+    public final static String NEGATIVE_CACHE_SIZE = "storage.cache.negative.size";
+    // 堆外缓存的大小(MB)，value存在堆外的slab里，不占用堆内存；为0的时候不开启
+    public final static String OFFHEAP_CACHE_SIZE = "storage.cache.offheap.size";
+    // 堆外缓存每个slab的字节数，内存用完的时候按slab淘汰
+    public final static String CACHE_SLAB_SIZE = "storage.cache.slab.size";
+    // 定时写入数据库目录的最热的key的个数，重新打开数据库的时候按这个列表在后台预热缓存；为0的时候不开启
+    public final static String HOT_KEYS_COUNT = "storage.cache.hotkeys.count";
+    // 写入最热的key的间隔(毫秒)
+    public final static String HOT_KEYS_INTERVAL = "storage.cache.hotkeys.interval";
+    // put与缓存的关系：CACHE_WRITE_INVALIDATE, CACHE_WRITE_THROUGH 或者 CACHE_WRITE_BACK
+    public final static String CACHE_WRITE_MODE = "storage.cache.write.mode";
+    // put之后去掉缓存里的旧value，下次get再从数据文件读
+    public final static int CACHE_WRITE_INVALIDATE = 0;
+    // put之后直接把新的value放入缓存
+    public final static int CACHE_WRITE_THROUGH = 1;
+    // put先放在缓冲里，定时合并写入数据文件，同一个key的多次覆盖只写最后一次；还没写入的数据崩溃时会丢失
+    public final static int CACHE_WRITE_BACK = 2;
+    // CACHE_WRITE_BACK的缓冲大小(字节)，满了就立即写入数据文件
+    public final static String WRITE_BACK_SIZE = "storage.cache.writeback.size";
+    // CACHE_WRITE_BACK的写入间隔(毫秒)
+    public final static String WRITE_BACK_INTERVAL = "storage.cache.writeback.interval";
+    // 内存索引的存储方式：INDEX_MODE_HEAP 或者 INDEX_MODE_MMAP
+    public final static String INDEX_MODE = "index.mode";
+    // 索引全部读到堆内存里
+    public final static int INDEX_MODE_HEAP = 0;
+    // 索引文件映射到内存，在文件上原地读写，不占用堆内存
+    public final static int INDEX_MODE_MMAP = 1;
+    // 索引的扩容方式：GROWTH_MODE_REWRITE, GROWTH_MODE_LINEAR, GROWTH_MODE_BACKGROUND 或者 GROWTH_MODE_REHASH
+    public final static String GROWTH_MODE = "index.growth.mode";
+    // attachedSlots满了的时候一次性将索引扩大一倍，同时重写数据文件去掉无效的数据
+    public final static int GROWTH_MODE_REWRITE = 0;
+    // 线性扩容：每次put只分裂少量的bucket，不重写数据文件
+    public final static int GROWTH_MODE_LINEAR = 1;
+    // 后台线程里扩容并重写数据文件，期间读写仍然使用旧的索引，只在最后替换的时候短暂阻塞写
+    public final static int GROWTH_MODE_BACKGROUND = 2;
+    // 用slot里存的key的hash值只在内存里重建两倍容量的索引，不读写数据文件；无效数据由后台compact处理
+    public final static int GROWTH_MODE_REHASH = 3;
+    // 什么时候扩容索引：RESIZE_POLICY_OVERFLOW 或者 RESIZE_POLICY_LOAD
+    public final static String RESIZE_POLICY = "index.resize.policy";
+    // 只在attachedSlots用完的时候扩容，slot链可能很长
+    public final static int RESIZE_POLICY_OVERFLOW = 0;
+    // 装载因子超过index.load.factor, 或者超过它的一半并且有slot链长过index.max.chain就提前扩容；
+    // attachedSlots用完而装载因子还没到的话只扩大attachedSlots，bucket的个数不变
+    public final static int RESIZE_POLICY_LOAD = 1;
+    // 索引的装载因子上限(百分比)：key的个数 / bucket的个数
+    public final static String LOAD_FACTOR = "index.load.factor";
+    // slot链的长度上限，get最多比较这么多个slot
+    public final static String MAX_CHAIN = "index.max.chain";
+    // get不加锁读索引最多尝试的次数，都与put并发的话再加锁读；为0的时候get总是加锁读索引
+    public final static String OPTIMISTIC_READS = "index.optimistic.reads";
+    // key的hash函数：HASH_FUNCTION_LEGACY 或者 HASH_FUNCTION_XXHASH64，数据库创建后不能再修改
+    public final static String HASH_FUNCTION = "hash.function";
+    // 旧版本的hash函数，没有这个配置项的旧数据库都用它
+    public final static int HASH_FUNCTION_LEGACY = 0;
+    public final static int HASH_FUNCTION_XXHASH64 = 1;
+    // hash函数的种子
+    public final static String HASH_SEED = "hash.seed";
+    // 每个分段的布隆过滤器里每个key占用的位数，为0的时候不开启布隆过滤器；10位的误判率约为1%
+    public final static String BLOOM_BITS_PER_KEY = "bloom.bits.per.key";
+    // 数据文件追加缓冲的大小(字节)，put的数据先放在缓冲里，攒满了再一次顺序写入文件；为0的时候不开启缓冲
+    public final static String WRITE_BUFFER_SIZE = "write.buffer.size";
+    // 追加缓冲的刷新间隔(毫秒)，缓冲里的数据最多停留这么久就写入文件；为0的时候只在缓冲满了的时候写入
+    public final static String WRITE_FLUSH_INTERVAL = "write.flush.interval";
+    // 每个数据文件的最大长度(字节)，写满了就换一个新的数据文件继续追加
+    public final static String DATA_FILE_SIZE = "data.file.size";
+    // 数据的持久化方式：DURABILITY_NONE, DURABILITY_PERIODIC 或者 DURABILITY_SYNC
+    public final static String DURABILITY_MODE = "durability.mode";
+    // 不主动sync数据文件，什么时候写到磁盘由操作系统决定
+    public final static int DURABILITY_NONE = 0;
+    // 后台每隔durability.sync.interval毫秒sync一次写过的数据文件
+    public final static int DURABILITY_PERIODIC = 1;
+    // put返回前数据已经sync到磁盘上，并发的put共用一次sync(组提交)
+    public final static int DURABILITY_SYNC = 2;
+    // DURABILITY_PERIODIC的sync间隔(毫秒)
+    public final static String SYNC_INTERVAL = "durability.sync.interval";
+    // 数据文件里无效数据的比例(百分比)超过这个值就在后台compact，只重写有效的数据；为0的时候不开启
+    public final static String COMPACTION_GARBAGE_RATIO = "compaction.garbage.ratio";
+    // 后台compact每秒最多读写的字节数，为0的时候不限速
+    public final static String COMPACTION_RATE = "compaction.rate";
+    // 检查是否需要后台compact的间隔(毫秒)
+    public final static String COMPACTION_INTERVAL = "compaction.interval";
+    // 后台checkpoint的间隔(毫秒)，不关闭数据库把索引写入磁盘，崩溃后打开时只需重放这之后的数据；为0的时候不开启
+    public final static String CHECKPOINT_INTERVAL = "checkpoint.interval";
     // 存储配置信息
     public final static HashMap<String, String> conf = new HashMap<String, String>();
 
@@ -43,6 +129,36 @@ public class Configuration {
         set(Configuration.SEGMENTS_SIZE, "8");
         // 1kb的lru缓存大小
         set(Configuration.STORAGE_CACHE_SIZE, "1048576");
+        set(Configuration.NEGATIVE_CACHE_SIZE, "0");
+        set(Configuration.OFFHEAP_CACHE_SIZE, "0");
+        // 1MB一个slab
+        set(Configuration.CACHE_SLAB_SIZE, "1048576");
+        set(Configuration.HOT_KEYS_COUNT, "10000");
+        set(Configuration.HOT_KEYS_INTERVAL, "60000");
+        set(Configuration.CACHE_WRITE_MODE, String.valueOf(CACHE_WRITE_INVALIDATE));
+        // 4MB的write-back缓冲
+        set(Configuration.WRITE_BACK_SIZE, "4194304");
+        set(Configuration.WRITE_BACK_INTERVAL, "1000");
+        set(Configuration.INDEX_MODE, String.valueOf(INDEX_MODE_HEAP));
+        set(Configuration.GROWTH_MODE, String.valueOf(GROWTH_MODE_REHASH));
+        set(Configuration.RESIZE_POLICY, String.valueOf(RESIZE_POLICY_LOAD));
+        set(Configuration.LOAD_FACTOR, "100");
+        set(Configuration.MAX_CHAIN, "8");
+        set(Configuration.OPTIMISTIC_READS, "2");
+        set(Configuration.HASH_FUNCTION, String.valueOf(HASH_FUNCTION_XXHASH64));
+        set(Configuration.HASH_SEED, "0");
+        set(Configuration.BLOOM_BITS_PER_KEY, "0");
+        set(Configuration.WRITE_BUFFER_SIZE, "0");
+        set(Configuration.WRITE_FLUSH_INTERVAL, "1000");
+        // 64MB一个数据文件
+        set(Configuration.DATA_FILE_SIZE, "67108864");
+        set(Configuration.DURABILITY_MODE, String.valueOf(DURABILITY_NONE));
+        set(Configuration.SYNC_INTERVAL, "1000");
+        set(Configuration.COMPACTION_GARBAGE_RATIO, "50");
+        // 每秒最多16MB
+        set(Configuration.COMPACTION_RATE, "16777216");
+        set(Configuration.COMPACTION_INTERVAL, "10000");
+        set(Configuration.CHECKPOINT_INTERVAL, "60000");
 
         // 设置默认的临时开关项
         // 默认不打开热缓存开关
@@ -76,6 +192,23 @@ public class Configuration {
         return tem.get(Configuration.IS_ONLY_READ);
     }
 
+    // 索引文件是否映射到内存
+    public boolean isIndexMapped() {
+
+        return get(Configuration.INDEX_MODE) == INDEX_MODE_MMAP;
+    }
+
+    /**
+     * 根据配置生成key的hash函数
+     *
+     * @return
+     */
+    public Hash hashFunction() {
+
+        return get(Configuration.HASH_FUNCTION) == HASH_FUNCTION_LEGACY ? Hash.legacy()
+                : Hash.xxHash64(get(Configuration.HASH_SEED));
+    }
+
     /**
      * 开关项的配置设定
      *
@@ -108,6 +241,12 @@ public class Configuration {
     public static Configuration open(String dirPath) {
 
         Configuration conf = new Configuration(dirPath);
+        // 创建数据库的时候所有配置项都写入了配置文件，没有的是旧版本创建的数据库，沿用当时的行为：
+        // 旧的hash函数，attachedSlots用完才一次性重写扩容，不开启后台compact
+        conf.set(Configuration.HASH_FUNCTION, String.valueOf(HASH_FUNCTION_LEGACY));
+        conf.set(Configuration.GROWTH_MODE, String.valueOf(GROWTH_MODE_REWRITE));
+        conf.set(Configuration.RESIZE_POLICY, String.valueOf(RESIZE_POLICY_OVERFLOW));
+        conf.set(Configuration.COMPACTION_GARBAGE_RATIO, "0");
         try {
             conf.read();
         } catch (IOException e) {
@@ -136,6 +275,92 @@ public class Configuration {
             throw new IllegalArgumentException("buffered.block.size must be greater than item.max.sieze * 2");
         }
 
+        if (get(OFFHEAP_CACHE_SIZE) < 0 || get(NEGATIVE_CACHE_SIZE) < 0) {
+            throw new IllegalArgumentException(
+                    "storage.cache.offheap.size and storage.cache.negative.size must not be negative");
+        }
+
+        // chunk的序号只有16位，最小的chunk为64字节
+        if (get(CACHE_SLAB_SIZE) < 65536 || get(CACHE_SLAB_SIZE) > 4194304) {
+            throw new IllegalArgumentException("storage.cache.slab.size must be between 65536 and 4194304");
+        }
+
+        if (get(HOT_KEYS_COUNT) < 0 || get(HOT_KEYS_INTERVAL) <= 0) {
+            throw new IllegalArgumentException(
+                    "storage.cache.hotkeys.count must not be negative and storage.cache.hotkeys.interval must be greater than 0");
+        }
+
+        if (get(CACHE_WRITE_MODE) < CACHE_WRITE_INVALIDATE || get(CACHE_WRITE_MODE) > CACHE_WRITE_BACK) {
+            throw new IllegalArgumentException("unknown storage.cache.write.mode:" + conf.get(CACHE_WRITE_MODE));
+        }
+
+        if (get(WRITE_BACK_SIZE) <= 0 || get(WRITE_BACK_INTERVAL) <= 0) {
+            throw new IllegalArgumentException(
+                    "storage.cache.writeback.size and storage.cache.writeback.interval must be greater than 0");
+        }
+
+        // write-back缓冲里的数据put返回时还没写入数据文件
+        if (get(CACHE_WRITE_MODE) == CACHE_WRITE_BACK && get(DURABILITY_MODE) == DURABILITY_SYNC) {
+            throw new IllegalArgumentException("storage.cache.write.mode can not be CACHE_WRITE_BACK with DURABILITY_SYNC");
+        }
+
+        if (get(INDEX_MODE) != INDEX_MODE_HEAP && get(INDEX_MODE) != INDEX_MODE_MMAP) {
+            throw new IllegalArgumentException("unknown index.mode:" + conf.get(INDEX_MODE));
+        }
+
+        if (get(GROWTH_MODE) < GROWTH_MODE_REWRITE || get(GROWTH_MODE) > GROWTH_MODE_REHASH) {
+            throw new IllegalArgumentException("unknown index.growth.mode:" + conf.get(GROWTH_MODE));
+        }
+
+        if (get(RESIZE_POLICY) != RESIZE_POLICY_OVERFLOW && get(RESIZE_POLICY) != RESIZE_POLICY_LOAD) {
+            throw new IllegalArgumentException("unknown index.resize.policy:" + conf.get(RESIZE_POLICY));
+        }
+
+        if (get(LOAD_FACTOR) <= 0 || get(MAX_CHAIN) <= 0) {
+            throw new IllegalArgumentException("index.load.factor and index.max.chain must be greater than 0");
+        }
+
+        if (get(OPTIMISTIC_READS) < 0) {
+            throw new IllegalArgumentException("index.optimistic.reads must not be negative");
+        }
+
+        if (get(HASH_FUNCTION) != HASH_FUNCTION_LEGACY && get(HASH_FUNCTION) != HASH_FUNCTION_XXHASH64) {
+            throw new IllegalArgumentException("unknown hash.function:" + conf.get(HASH_FUNCTION));
+        }
+
+        if (get(BLOOM_BITS_PER_KEY) < 0 || get(BLOOM_BITS_PER_KEY) > 32) {
+            throw new IllegalArgumentException("bloom.bits.per.key must be between 0 and 32");
+        }
+
+        if (get(WRITE_BUFFER_SIZE) < 0 || get(WRITE_FLUSH_INTERVAL) < 0) {
+            throw new IllegalArgumentException("write.buffer.size and write.flush.interval must not be negative");
+        }
+
+        if (get(DATA_FILE_SIZE) < get(ITEM_DATA_MAX_SIZE) * 2) {
+            throw new IllegalArgumentException("data.file.size must be greater than item.max.size * 2");
+        }
+
+        if (get(DURABILITY_MODE) < DURABILITY_NONE || get(DURABILITY_MODE) > DURABILITY_SYNC) {
+            throw new IllegalArgumentException("unknown durability.mode:" + conf.get(DURABILITY_MODE));
+        }
+
+        if (get(DURABILITY_MODE) == DURABILITY_PERIODIC && get(SYNC_INTERVAL) <= 0) {
+            throw new IllegalArgumentException("durability.sync.interval must be greater than 0");
+        }
+
+        if (get(COMPACTION_GARBAGE_RATIO) < 0 || get(COMPACTION_GARBAGE_RATIO) > 100) {
+            throw new IllegalArgumentException("compaction.garbage.ratio must be between 0 and 100");
+        }
+
+        if (get(COMPACTION_RATE) < 0 || get(COMPACTION_INTERVAL) <= 0) {
+            throw new IllegalArgumentException(
+                    "compaction.rate must not be negative and compaction.interval must be greater than 0");
+        }
+
+        if (get(CHECKPOINT_INTERVAL) < 0) {
+            throw new IllegalArgumentException("checkpoint.interval must not be negative");
+        }
+
         // 写入文件
         write();
     }
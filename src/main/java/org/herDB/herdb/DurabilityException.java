@@ -0,0 +1,16 @@
+package org.herDB.herdb;
+
+/**
+ * DURABILITY_SYNC模式下put的数据已经写入数据文件，但是没能sync到磁盘：
+ * put没有返回成功，崩溃之后这条数据可能丢失
+ *
+ * @author funeyu
+ */
+@SuppressWarnings("serial")
+public class DurabilityException extends RuntimeException {
+
+    public DurabilityException(Throwable cause) {
+
+        super("the put was written but failed to sync to disk", cause);
+    }
+}
@@ -2,19 +2,75 @@ package org.herDB.herdb;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.herDB.cache.CacheStats;
+import org.herDB.cache.HotKeys;
 import org.herDB.cache.StorageCache;
+import org.herDB.cache.WriteBackBuffer;
+import org.herDB.index.GroupCommit;
 import org.herDB.index.IndexSegment;
+import org.herDB.index.IndexStats;
 import org.herDB.serializer.SerializerImp;
 import org.herDB.store.FSDirectory;
+import org.herDB.utils.Hash;
 
 public final class HerDB {
 
+    // 定时写入最热的key与打开数据库之后预热缓存的线程
+    private final static ScheduledExecutorService HOT_KEYS = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "herDB-hotkeys");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private Configuration conf;
     private IndexSegment[] segments;
     private FSDirectory fsd;
     private StorageCache cache;
+    // 是否使用读缓存，见cacheOn()与cacheOff()
+    private volatile boolean cacheOn;
+    // put与缓存的关系，见Configuration.CACHE_WRITE_MODE
+    private int writeMode;
+    // CACHE_WRITE_THROUGH模式下保证同一个key的put按写入数据文件的顺序更新缓存
+    private ReentrantLock[] writeLocks;
+    // CACHE_WRITE_BACK模式下还没写入数据文件的put
+    private WriteBackBuffer writeBack;
+    // 写入最热的key的个数，为0的时候不写入也不预热
+    private int hotKeys;
+    // 定时写入最热的key的任务
+    private ScheduledFuture<?> hotKeysTask;
+    // 打开数据库之后预热缓存的任务
+    private Future<?> warmUpTask;
+    // commit之后停止预热
+    private volatile boolean closed;
+    // key的hash函数，每次操作只计算一次
+    private Hash hashFunction;
+    // 分段数 - 1，分段数为2^n
+    private int segmentMask;
+    // 数据的持久化方式
+    private int durability;
+    // 所有分段共用的数据文件sync
+    private GroupCommit groupCommit;
+    // CACHE_WRITE_THROUGH模式下put的锁的个数
+    private final static int WRITE_LOCKS = 64;
     private static String DIRECTORY = "herDB";
     private static String CONFIG = "herDB.conf";
 
@@ -32,16 +88,151 @@ public final class HerDB {
 
         this.conf = conf;
         segments = new IndexSegment[conf.get(Configuration.SEGMENTS_SIZE)];
+        segmentMask = segments.length - 1;
+        hashFunction = conf.hashFunction();
+        durability = conf.get(Configuration.DURABILITY_MODE);
+        groupCommit = durability == Configuration.DURABILITY_PERIODIC
+                ? GroupCommit.periodic(conf.get(Configuration.SYNC_INTERVAL)) : GroupCommit.create();
 
         this.fsd = fsd;
 
-        for (int i = 0, length = segments.length; i < length; i++) {
-            segments[i] = IndexSegment.createIndex(fsd, "segment" + i, conf);
-        }
+        openSegments(fsd, conf);
 
         this.fsd = fsd;
 
         this.cache = StorageCache.initCache(conf);
+        this.cacheOn = conf.isCacheOn();
+        writeMode = conf.get(Configuration.CACHE_WRITE_MODE);
+        if (writeMode == Configuration.CACHE_WRITE_THROUGH) {
+            writeLocks = new ReentrantLock[WRITE_LOCKS];
+            for (int i = 0; i < WRITE_LOCKS; i++) {
+                writeLocks[i] = new ReentrantLock();
+            }
+        } else if (writeMode == Configuration.CACHE_WRITE_BACK) {
+            writeBack = WriteBackBuffer.create(new WriteBackBuffer.Writer() {
+                @Override
+                public void write(byte[] key, long keyHash, byte[] value) throws IOException {
+                    writeData(key, keyHash, value);
+                }
+            }, conf.get(Configuration.WRITE_BACK_SIZE), conf.get(Configuration.WRITE_BACK_INTERVAL));
+        }
+
+        hotKeys = cache.isEnabled() ? conf.get(Configuration.HOT_KEYS_COUNT) : 0;
+        if (hotKeys > 0) {
+            if (!isFirst) {
+                // 按上次的列表在后台预热缓存，不阻塞打开
+                warmUpTask = HOT_KEYS.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        warmUp();
+                    }
+                });
+            }
+            if (!conf.isOnlyRead()) {
+                long interval = conf.get(Configuration.HOT_KEYS_INTERVAL);
+                hotKeysTask = HOT_KEYS.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        saveHotKeys();
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * 读取上次写入的最热的key，按它们在数据文件里的位置排序之后依次读入缓存，尽量顺序读磁盘；
+     * 已经在缓存里的与不存在了的key跳过
+     */
+    private void warmUp() {
+
+        List<byte[]> keys = HotKeys.load(fsd);
+        int count = keys.size();
+        final long[] hashes = new long[count];
+        final long[] addresses = new long[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count && !closed; i++) {
+            hashes[i] = hashFunction.hash(keys.get(i));
+            addresses[i] = segments[segmentFor(hashes[i])].addressOf(hashes[i]);
+            order[i] = i;
+        }
+        if (closed) {
+            return;
+        }
+        // 地址的高位是数据文件的序号，低位是文件里的偏移
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return addresses[a] < addresses[b] ? -1 : addresses[a] == addresses[b] ? 0 : 1;
+            }
+        });
+        for (int i : order) {
+            if (closed || !cacheOn) {
+                return;
+            }
+            byte[] key = keys.get(i);
+            long hash = hashes[i];
+            if (addresses[i] < 0 || cache.contains(key, hash)) {
+                continue;
+            }
+            // 读数据文件期间key被put过的话不缓存读到的旧数据
+            long version = cache.version(hash);
+            byte[] value = segments[segmentFor(hash)].get(key, hash);
+            if (value != null) {
+                cache.put(key, hash, value, version);
+            }
+        }
+    }
+
+    // 将缓存里最热的key写入数据库目录
+    private synchronized void saveHotKeys() {
+
+        if (!cacheOn) {
+            return;
+        }
+        List<byte[]> keys = cache.hotKeys(hotKeys);
+        if (keys.isEmpty()) {
+            return;
+        }
+        try {
+            HotKeys.save(fsd, keys);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 并行地打开所有的分段，各个分段重放上次checkpoint之后的数据互不影响，恢复时间取决于最慢的分段
+     *
+     * @param fsd
+     * @param conf
+     * @throws Exception
+     */
+    private void openSegments(final FSDirectory fsd, final Configuration conf) throws Exception {
+
+        ExecutorService opener = Executors.newFixedThreadPool(
+                Math.min(segments.length, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<IndexSegment>> futures = new ArrayList<Future<IndexSegment>>();
+            for (int i = 0, length = segments.length; i < length; i++) {
+                final String fileName = "segment" + i;
+                futures.add(opener.submit(new Callable<IndexSegment>() {
+                    @Override
+                    public IndexSegment call() throws Exception {
+                        return IndexSegment.createIndex(fsd, fileName, conf);
+                    }
+                }));
+            }
+            for (int i = 0, length = segments.length; i < length; i++) {
+                try {
+                    segments[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            opener.shutdown();
+        }
     }
 
     /**
@@ -107,6 +298,7 @@ public final class HerDB {
     public HerDB cacheOn() {
 
         conf.setOnOff(Configuration.IS_CACHE_ON, true);
+        cacheOn = true;
         return this;
     }
 
@@ -119,14 +311,49 @@ public final class HerDB {
     public HerDB cacheOff() {
 
         conf.setOnOff(Configuration.IS_CACHE_ON, false);
+        cacheOn = false;
+        cache.clear();
         return this;
     }
 
+    /**
+     * 读缓存的命中、淘汰与占用内存的统计
+     *
+     * @return
+     */
+    public CacheStats cacheStats() {
+
+        return cache.stats();
+    }
+
     /**
      * 每进行完一系列数据库操作，最后都要commit()，将内存索引文件写入磁盘中
      */
     public void commit() {
 
+        closed = true;
+        // write-back缓冲里的数据先写入数据文件
+        if (writeBack != null) {
+            writeBack.close();
+        }
+        if (warmUpTask != null) {
+            // 等预热停下来再关闭数据文件
+            try {
+                warmUpTask.get();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (hotKeysTask != null) {
+            hotKeysTask.cancel(false);
+            saveHotKeys();
+        }
+        // 索引写入磁盘之前，它指向的数据先sync
+        try {
+            groupCommit.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         for (int i = 0, length = segments.length; i < length; i++) {
             segments[i].commit();
         }
@@ -134,6 +361,54 @@ public final class HerDB {
         fsd.releaseDir();
     }
 
+    /**
+     * 不关闭数据库，将所有分段的索引写入磁盘；之后崩溃的话打开时只需重放这之后put的数据。
+     * 各个分段的checkpoint在后台线程池里同时进行，全部完成之后返回。
+     * 后台每隔{@link Configuration#CHECKPOINT_INTERVAL}毫秒会自动checkpoint，一般不用手动调用
+     */
+    public void checkpoint() {
+
+        if (writeBack != null) {
+            writeBack.flush();
+        }
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0, length = segments.length; i < length; i++) {
+            futures.add(segments[i].checkpointInBackground());
+        }
+        boolean interrupted = false;
+        for (Future<Boolean> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // 等所有的分段写完再返回，中断状态留给调用方
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 各个分段索引的装载因子与slot链长度
+     *
+     * @return
+     */
+    public IndexStats[] indexStats() {
+
+        IndexStats[] stats = new IndexStats[segments.length];
+        for (int i = 0, length = segments.length; i < length; i++) {
+            stats[i] = segments[i].stats();
+        }
+        return stats;
+    }
+
     public <T> void put(String key, T value) {
 
         byte[] keyBytes = key.getBytes();
@@ -149,6 +424,36 @@ public final class HerDB {
         return serilization.deserialize(resultBytes);
     }
 
+    /**
+     * 判断key是否存在，不读取value
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(String key) {
+
+        byte[] keyBytes = key.getBytes();
+        long hash = hashFunction.hash(keyBytes);
+        boolean cached = cacheOn;
+        long version = cached ? cache.version(hash) : 0;
+        if (writeBack != null && writeBack.contains(keyBytes, hash)) {
+            return true;
+        }
+        if (cached && cache.contains(keyBytes, hash)) {
+            return true;
+        }
+        if (cached && cache.isAbsent(keyBytes, hash)) {
+            return false;
+        }
+        if (segments[segmentFor(hash)].contains(keyBytes, hash)) {
+            return true;
+        }
+        if (cached) {
+            cache.putAbsent(keyBytes, hash, version);
+        }
+        return false;
+    }
+
     public void putBytes(String key, byte[] value) {
 
         byte[] keyBytes = key.getBytes();
@@ -161,17 +466,61 @@ public final class HerDB {
         return getInternal(keyBytes, null);
     }
 
-    // HerDB的put操作原生字节序列操作,所有的添加都要经过这一步
+    // HerDB的put操作原生字节序列操作,所有的添加都要经过这一步；DURABILITY_SYNC模式下sync失败抛出DurabilityException
     private void putInternal(byte[] key, byte[] value) {
 
-        // 先加入lru缓存中
+        long hash = hashFunction.hash(key);
+        if (writeBack != null) {
+            // 之前开始的读不再缓存读到的旧数据，之后的读先查write-back缓冲
+            writeBack.put(key, hash, value);
+            cache.invalidate(key, hash);
+            return;
+        }
         try {
-            segments[segmentFor(key)].put(key, value);
+            writeData(key, hash, value);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 将key/value写入数据文件，并按CACHE_WRITE_MODE更新缓存
+     *
+     * @param key
+     * @param hash
+     * @param value
+     * @throws IOException
+     */
+    private void writeData(byte[] key, long hash, byte[] value) throws IOException {
+
+        IndexSegment segment = segments[segmentFor(hash)];
+        if (writeMode == Configuration.CACHE_WRITE_THROUGH && cacheOn) {
+            // 同一个key的两次put要按写入数据文件的顺序更新缓存，否则缓存里可能留下先写入的那个value
+            ReentrantLock lock = writeLocks[(int) (hash ^ hash >>> 32) & (WRITE_LOCKS - 1)];
+            lock.lock();
+            try {
+                segment.put(key, hash, value);
+                cache.update(key, hash, value);
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            segment.put(key, hash, value);
+            // 缓存里的旧value不再有效；缓存关闭的时候也要去掉，以免之后打开缓存读到旧的数据
+            cache.invalidate(key, hash);
+        }
+        if (durability == Configuration.DURABILITY_SYNC) {
+            // 等待与并发的put一起sync；sync失败要让put的调用方知道，不能当作IOException打印了事
+            try {
+                groupCommit.await(segment);
+            } catch (IOException e) {
+                throw new DurabilityException(e);
+            }
+        } else if (durability == Configuration.DURABILITY_PERIODIC) {
+            groupCommit.mark(segment);
+        }
+    }
+
     /**
      * 通过key的字节数组去查询相应的value字节数组，若没查到则返回一默认值
      *
@@ -182,25 +531,39 @@ public final class HerDB {
     private byte[] getInternal(byte[] key, byte[] value) {
 
         byte[] results = null;
+        long hash = hashFunction.hash(key);
+        boolean cached = cacheOn;
+        // 在查询write-back缓冲之前取得，之后的put都会让读到的旧数据不被缓存
+        long version = cached ? cache.version(hash) : 0;
 
-        //先查询lru缓存
-        if ((results = (byte[]) cache.get(key)) != null) {
+        // 还没写入数据文件的put
+        if (writeBack != null && (results = writeBack.get(key, hash)) != null) {
             return results;
         }
 
-        // 添加到lru缓存
-        if ((results = segments[segmentFor(key)].get(key)) != null) {
-            cache.put(key, results);
+        //先查询缓存；最近查过不存在、之后也没有被put过的key直接返回默认值
+        if (cached && (results = cache.get(key, hash)) != null) {
+            return results == StorageCache.ABSENT ? value : results;
+        }
+
+        // 添加到缓存；读数据文件期间key被put过的话不缓存读到的旧数据
+        if ((results = segments[segmentFor(hash)].get(key, hash)) != null) {
+            if (cached) {
+                cache.put(key, hash, results, version);
+            }
             return results;
         }
+        if (cached) {
+            cache.putAbsent(key, hash, version);
+        }
 
         return value;
     }
 
     // 获取分段IndexSegment的索引值
-    private int segmentFor(byte[] key) {
+    private int segmentFor(long hash) {
 
-        return Arrays.hashCode(key) & conf.get(Configuration.SEGMENTS_SIZE) - 1;
+        return hashFunction.segment(hash) & segmentMask;
     }
 
     // 判断herDB是否存在
@@ -0,0 +1,152 @@
+package org.herDB.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 分段的布隆过滤器，get与contains在过滤器里判断key不存在的话就不用遍历slot链与读磁盘；
+ * <p>
+ * 分块的布隆过滤器：每个块512位(一个cache line), 一个key的所有位都在同一个块里，查询只访问一次内存
+ * <pre>
+ * 文件的格式为： blocks(4字节) + probes(4字节) + blocks * 64字节
+ * </pre>
+ *
+ * @author funeyu
+ */
+final class BloomFilter {
+
+    // 每个块的long个数，8 * 64 = 512位
+    private final static int BLOCK_LONGS = 8;
+    private final static int BLOCK_BITS = BLOCK_LONGS * 64;
+    // 文件头的长度：blocks(4字节) + probes(4字节)
+    private final static int HEADER_SIZE = 8;
+    // 从key的hash值里重新打散出块与位的乘数，与分段、bucket用到的位不直接相关
+    private final static long MIXER = 0xC2B2AE3D27D4EB4FL;
+
+    private final long[] bits;
+    // 块的个数为2^n
+    private final int blocks;
+    // 每个key在块里设置的位数
+    private final int probes;
+
+    private BloomFilter(int blocks, int probes) {
+
+        this.blocks = blocks;
+        this.probes = probes;
+        this.bits = new long[blocks * BLOCK_LONGS];
+    }
+
+    /**
+     * 根据索引的容量新建一个空的过滤器，索引最多容纳capacity * 2个key
+     *
+     * @param capacity   索引的容量
+     * @param bitsPerKey 每个key占用的位数
+     * @return
+     */
+    static BloomFilter create(int capacity, int bitsPerKey) {
+
+        return new BloomFilter(blocksFor(capacity, bitsPerKey), probesFor(bitsPerKey));
+    }
+
+    /**
+     * 从文件的字节数组读取过滤器，格式不对的话返回null
+     *
+     * @param bytes
+     * @return
+     */
+    static BloomFilter load(byte[] bytes) {
+
+        if (bytes == null || bytes.length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int blocks = buffer.getInt();
+        int probes = buffer.getInt();
+        if (blocks <= 0 || (blocks & (blocks - 1)) != 0 || probes <= 0
+                || bytes.length != HEADER_SIZE + (long) blocks * BLOCK_LONGS * 8) {
+            return null;
+        }
+
+        BloomFilter filter = new BloomFilter(blocks, probes);
+        buffer.asLongBuffer().get(filter.bits);
+        return filter;
+    }
+
+    // 块的个数取不小于capacity * 2 * bitsPerKey / 512的2^n
+    private static int blocksFor(int capacity, int bitsPerKey) {
+
+        long needed = ((long) capacity * 2 * bitsPerKey + BLOCK_BITS - 1) / BLOCK_BITS;
+        int blocks = 1;
+        while (blocks < needed) {
+            blocks <<= 1;
+        }
+        return blocks;
+    }
+
+    // 误判率最低的位数: bitsPerKey * ln2
+    private static int probesFor(int bitsPerKey) {
+
+        return Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    /**
+     * 过滤器是否是按capacity与bitsPerKey建的
+     */
+    boolean matches(int capacity, int bitsPerKey) {
+
+        return blocks == blocksFor(capacity, bitsPerKey) && probes == probesFor(bitsPerKey);
+    }
+
+    /**
+     * 添加key，调用时持有分段的锁
+     *
+     * @param hash key的64位hash值
+     */
+    void add(long hash) {
+
+        long mixed = hash * MIXER;
+        int base = ((int) (mixed >>> 32) & (blocks - 1)) * BLOCK_LONGS;
+        int probe = (int) mixed;
+        int delta = Integer.rotateLeft(probe, 15) | 1;
+        for (int i = 0; i < probes; i++) {
+            int bit = probe & (BLOCK_BITS - 1);
+            bits[base + (bit >>> 6)] |= 1L << bit;
+            probe += delta;
+        }
+    }
+
+    /**
+     * 判断key是否可能存在，返回false的话key一定不存在
+     *
+     * @param hash key的64位hash值
+     * @return
+     */
+    boolean mightContain(long hash) {
+
+        long mixed = hash * MIXER;
+        int base = ((int) (mixed >>> 32) & (blocks - 1)) * BLOCK_LONGS;
+        int probe = (int) mixed;
+        int delta = Integer.rotateLeft(probe, 15) | 1;
+        for (int i = 0; i < probes; i++) {
+            int bit = probe & (BLOCK_BITS - 1);
+            if ((bits[base + (bit >>> 6)] & 1L << bit) == 0) {
+                return false;
+            }
+            probe += delta;
+        }
+        return true;
+    }
+
+    /**
+     * 将过滤器转成文件的字节数组
+     *
+     * @return
+     */
+    byte[] toBytes() {
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bits.length * 8);
+        buffer.putInt(blocks);
+        buffer.putInt(probes);
+        buffer.asLongBuffer().put(bits);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,20 @@
+package org.herDB.index;
+
+import java.io.IOException;
+
+/**
+ * 旧版本的索引文件里slot没有buckethash，转成当前版本的时候由数据文件里的key重新计算
+ *
+ * @author funeyu
+ */
+interface BucketResolver {
+
+    /**
+     * address处itemData的key的buckethash, 见{@link org.herDB.utils.Hash#bucket(long)}
+     *
+     * @param address itemData的地址
+     * @return
+     * @throws IOException
+     */
+    int bucketOf(long address) throws IOException;
+}
@@ -0,0 +1,117 @@
+package org.herDB.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.herDB.store.InputOutData;
+import org.herDB.utils.NumberPacker;
+
+/**
+ * 用positional read顺序读取数据文件里[position, end)之间的itemData，不移动文件指针，不影响其他线程；
+ * 超过读缓冲块的itemData也能完整读出
+ * <pre><b>itemData格式:</b> datalength(4字节) + keylength(4字节) + key + value</pre>
+ * 崩溃的时候数据文件的末尾可能只写了一半的itemData, 读到长度对不上的itemData就停下，
+ * {@link #isBroken()}返回true, {@link #position()}为这个itemData的开始位置
+ *
+ * @author funeyu
+ */
+final class DataFileScanner {
+
+    private final InputOutData source;
+    private final long end;
+    private final int blockSize;
+    // 读缓冲块与它在文件里的开始位置
+    private byte[] block = new byte[0];
+    private long blockStart;
+    // 下一个itemData的开始位置
+    private long position;
+    private boolean broken;
+
+    private long itemPosition;
+    private byte[] itemData;
+    private byte[] key;
+
+    DataFileScanner(InputOutData source, long position, long end, int blockSize) {
+
+        this.source = source;
+        this.position = position;
+        this.end = end;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * 读取下一个itemData
+     *
+     * @return 读到end或者不完整的itemData返回false
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+
+        if (position >= end) {
+            return false;
+        }
+        if (!fill(8)) {
+            broken = true;
+            return false;
+        }
+        int offset = (int) (position - blockStart);
+        int length = NumberPacker.unpackInt(block, offset) + 4;
+        int keyLength = NumberPacker.unpackInt(block, offset + 4);
+        if (length < 8 || keyLength < 0 || keyLength > length - 8 || !fill(length)) {
+            broken = true;
+            return false;
+        }
+
+        offset = (int) (position - blockStart);
+        itemData = Arrays.copyOfRange(block, offset, offset + length);
+        key = Arrays.copyOfRange(block, offset + 8, offset + 8 + keyLength);
+        itemPosition = position;
+        position += length;
+        return true;
+    }
+
+    // 当前itemData的开始位置
+    long itemPosition() {
+
+        return itemPosition;
+    }
+
+    // 当前itemData的全部字节
+    byte[] itemData() {
+
+        return itemData;
+    }
+
+    // 当前itemData的key
+    byte[] key() {
+
+        return key;
+    }
+
+    // 下一个itemData的开始位置，停下的时候为读到的位置
+    long position() {
+
+        return position;
+    }
+
+    // 是否遇到了不完整的itemData
+    boolean isBroken() {
+
+        return broken;
+    }
+
+    // 保证读缓冲块里包含[position, position + size), 超过end的话返回false
+    private boolean fill(int size) throws IOException {
+
+        if (position + size > end) {
+            return false;
+        }
+        if (position >= blockStart && position + size <= blockStart + block.length) {
+            return true;
+        }
+        int read = (int) Math.min(Math.max(blockSize, size), end - position);
+        block = source.seek(position, read);
+        blockStart = position;
+        return true;
+    }
+}
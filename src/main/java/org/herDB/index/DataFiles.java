@@ -0,0 +1,507 @@
+package org.herDB.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.store.FSDirectory;
+import org.herDB.store.InputOutData;
+
+/**
+ * 一个分段的所有数据文件；put的数据只追加到最新的数据文件(active)里，超过{@link Configuration#DATA_FILE_SIZE}
+ * 就换一个新的数据文件继续追加，写满的数据文件不再改变
+ * <p>
+ * 每个数据文件有一个序号，itemData的地址由序号与在文件里的偏移组成，见{@link Slot#address(int, long)}；
+ * <pre>
+ * 序号为0的数据文件名为: segmentN.data (与只有一个数据文件的旧版本相同)
+ * 序号为id的数据文件名为: segmentN.id.data
+ * </pre>
+ * 回收空间的时候只要删除整个数据文件，不用拷贝其他的数据文件；
+ * 扩容与compact新写的数据文件旁边有同名的{@link HintFile}: segmentN.id.hint
+ *
+ * @author funeyu
+ */
+final class DataFiles {
+
+    // 数据文件的后缀
+    private final static String DATASUFFIX = ".data";
+    // hint文件的后缀
+    private final static String HINTSUFFIX = ".hint";
+
+    private final FSDirectory fsd;
+    // 分段的文件名
+    private final String fileName;
+    private final boolean onlyRead;
+    // 每个数据文件的最大长度
+    private final long fileSize;
+    // 追加缓冲的大小与刷新间隔
+    private final int bufferSize;
+    private final long flushInterval;
+    // 以序号为下标的数据文件，删除了的为null；替换整个数组，不加锁的读也能看到完整的数组
+    private volatile InputOutData[] files;
+    // 正在追加的数据文件的序号
+    private volatile int activeId;
+    // 序号小于syncedId的数据文件都已经sync过
+    private int syncedId;
+    // 以序号为下标，每个数据文件里还有索引指向的itemData的字节数
+    private long[] liveBytes = new long[0];
+
+    private DataFiles(FSDirectory fsd, String fileName, Configuration conf) {
+
+        this.fsd = fsd;
+        this.fileName = fileName;
+        this.onlyRead = conf.isOnlyRead();
+        this.fileSize = conf.get(Configuration.DATA_FILE_SIZE);
+        this.bufferSize = conf.get(Configuration.WRITE_BUFFER_SIZE);
+        this.flushInterval = conf.get(Configuration.WRITE_FLUSH_INTERVAL);
+    }
+
+    /**
+     * 打开分段已有的所有数据文件，没有的话新建序号为0的数据文件
+     *
+     * @param fsd
+     * @param fileName 分段的文件名
+     * @param conf
+     * @return
+     * @throws IOException
+     */
+    static DataFiles open(FSDirectory fsd, String fileName, Configuration conf) throws IOException {
+
+        DataFiles dataFiles = new DataFiles(fsd, fileName, conf);
+
+        List<Integer> ids = new ArrayList<Integer>();
+        for (String name : fsd.fileNames()) {
+            int id = dataFiles.idOf(name);
+            if (id >= 0) {
+                ids.add(id);
+            }
+        }
+        if (ids.isEmpty()) {
+            fsd.touchFile(dataFiles.nameOf(0));
+            ids.add(0);
+        }
+
+        int last = 0;
+        for (int id : ids) {
+            last = Math.max(last, id);
+        }
+        if (!dataFiles.onlyRead) {
+            // 新建hint文件之后、新建数据文件之前崩溃的话，只留下没有数据文件的hint文件
+            HintFile.delete(fsd, dataFiles.hintNameOf(last + 1));
+        }
+        // 序号最大的是扩容或者compact写的数据文件的话，put追加到一个新的数据文件里，
+        // 重放checkpoint之后的数据的时候只读put的数据文件
+        if (dataFiles.hasHint(last) && !dataFiles.onlyRead) {
+            fsd.touchFile(dataFiles.nameOf(++last));
+            ids.add(last);
+        }
+        InputOutData[] files = new InputOutData[last + 1];
+        for (int id : ids) {
+            files[id] = fsd.createDataStream(dataFiles.nameOf(id), dataFiles.onlyRead);
+        }
+        files[last].bufferAppends(dataFiles.bufferSize, dataFiles.flushInterval);
+        dataFiles.files = files;
+        dataFiles.activeId = last;
+        return dataFiles;
+    }
+
+    // 序号为id的数据文件的文件名
+    String nameOf(int id) {
+
+        return id == 0 ? fileName + DATASUFFIX : fileName + "." + id + DATASUFFIX;
+    }
+
+    // 序号为id的数据文件的hint文件的文件名
+    private String hintNameOf(int id) {
+
+        return id == 0 ? fileName + HINTSUFFIX : fileName + "." + id + HINTSUFFIX;
+    }
+
+    /**
+     * 序号为id的数据文件是不是扩容或者compact写的，这些数据文件旁边有hint文件
+     *
+     * @param id
+     * @return
+     */
+    boolean hasHint(int id) {
+
+        return HintFile.exists(fsd, hintNameOf(id));
+    }
+
+    /**
+     * 序号为id的数据文件是扩容或者compact写到一半的：只有还没写完的hint文件
+     *
+     * @param id
+     * @return
+     */
+    boolean isUnfinished(int id) {
+
+        return HintFile.unfinished(fsd, hintNameOf(id));
+    }
+
+    /**
+     * 序号为id的数据文件的hint文件里记录的before, 没有写完的hint文件也读
+     *
+     * @param id
+     * @return 不是扩容或者compact写的数据文件返回-1
+     * @throws IOException
+     */
+    int hintBefore(int id) throws IOException {
+
+        return HintFile.before(fsd, hintNameOf(id));
+    }
+
+    /**
+     * 打开序号为id的数据文件的hint文件
+     *
+     * @param id
+     * @return 没有hint文件的话返回null
+     * @throws IOException
+     */
+    HintFile.Reader openHint(int id) throws IOException {
+
+        return HintFile.open(fsd, hintNameOf(id));
+    }
+
+    // 文件名对应的数据文件的序号，不是这个分段的数据文件返回-1
+    private int idOf(String name) {
+
+        if (name.equals(fileName + DATASUFFIX)) {
+            return 0;
+        }
+        String prefix = fileName + ".";
+        if (!name.startsWith(prefix) || !name.endsWith(DATASUFFIX)) {
+            return -1;
+        }
+        String id = name.substring(prefix.length(), name.length() - DATASUFFIX.length());
+        if (id.length() == 0 || id.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(id);
+    }
+
+    // 每个数据文件的最大长度
+    long fileSize() {
+
+        return fileSize;
+    }
+
+    /**
+     * 序号为id的数据文件
+     *
+     * @param id
+     * @return
+     * @throws IOException 数据文件已经被删除
+     */
+    InputOutData file(int id) throws IOException {
+
+        InputOutData[] snapshot = files;
+        if (id >= snapshot.length || snapshot[id] == null) {
+            throw new IOException("the data file:" + nameOf(id) + " has been removed");
+        }
+        return snapshot[id];
+    }
+
+    /**
+     * 现有的所有数据文件的序号，从小到大
+     *
+     * @return
+     */
+    int[] ids() {
+
+        InputOutData[] snapshot = files;
+        int[] ids = new int[snapshot.length];
+        int count = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] != null) {
+                ids[count++] = i;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    // 是否有数据文件里已经写入了数据
+    boolean hasData() {
+
+        for (InputOutData file : files) {
+            if (file != null && file.maxOffSet() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从address开始读取size个字节
+     *
+     * @param address itemData的地址
+     * @param size
+     * @return
+     * @throws IOException
+     */
+    byte[] seek(long address, int size) throws IOException {
+
+        return file(Slot.fileId(address)).seek(Slot.position(address), size);
+    }
+
+    /**
+     * address所在的数据文件的末尾
+     *
+     * @param address
+     * @return
+     * @throws IOException
+     */
+    long maxOffSet(long address) throws IOException {
+
+        return file(Slot.fileId(address)).maxOffSet();
+    }
+
+    /**
+     * 追加itemData, 调用时持有分段的锁；active数据文件写满了就换一个新的数据文件
+     *
+     * @param itemData
+     * @return itemData的地址
+     * @throws IOException
+     */
+    long append(byte[] itemData) throws IOException {
+
+        InputOutData active = files[activeId];
+        long offset = active.maxOffSet();
+        if (offset > 0 && offset + itemData.length > fileSize) {
+            roll();
+            active = files[activeId];
+            offset = 0;
+        }
+        long address = Slot.address(activeId, offset);
+        active.append(itemData);
+        return address;
+    }
+
+    // 正在追加的数据文件的序号
+    int activeId() {
+
+        return activeId;
+    }
+
+    /**
+     * 当前数据的末尾的地址，调用时持有分段的锁
+     *
+     * @return
+     */
+    long end() {
+
+        return Slot.address(activeId, files[activeId].maxOffSet());
+    }
+
+    /**
+     * 之后的put都追加到一个新的数据文件里，调用时持有分段的锁
+     *
+     * @return 新的active数据文件的序号
+     * @throws IOException
+     */
+    int roll() throws IOException {
+
+        InputOutData previous = files[activeId];
+        int id = create();
+        // 写满的数据文件不再追加，不需要缓冲
+        previous.bufferAppends(0, 0);
+        files[id].bufferAppends(bufferSize, flushInterval);
+        activeId = id;
+        return id;
+    }
+
+    /**
+     * 新建一个空的数据文件
+     *
+     * @return 新的数据文件的序号
+     * @throws IOException
+     */
+    synchronized int create() throws IOException {
+
+        int id = files.length;
+        // 崩溃之前可能留下了同一个序号的hint文件
+        HintFile.delete(fsd, hintNameOf(id));
+        return add(id);
+    }
+
+    /**
+     * 新建一个扩容或者compact写的空数据文件：先新建它的hint文件并把文件头sync到磁盘上，再新建数据文件；
+     * 写到一半崩溃的话，打开的时候也能认出它不是put的数据文件
+     *
+     * @param before 之后put的数据文件的序号
+     * @param hints  新数据文件的hint文件加到这里，写完数据之后调用{@link HintFile.Writer#finish()}
+     * @return 新的数据文件的序号
+     * @throws IOException
+     */
+    synchronized int createTarget(int before, List<HintFile.Writer> hints) throws IOException {
+
+        int id = files.length;
+        HintFile.delete(fsd, hintNameOf(id));
+        hints.add(HintFile.create(fsd, hintNameOf(id), before));
+        return add(id);
+    }
+
+    /**
+     * 新建compact写的数据文件，同时让put换到紧接着的一个新数据文件里，之后覆盖的数据都在序号更大的数据文件里；
+     * 调用时持有分段的锁
+     *
+     * @param hints 新数据文件的hint文件加到这里
+     * @return compact写的数据文件的序号
+     * @throws IOException
+     */
+    synchronized int createTargetAndRoll(List<HintFile.Writer> hints) throws IOException {
+
+        int id = createTarget(files.length + 1, hints);
+        roll();
+        return id;
+    }
+
+    // 新建序号为id的空数据文件
+    private int add(int id) throws IOException {
+
+        InputOutData[] newFiles = Arrays.copyOf(files, id + 1);
+        newFiles[id] = fsd.createDataStream(nameOf(id), false);
+        files = newFiles;
+        return id;
+    }
+
+    /**
+     * 序号为id的数据文件里有效数据的字节数增加delta, delta为负的时候减少
+     *
+     * @param id
+     * @param delta
+     */
+    synchronized void addLive(int id, long delta) {
+
+        if (id >= liveBytes.length) {
+            liveBytes = Arrays.copyOf(liveBytes, Math.max(id + 1, liveBytes.length << 1));
+        }
+        liveBytes[id] += delta;
+    }
+
+    /**
+     * 序号为id的数据文件里有效数据的字节数
+     *
+     * @param id
+     * @return
+     */
+    synchronized long liveBytes(int id) {
+
+        return id < liveBytes.length ? liveBytes[id] : 0;
+    }
+
+    // 清空有效数据的统计，重新统计之前调用
+    synchronized void resetLive() {
+
+        Arrays.fill(liveBytes, 0);
+    }
+
+    /**
+     * 截掉序号为id的数据文件length之后的数据
+     *
+     * @param id
+     * @param length
+     * @throws IOException
+     */
+    void truncate(int id, long length) throws IOException {
+
+        file(id).truncate(length);
+    }
+
+    /**
+     * 打开一个独立的文件读写入口, 用来顺序读序号为id的数据文件，不影响其他线程
+     *
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    InputOutData openReader(int id) throws IOException {
+
+        return fsd.createDataStream(nameOf(id), false);
+    }
+
+    /**
+     * 删除序号为id的数据文件
+     *
+     * @param id
+     */
+    synchronized void remove(int id) {
+
+        InputOutData[] newFiles = files.clone();
+        InputOutData file = newFiles[id];
+        if (file == null) {
+            return;
+        }
+        newFiles[id] = null;
+        files = newFiles;
+        if (id < liveBytes.length) {
+            liveBytes[id] = 0;
+        }
+        // 先删除数据文件，中途崩溃也不会留下没有hint文件的扩容或者compact写的数据文件；
+        // 留下的hint文件在新建同一个序号的数据文件时删除
+        file.close();
+        file.deleteFile();
+        HintFile.delete(fsd, hintNameOf(id));
+    }
+
+    /**
+     * 将active数据文件的追加缓冲写入文件
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+
+        files[activeId].flush();
+    }
+
+    /**
+     * 将上次sync以来追加过的数据文件刷到磁盘上
+     *
+     * @throws IOException
+     */
+    void sync() throws IOException {
+
+        InputOutData[] snapshot;
+        int from, to;
+        synchronized (this) {
+            snapshot = files;
+            from = syncedId;
+            to = activeId;
+        }
+        for (int id = from; id <= to; id++) {
+            if (snapshot[id] == null) {
+                continue;
+            }
+            try {
+                snapshot[id].sync();
+            } catch (IOException e) {
+                // sync的时候被删除了的数据文件不用再sync
+                if (files[id] != null) {
+                    throw e;
+                }
+            }
+        }
+        synchronized (this) {
+            syncedId = Math.max(syncedId, to);
+        }
+    }
+
+    /**
+     * 关闭所有的数据文件
+     */
+    void close() {
+
+        for (InputOutData file : files) {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.herDB.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个分段共用的数据文件sync：put之后把分段登记为脏的，由一次sync把所有脏的分段一起刷到磁盘上；
+ * <p>
+ * 组提交：等待sync的线程里第一个来的做leader，把当时登记的所有分段一起sync，
+ * 其余的线程等着这一批完成；leader在sync的时候新来的put登记到下一批，一次fsync分摊给一批put
+ *
+ * @author funeyu
+ */
+public final class GroupCommit {
+
+    // 定时sync的线程
+    private final static ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "herDB-syncer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // 等待sync的分段
+    private final Set<IndexSegment> dirty = new LinkedHashSet<IndexSegment>();
+    // 下一批, 现在登记的分段都在这一批里sync
+    private Batch pending = new Batch();
+    // 正在sync的那一批
+    private Batch running;
+    // 定时sync的任务
+    private ScheduledFuture<?> periodicTask;
+
+    private GroupCommit() {
+
+    }
+
+    /**
+     * 只在调用{@link #await(IndexSegment)}或者{@link #syncDirty()}的时候sync
+     *
+     * @return
+     */
+    public static GroupCommit create() {
+
+        return new GroupCommit();
+    }
+
+    /**
+     * 每隔interval毫秒在后台sync一次脏的分段，最多丢失interval毫秒内写入的数据
+     *
+     * @param interval sync的间隔(毫秒)
+     * @return
+     */
+    public static GroupCommit periodic(long interval) {
+
+        final GroupCommit groupCommit = new GroupCommit();
+        groupCommit.periodicTask = SYNCER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    groupCommit.syncDirty();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return groupCommit;
+    }
+
+    /**
+     * 登记segment有还没sync的数据
+     *
+     * @param segment
+     */
+    public synchronized void mark(IndexSegment segment) {
+
+        dirty.add(segment);
+    }
+
+    /**
+     * 登记segment并等到包含它的那一批sync完成，调用时不能持有分段的锁
+     *
+     * @param segment
+     * @throws IOException 包含segment的那一批sync失败
+     */
+    public void await(IndexSegment segment) throws IOException {
+
+        Batch batch;
+        synchronized (this) {
+            dirty.add(segment);
+            // 正在进行的那一批不包含刚登记的分段，要等下一批
+            batch = pending;
+        }
+        join(batch);
+    }
+
+    /**
+     * 将目前所有脏的分段sync到磁盘上
+     *
+     * @throws IOException
+     */
+    public void syncDirty() throws IOException {
+
+        Batch batch;
+        synchronized (this) {
+            if (!dirty.isEmpty()) {
+                batch = pending;
+            } else if (running != null) {
+                // 之前登记的分段都在正在进行的那一批里
+                batch = running;
+            } else {
+                return;
+            }
+        }
+        join(batch);
+    }
+
+    /**
+     * 停止定时sync，并把剩下的脏分段sync到磁盘上
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+
+        if (periodicTask != null) {
+            periodicTask.cancel(false);
+        }
+        syncDirty();
+    }
+
+    // 等到batch这一批sync完成，没有leader的话自己做leader
+    private void join(Batch batch) throws IOException {
+
+        List<IndexSegment> segments;
+        synchronized (this) {
+            // 没有leader的时候还没完成的只能是pending这一批
+            while (!batch.done && running != null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for sync");
+                }
+            }
+            if (batch.done) {
+                if (batch.error != null) {
+                    throw new IOException("sync of the batch failed", batch.error);
+                }
+                return;
+            }
+            running = pending;
+            pending = new Batch();
+            segments = new ArrayList<IndexSegment>(dirty);
+            dirty.clear();
+        }
+
+        IOException error = null;
+        for (IndexSegment segment : segments) {
+            try {
+                segment.syncData();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        synchronized (this) {
+            batch.error = error;
+            batch.done = true;
+            running = null;
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * 一批sync, 等待的线程拿着自己所在的那一批，只看这一批的结果，不受之前或者之后失败的批次影响
+     */
+    private final static class Batch {
+
+        // 访问时都持有GroupCommit的锁
+        private boolean done;
+        private IOException error;
+    }
+}
@@ -0,0 +1,262 @@
+package org.herDB.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.herDB.store.InputOutData;
+import org.herDB.utils.NumberPacker;
+
+/**
+ * 堆内存的slot表；slot的各个字段分别存在各自的基本类型的数组里(struct of arrays)，
+ * 查询slot的时候不会分配任何临时的字节数组。
+ * <p>
+ * slots按照每{@link #PAGE_SLOTS}个分成page，记录自上次flush以来修改过的page，
+ * flush的时候只把修改过的page写入索引文件。
+ *
+ * @author funeyu
+ */
+final class HeapIndexMemoryByte extends IndexMemoryByte {
+
+    // 每个page包含的slot数的位数
+    private final static int PAGE_SHIFT = 8;
+    // 每个page包含的slot数
+    final static int PAGE_SLOTS = 1 << PAGE_SHIFT;
+
+    // 每个slot的hashcode
+    private int[] hashCodes;
+    // 每个slot的buckethash
+    private int[] bucketHashes;
+    // 每个slot对应的itemData的地址：数据文件的序号与文件中的偏移
+    private long[] filePositions;
+    // 每个slot的后继slot的序号
+    private int[] attachedSlots;
+    // 每个slot对应的itemData的长度
+    private int[] lengths;
+    // 修改过的page的位图
+    private long[] dirtyPages;
+
+    HeapIndexMemoryByte(int capacity, int overflow, int current) {
+
+        super(capacity, overflow, current);
+        int slots = capacity + overflow;
+        this.hashCodes = new int[slots];
+        this.bucketHashes = new int[slots];
+        this.filePositions = new long[slots];
+        this.attachedSlots = new int[slots];
+        this.lengths = new int[slots];
+
+        int pages = (slots + PAGE_SLOTS - 1) >>> PAGE_SHIFT;
+        this.dirtyPages = new long[(pages + 63) >>> 6];
+        // 新建的slot表在索引文件里还没有内容，所有的page都要写入
+        for (int i = 0; i < pages; i++) {
+            markDirty(i << PAGE_SHIFT);
+        }
+    }
+
+    /**
+     * 通过索引文件的bytes 数组生成一个HeapIndexMemoryByte
+     *
+     * @param bytes
+     * @param resolver 旧版本的索引文件用来计算slot的buckethash
+     * @return
+     * @throws IOException
+     */
+    static HeapIndexMemoryByte fromBytes(byte[] bytes, BucketResolver resolver) throws IOException {
+
+        int version = versionOf(NumberPacker.unpackInt(bytes, 0), NumberPacker.unpackInt(bytes, 4));
+        if (version != VERSION) {
+            return fromLegacyBytes(bytes, version, resolver);
+        }
+
+        int capacity = NumberPacker.unpackInt(bytes, 8);
+        int current = NumberPacker.unpackInt(bytes, 12);
+        int overflow = NumberPacker.unpackInt(bytes, 16);
+
+        HeapIndexMemoryByte indexMemory = new HeapIndexMemoryByte(capacity, overflow, current);
+        for (int i = 0, length = capacity + overflow; i < length; i++) {
+            int offset = i * Slot.slotSize + HEADER_SIZE;
+            indexMemory.hashCodes[i] = Slot.getHashCode(bytes, offset);
+            indexMemory.bucketHashes[i] = Slot.getBucketHash(bytes, offset);
+            indexMemory.filePositions[i] = Slot.getFileInfo(bytes, offset);
+            indexMemory.lengths[i] = Slot.getLength(bytes, offset);
+            indexMemory.attachedSlots[i] = Slot.getAttachedSlot(bytes, offset);
+        }
+        // 与索引文件的内容一致，没有需要写入的page
+        Arrays.fill(indexMemory.dirtyPages, 0L);
+
+        return indexMemory;
+    }
+
+    /**
+     * 读取旧版本的索引文件，attachedSlots与bucket一样多；v1、v2的slot的fileid都为0, v1的length都为0,
+     * v1到v3的buckethash由resolver计算；
+     * 所有的page都保持修改过的状态，下次flush的时候整个索引文件改写成新的格式
+     *
+     * @param bytes
+     * @param version  索引文件的版本
+     * @param resolver
+     * @return
+     * @throws IOException
+     */
+    private static HeapIndexMemoryByte fromLegacyBytes(byte[] bytes, int version, BucketResolver resolver)
+            throws IOException {
+
+        int headerSize = headerSizeOf(version);
+        int capacity = NumberPacker.unpackInt(bytes, headerSize - 8);
+        int current = NumberPacker.unpackInt(bytes, headerSize - 4);
+        int slotSize = Slot.sizeOf(version);
+
+        HeapIndexMemoryByte indexMemory = new HeapIndexMemoryByte(capacity, capacity, current);
+        byte[] slot = new byte[Slot.slotSize];
+        for (int i = 0, length = capacity << 1; i < length; i++) {
+            Slot.upgrade(version, bytes, i * slotSize + headerSize, slot, 0, resolver);
+            indexMemory.hashCodes[i] = Slot.getHashCode(slot, 0);
+            indexMemory.bucketHashes[i] = Slot.getBucketHash(slot, 0);
+            indexMemory.filePositions[i] = Slot.getFileInfo(slot, 0);
+            indexMemory.lengths[i] = Slot.getLength(slot, 0);
+            indexMemory.attachedSlots[i] = Slot.getAttachedSlot(slot, 0);
+        }
+        return indexMemory;
+    }
+
+    @Override
+    public int getHashCode(int index) {
+
+        return hashCodes[index];
+    }
+
+    @Override
+    public int getBucketHash(int index) {
+
+        return bucketHashes[index];
+    }
+
+    @Override
+    public long getFilePosition(int index) {
+
+        return filePositions[index];
+    }
+
+    @Override
+    public int getAttachedSlot(int index) {
+
+        return attachedSlots[index];
+    }
+
+    @Override
+    public int getLength(int index) {
+
+        return lengths[index];
+    }
+
+    @Override
+    public void setAttachedSlot(int preIndex, int thisIndex) {
+
+        attachedSlots[preIndex] = thisIndex;
+        markDirty(preIndex);
+    }
+
+    @Override
+    public void replaceSlot(int hc, int bh, long fp, int len, int as, int index) {
+
+        hashCodes[index] = hc;
+        bucketHashes[index] = bh;
+        filePositions[index] = fp;
+        lengths[index] = len;
+        attachedSlots[index] = as;
+        markDirty(index);
+    }
+
+    // 标记slot所在的page已修改
+    private void markDirty(int index) {
+
+        int page = index >>> PAGE_SHIFT;
+        dirtyPages[page >>> 6] |= 1L << (page & 63);
+    }
+
+    // 返回从page开始(包含)的第一个修改过的page, 没有的话返回-1
+    private int nextDirtyPage(int page) {
+
+        int word = page >>> 6;
+        if (word >= dirtyPages.length) {
+            return -1;
+        }
+
+        long bits = dirtyPages[word] & (-1L << (page & 63));
+        while (bits == 0) {
+            if (++word == dirtyPages.length) {
+                return -1;
+            }
+            bits = dirtyPages[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * 在锁里把修改过的page与文件头拷贝出来，清掉修改标记；写的时候先写入{@link IndexJournal}并fsync,
+     * 再原地写入索引文件, 中途崩溃也能保证索引文件是一个完整的checkpoint
+     */
+    @Override
+    public Flush prepareFlush() {
+
+        final byte[] header = header(capacity, current, overflow);
+        final long[] dirty = dirtyPages.clone();
+        final List<byte[]> pages = new ArrayList<byte[]>();
+        final List<Long> offsets = new ArrayList<Long>();
+        int slots = slots();
+        for (int p = nextDirtyPage(0); p >= 0; p = nextDirtyPage(p + 1)) {
+            int first = p << PAGE_SHIFT;
+            int count = Math.min(PAGE_SLOTS, slots - first);
+            byte[] page = new byte[count * Slot.slotSize];
+            for (int i = 0; i < count; i++) {
+                Slot.write(hashCodes[first + i], bucketHashes[first + i], filePositions[first + i],
+                        lengths[first + i], attachedSlots[first + i], page, i * Slot.slotSize);
+            }
+            pages.add(page);
+            offsets.add(HEADER_SIZE + (long) first * Slot.slotSize);
+        }
+        Arrays.fill(dirtyPages, 0L);
+
+        return new Flush() {
+            @Override
+            public void write(InputOutData fsIndex, InputOutData fsJournal) throws IOException {
+
+                IndexJournal journal = IndexJournal.begin(fsJournal);
+                journal.add(0, header, HEADER_SIZE);
+                for (int i = 0; i < pages.size(); i++) {
+                    journal.add(offsets.get(i), pages.get(i), pages.get(i).length);
+                }
+                journal.commit();
+
+                IndexJournal.replay(fsJournal, fsIndex);
+            }
+
+            @Override
+            public void abort() {
+
+                // 释放之后或者替换掉的索引不用再写
+                if (dirtyPages == null) {
+                    return;
+                }
+                for (int i = 0; i < dirty.length; i++) {
+                    dirtyPages[i] |= dirty[i];
+                }
+            }
+        };
+    }
+
+    // to do: check it's fine or not to call system.gc() 
+    @Override
+    public void release() {
+
+        hashCodes = null;
+        bucketHashes = null;
+        filePositions = null;
+        attachedSlots = null;
+        lengths = null;
+        dirtyPages = null;
+        System.gc();
+    }
+}
@@ -0,0 +1,353 @@
+package org.herDB.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.herDB.store.FSDirectory;
+import org.herDB.store.InputOutData;
+import org.herDB.utils.NumberPacker;
+
+/**
+ * 扩容与compact新写的数据文件旁边的hint文件，按写入顺序记录数据文件里每个有效itemData的索引信息；
+ * 重建索引与布隆过滤器的时候只要顺序读小得多的hint文件，不用扫描整个数据文件
+ * <pre>
+ * 文件格式： MAGIC(4字节) + before(4字节) + records
+ * record格式： keyHash(8字节) + position(8字节) + length(4字节) + keylength(4字节) + key
+ * </pre>
+ * 扩容与compact新写的数据文件的序号比之后put的数据文件大，不能按序号判断新旧；
+ * before表示数据文件里的itemData都比序号大于等于before的数据文件里put的数据旧
+ * <p>
+ * 写完之后先sync再从临时文件改名，只有完整的hint文件才会被读到；临时文件在新建数据文件之前就写好文件头并sync，
+ * 写数据文件的途中崩溃的话，打开时也能从临时文件认出它不是put的数据文件，并读到它的before
+ *
+ * @author funeyu
+ */
+final class HintFile {
+
+    // hint文件的标识"HINT"
+    private final static int MAGIC = 0x48494E54;
+    // 文件头的长度：MAGIC(4字节) + before(4字节)
+    private final static int HEADER_SIZE = 8;
+    // record里key之前的长度：keyHash(8字节) + position(8字节) + length(4字节) + keylength(4字节)
+    private final static int RECORD_HEADER_SIZE = 24;
+    // 读写的缓冲块大小
+    private final static int BLOCK_SIZE = 1 << 16;
+    // 临时文件的后缀名
+    private final static String TEMFILESUFFIX = ".tep";
+
+    private HintFile() {
+
+    }
+
+    /**
+     * 新建一个hint文件，先写到临时文件里；文件头马上sync到磁盘上
+     *
+     * @param fsd
+     * @param name   hint文件的文件名
+     * @param before 之后put的数据文件的序号
+     * @return
+     * @throws IOException
+     */
+    static Writer create(FSDirectory fsd, String name, int before) throws IOException {
+
+        byte[] header = new byte[HEADER_SIZE];
+        NumberPacker.packInt(MAGIC, header, 0);
+        NumberPacker.packInt(before, header, 4);
+        InputOutData out = fsd.createDataStream(name + TEMFILESUFFIX, false);
+        try {
+            out.truncate(0);
+            out.append(header);
+            out.sync();
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        return new Writer(fsd, name, out);
+    }
+
+    /**
+     * 打开一个已经写完的hint文件
+     *
+     * @param fsd
+     * @param name hint文件的文件名
+     * @return 没有hint文件或者文件头不对的话返回null
+     * @throws IOException
+     */
+    static Reader open(FSDirectory fsd, String name) throws IOException {
+
+        if (!fsd.isExsit(name)) {
+            return null;
+        }
+        InputOutData in = fsd.createDataStream(name, true);
+        if (in.maxOffSet() < HEADER_SIZE) {
+            in.close();
+            return null;
+        }
+        byte[] header = in.seek(0, HEADER_SIZE);
+        if (NumberPacker.unpackInt(header, 0) != MAGIC) {
+            in.close();
+            return null;
+        }
+        return new Reader(in, NumberPacker.unpackInt(header, 4));
+    }
+
+    /**
+     * 数据文件是不是扩容或者compact写的：有hint文件或者还没有写完的hint文件
+     *
+     * @param fsd
+     * @param name hint文件的文件名
+     * @return
+     */
+    static boolean exists(FSDirectory fsd, String name) {
+
+        return fsd.isExsit(name) || fsd.isExsit(name + TEMFILESUFFIX);
+    }
+
+    /**
+     * 是否只有还没写完的hint文件：写数据文件的途中崩溃了
+     *
+     * @param fsd
+     * @param name hint文件的文件名
+     * @return
+     */
+    static boolean unfinished(FSDirectory fsd, String name) {
+
+        return !fsd.isExsit(name) && fsd.isExsit(name + TEMFILESUFFIX);
+    }
+
+    /**
+     * 读取文件头里的before, 没有写完的hint文件也读
+     *
+     * @param fsd
+     * @param name hint文件的文件名
+     * @return 没有hint文件或者文件头不完整的话返回-1
+     * @throws IOException
+     */
+    static int before(FSDirectory fsd, String name) throws IOException {
+
+        String file = fsd.isExsit(name) ? name : name + TEMFILESUFFIX;
+        if (!fsd.isExsit(file)) {
+            return -1;
+        }
+        InputOutData in = fsd.createDataStream(file, true);
+        try {
+            if (in.maxOffSet() < HEADER_SIZE) {
+                return -1;
+            }
+            byte[] header = in.seek(0, HEADER_SIZE);
+            return NumberPacker.unpackInt(header, 0) == MAGIC ? NumberPacker.unpackInt(header, 4) : -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 删除hint文件与没有写完的临时文件
+     *
+     * @param fsd
+     * @param name hint文件的文件名
+     */
+    static void delete(FSDirectory fsd, String name) {
+
+        fsd.fileOf(name).delete();
+        fsd.fileOf(name + TEMFILESUFFIX).delete();
+    }
+
+    // 将long写入bytes从start开始的8个字节, keyHash可能为负数，不能用NumberPacker的varint
+    private static void packLong(long value, byte[] bytes, int start) {
+
+        NumberPacker.packInt((int) (value >>> 32), bytes, start);
+        NumberPacker.packInt((int) value, bytes, start + 4);
+    }
+
+    // 从bytes的start位置开始读取8个字节转换成long
+    private static long unpackLong(byte[] bytes, int start) {
+
+        return (long) NumberPacker.unpackInt(bytes, start) << 32 | NumberPacker.unpackInt(bytes, start + 4) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 顺序写入record, 攒满一个缓冲块再写入临时文件
+     */
+    static final class Writer {
+
+        private final FSDirectory fsd;
+        private final String name;
+        private final InputOutData out;
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int position;
+
+        private Writer(FSDirectory fsd, String name, InputOutData out) {
+
+            this.fsd = fsd;
+            this.name = name;
+            this.out = out;
+        }
+
+        /**
+         * 添加一个itemData的索引信息
+         *
+         * @param keyHash  key的64位hash值
+         * @param key
+         * @param position itemData在数据文件里的偏移
+         * @param length   itemData的长度
+         * @throws IOException
+         */
+        void add(long keyHash, byte[] key, long position, int length) throws IOException {
+
+            int size = RECORD_HEADER_SIZE + key.length;
+            if (this.position + size > block.length) {
+                flushBlock();
+                if (size > block.length) {
+                    block = new byte[size];
+                }
+            }
+            packLong(keyHash, block, this.position);
+            packLong(position, block, this.position + 8);
+            NumberPacker.packInt(length, block, this.position + 16);
+            NumberPacker.packInt(key.length, block, this.position + 20);
+            System.arraycopy(key, 0, block, this.position + RECORD_HEADER_SIZE, key.length);
+            this.position += size;
+        }
+
+        /**
+         * 写完所有的record: sync之后改名为正式的hint文件
+         *
+         * @throws IOException
+         */
+        void finish() throws IOException {
+
+            try {
+                flushBlock();
+                out.sync();
+            } finally {
+                out.close();
+            }
+            if (!fsd.rename(name + TEMFILESUFFIX, name)) {
+                throw new IOException("can not rename the hint file:" + name);
+            }
+        }
+
+        /**
+         * 放弃没有写完的hint文件，只关闭文件；临时文件标记着数据文件不是put写的，
+         * 由{@link DataFiles#remove(int)}在删除数据文件之后再删除
+         */
+        void abandon() {
+
+            out.close();
+        }
+
+        private void flushBlock() throws IOException {
+
+            if (position > 0) {
+                out.append(Arrays.copyOf(block, position));
+                position = 0;
+            }
+        }
+    }
+
+    /**
+     * 顺序读取record; 每次{@link #next()}之后读取当前record的各个字段
+     */
+    static final class Reader {
+
+        private final InputOutData in;
+        private final int before;
+        // 下一次从文件里读取的偏移
+        private long offset = HEADER_SIZE;
+        private byte[] block = new byte[0];
+        private int position;
+
+        private long keyHash;
+        private byte[] key;
+        private long itemPosition;
+        private int length;
+
+        private Reader(InputOutData in, int before) {
+
+            this.in = in;
+            this.before = before;
+        }
+
+        // 数据文件里的itemData都比序号大于等于before的数据文件里put的数据旧
+        int before() {
+
+            return before;
+        }
+
+        /**
+         * 读取下一个record
+         *
+         * @return 没有更多的record返回false
+         * @throws IOException 文件不完整
+         */
+        boolean next() throws IOException {
+
+            if (!fill(RECORD_HEADER_SIZE)) {
+                return false;
+            }
+            keyHash = unpackLong(block, position);
+            itemPosition = unpackLong(block, position + 8);
+            length = NumberPacker.unpackInt(block, position + 16);
+            int keyLength = NumberPacker.unpackInt(block, position + 20);
+            if (keyLength < 0) {
+                throw new IOException("the hint file is broken");
+            }
+            fill(RECORD_HEADER_SIZE + keyLength);
+            key = Arrays.copyOfRange(block, position + RECORD_HEADER_SIZE, position + RECORD_HEADER_SIZE + keyLength);
+            position += RECORD_HEADER_SIZE + keyLength;
+            return true;
+        }
+
+        long keyHash() {
+
+            return keyHash;
+        }
+
+        byte[] key() {
+
+            return key;
+        }
+
+        // itemData在数据文件里的偏移
+        long position() {
+
+            return itemPosition;
+        }
+
+        // itemData的长度
+        int length() {
+
+            return length;
+        }
+
+        void close() {
+
+            in.close();
+        }
+
+        // 保证缓冲块里从position开始至少有size个字节，文件已经读完的话返回false
+        private boolean fill(int size) throws IOException {
+
+            int remaining = block.length - position;
+            if (remaining >= size) {
+                return true;
+            }
+            long left = in.maxOffSet() - offset;
+            if (remaining + left < size) {
+                if (remaining + left == 0) {
+                    return false;
+                }
+                throw new IOException("the hint file is broken");
+            }
+            int read = (int) Math.min(Math.max(BLOCK_SIZE, size) - remaining, left);
+            byte[] next = new byte[remaining + read];
+            System.arraycopy(block, position, next, 0, remaining);
+            System.arraycopy(in.seek(offset, read), 0, next, remaining, read);
+            offset += read;
+            block = next;
+            position = 0;
+            return true;
+        }
+    }
+}
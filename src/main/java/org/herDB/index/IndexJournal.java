@@ -0,0 +1,158 @@
+package org.herDB.index;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.herDB.store.InputOutData;
+import org.herDB.utils.Bytes;
+import org.herDB.utils.NumberPacker;
+
+/**
+ * 索引文件checkpoint的redo日志；checkpoint时先把要改写的索引文件片段全部写入日志并fsync，
+ * 然后再原地写入索引文件，最后清空日志。
+ * <pre>
+ * 日志格式: record... | trailer
+ * record:   offset(8字节) + length(4字节) + data(length字节)
+ * trailer:  MAGIC(4字节) + record个数(4字节) + 所有record的crc32(8字节)
+ * </pre>
+ * 写日志的过程中崩溃, trailer校验不通过, 索引文件还是上一次的checkpoint;
+ * 写索引文件的过程中崩溃，打开时用完整的日志重做一遍即可，所以索引文件总是一个完整的checkpoint。
+ *
+ * @author funeyu
+ */
+final class IndexJournal {
+
+    private final static int MAGIC = 0x4A524E4C;
+    // record头的长度：offset(8字节) + length(4字节)
+    private final static int RECORD_HEADER = 12;
+    // trailer的长度
+    private final static int TRAILER_SIZE = 16;
+
+    private final InputOutData fsJournal;
+    private final CRC32 crc = new CRC32();
+    private int records;
+
+    private IndexJournal(InputOutData fsJournal) {
+
+        this.fsJournal = fsJournal;
+    }
+
+    /**
+     * 清空日志文件，开始新的一次checkpoint
+     *
+     * @param fsJournal
+     * @return
+     * @throws IOException
+     */
+    static IndexJournal begin(InputOutData fsJournal) throws IOException {
+
+        fsJournal.truncate(0);
+        return new IndexJournal(fsJournal);
+    }
+
+    /**
+     * 添加一条record: 索引文件offset处要写入data的前length个字节
+     *
+     * @param offset
+     * @param data
+     * @param length
+     * @throws IOException
+     */
+    void add(long offset, byte[] data, int length) throws IOException {
+
+        byte[] record = new byte[RECORD_HEADER + length];
+        NumberPacker.packInt((int) (offset >>> 32), record, 0);
+        NumberPacker.packInt((int) offset, record, 4);
+        NumberPacker.packInt(length, record, 8);
+        System.arraycopy(data, 0, record, RECORD_HEADER, length);
+
+        crc.update(record, 0, record.length);
+        records++;
+        fsJournal.append(record);
+    }
+
+    /**
+     * 写入trailer并fsync，此后日志就是完整的
+     *
+     * @throws IOException
+     */
+    void commit() throws IOException {
+
+        byte[] trailer = new byte[TRAILER_SIZE];
+        NumberPacker.packInt(MAGIC, trailer, 0);
+        NumberPacker.packInt(records, trailer, 4);
+        long checksum = crc.getValue();
+        NumberPacker.packInt((int) (checksum >>> 32), trailer, 8);
+        NumberPacker.packInt((int) checksum, trailer, 12);
+
+        fsJournal.append(trailer);
+        fsJournal.sync();
+    }
+
+    /**
+     * 日志完整的话将日志里的record全部写入索引文件并fsync，最后清空日志
+     *
+     * @param fsJournal
+     * @param fsIndex
+     * @return 重做了日志返回true，日志为空或者不完整返回false
+     * @throws IOException
+     */
+    static boolean replay(InputOutData fsJournal, InputOutData fsIndex) throws IOException {
+
+        long length = fsJournal.maxOffSet();
+        boolean complete = length >= TRAILER_SIZE && verify(fsJournal, length - TRAILER_SIZE);
+
+        if (complete) {
+            long position = 0;
+            while (position < length - TRAILER_SIZE) {
+                byte[] header = fsJournal.seek(position, RECORD_HEADER);
+                int size = NumberPacker.unpackInt(header, 8);
+                fsIndex.write(offsetOf(header), fsJournal.seek(position + RECORD_HEADER, size));
+                position += RECORD_HEADER + size;
+            }
+            fsIndex.sync();
+        }
+
+        if (length > 0) {
+            fsJournal.truncate(0);
+            fsJournal.sync();
+        }
+        return complete;
+    }
+
+    // 校验record的个数与crc32是否与trailer一致
+    private static boolean verify(InputOutData fsJournal, long end) throws IOException {
+
+        byte[] trailer = fsJournal.seek(end, TRAILER_SIZE);
+        if (NumberPacker.unpackInt(trailer, 0) != MAGIC) {
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        int records = 0;
+        long position = 0;
+        while (position < end) {
+            if (end - position < RECORD_HEADER) {
+                return false;
+            }
+            byte[] header = fsJournal.seek(position, RECORD_HEADER);
+            int size = NumberPacker.unpackInt(header, 8);
+            if (size < 0 || end - position - RECORD_HEADER < size) {
+                return false;
+            }
+            crc.update(Bytes.join(header, fsJournal.seek(position + RECORD_HEADER, size)));
+            records++;
+            position += RECORD_HEADER + size;
+        }
+
+        long checksum = ((long) NumberPacker.unpackInt(trailer, 8) << 32)
+                | (NumberPacker.unpackInt(trailer, 12) & 0xFFFFFFFFL);
+        return records == NumberPacker.unpackInt(trailer, 4) && checksum == crc.getValue();
+    }
+
+    private static long offsetOf(byte[] header) {
+
+        return ((long) NumberPacker.unpackInt(header, 0) << 32)
+                | (NumberPacker.unpackInt(header, 4) & 0xFFFFFFFFL);
+    }
+}
@@ -1,73 +1,137 @@
 package org.herDB.index;
 
-import org.herDB.utils.NumberPacker;
+import java.io.File;
+import java.io.IOException;
 
-import java.util.Arrays;
+import org.herDB.store.InputOutData;
+import org.herDB.utils.NumberPacker;
 
 
 /**
- * 内存字节数组的类；其字节数组长度为： capacity * 2 * SlotSize + 8
+ * 内存索引的slot表；具体slot的存储方式由子类决定：
+ * <ul>
+ * <li>{@link HeapIndexMemoryByte}: slot存放在堆内存的基本类型数组里</li>
+ * <li>{@link MappedIndexMemoryByte}: 直接将.index文件映射到内存，在文件上原地读写</li>
+ * </ul>
+ * <pre>
+ * 索引文件的格式为： MAGIC(4字节) + VERSION(4字节) + capacity(4字节) + current(4字节) + overflow(4字节)
+ *                  + slots((capacity + overflow) * SlotSize)
+ * v2、v3、v4版本的文件头没有overflow，slots(capacity * 2 * V2_SLOT_SIZE, V3_SLOT_SIZE或者SlotSize)
+ * v1版本的格式为： capacity(4字节) + current(4字节) + slots(capacity * 2 * LEGACY_SLOT_SIZE)
+ * </pre>
+ * 前capacity个slot为bucket，之后的overflow个slot为attachedSlots; 旧版本的attachedSlots与bucket一样多。
+ * 打开旧版本的索引文件时转成新的格式，v1、v2的slot的fileid为0, v1的slot里的length为0(未知)，
+ * v1到v3的slot的buckethash由{@link BucketResolver}读取key计算
  *
  * @author funeyu
  */
-public final class IndexMemoryByte {
+public abstract class IndexMemoryByte {
+
+    // 索引文件的标识"HERD"; 旧版本的文件开头是capacity, 为2^n, 不会与之相同
+    final static int MAGIC = 0x48455244;
+    // 索引文件格式的版本
+    final static int VERSION = 5;
+    // 索引文件头的长度：MAGIC(4字节) + VERSION(4字节) + capacity(4字节) + current(4字节) + overflow(4字节)
+    public final static int HEADER_SIZE = 20;
+    // v2到v4版本索引文件头的长度：MAGIC(4字节) + VERSION(4字节) + capacity(4字节) + current(4字节)
+    public final static int V4_HEADER_SIZE = 16;
+    // v1版本索引文件头的长度：capacity(4字节) + current(4字节)
+    public final static int LEGACY_HEADER_SIZE = 8;
 
-    // 内存索引的全部字节数据 
-    private byte[] bytes;
     // 这个值用来与做&hash计算得出index, 为2^n
-    private int capacity;
+    protected int capacity;
     // 标记attachedSlots里用到哪一个attachedSlot
-    private int current;
+    protected int current;
+    // attachedSlots的个数
+    protected int overflow;
+    // 不为空的bucket个数，不写入索引文件，打开的时候由countChains()统计
+    private int usedBuckets;
+    // 最长的slot链的长度
+    private int longestChain;
 
-    private IndexMemoryByte(int capacity, int current) {
+    protected IndexMemoryByte(int capacity, int overflow, int current) {
 
         this.capacity = capacity;
+        this.overflow = overflow;
         this.current = current;
-        this.bytes = new byte[(capacity << 1) * Slot.slotSize + 8];
     }
 
-    private IndexMemoryByte(int capacity, int current, byte[] bytes) {
+    /**
+     * 初始一个空的IndexMemory的容器，attachedSlots与bucket一样多;
+     *
+     * @param capacity
+     * @param current
+     * @return
+     */
+    public static IndexMemoryByte init(int capacity, int current) {
 
-        this.capacity = capacity;
-        this.current = current;
-        this.bytes = bytes;
+        return new HeapIndexMemoryByte(capacity, capacity, current);
     }
 
     /**
      * 初始一个空的IndexMemory的容器;
      *
      * @param capacity
+     * @param overflow attachedSlots的个数
      * @param current
      * @return
      */
-    public static IndexMemoryByte init(int capacity, int current) {
+    public static IndexMemoryByte init(int capacity, int overflow, int current) {
 
-        return new IndexMemoryByte(capacity, current);
+        return new HeapIndexMemoryByte(capacity, overflow, current);
     }
 
     /**
-     * 通过bytes 数组生成一个IndexMemoryByte
+     * 通过索引文件的bytes 数组生成一个IndexMemoryByte
      *
      * @param bytes
+     * @param resolver 旧版本的索引文件用来计算slot的buckethash
+     * @return
+     * @throws IOException
+     */
+    public static IndexMemoryByte open(byte[] bytes, BucketResolver resolver) throws IOException {
+
+        return HeapIndexMemoryByte.fromBytes(bytes, resolver);
+    }
+
+    /**
+     * 新建一个映射到file的空的IndexMemory，file原有的内容会被清掉
+     *
+     * @param file     索引文件
+     * @param capacity
      * @return
+     * @throws IOException
      */
-    public static IndexMemoryByte open(byte[] bytes) {
+    public static IndexMemoryByte map(File file, int capacity) throws IOException {
 
-        int capacity = NumberPacker.unpackInt(new byte[]{
-                bytes[0],
-                bytes[1],
-                bytes[2],
-                bytes[3]
-        });
+        return MappedIndexMemoryByte.create(file, capacity, capacity);
+    }
 
-        int current = NumberPacker.unpackInt(new byte[]{
-                bytes[5],
-                bytes[6],
-                bytes[7],
-                bytes[8]
-        });
+    /**
+     * 新建一个映射到file的空的IndexMemory，file原有的内容会被清掉
+     *
+     * @param file     索引文件
+     * @param capacity
+     * @param overflow attachedSlots的个数
+     * @return
+     * @throws IOException
+     */
+    public static IndexMemoryByte map(File file, int capacity, int overflow) throws IOException {
 
-        return new IndexMemoryByte(capacity, current, bytes);
+        return MappedIndexMemoryByte.create(file, capacity, overflow);
+    }
+
+    /**
+     * 将已有的索引文件映射到内存，不用将整个文件读到堆内存里
+     *
+     * @param file     索引文件
+     * @param resolver 旧版本的索引文件用来计算slot的buckethash
+     * @return
+     * @throws IOException
+     */
+    public static IndexMemoryByte map(File file, BucketResolver resolver) throws IOException {
+
+        return MappedIndexMemoryByte.open(file, resolver);
     }
 
     /**
@@ -78,8 +142,45 @@ public final class IndexMemoryByte {
      */
     public byte[] slotBytes(int index) {
 
-        return Arrays.copyOfRange(bytes, index * Slot.slotSize + 8,
-                (index + 1) * Slot.slotSize + 8);
+        return Slot.generate(getHashCode(index), getBucketHash(index), getFilePosition(index), getLength(index),
+                getAttachedSlot(index));
+    }
+
+    /**
+     * 生成索引文件头
+     *
+     * @param capacity
+     * @param current
+     * @param overflow
+     * @return
+     */
+    static byte[] header(int capacity, int current, int overflow) {
+
+        byte[] header = new byte[HEADER_SIZE];
+        NumberPacker.packInt(MAGIC, header, 0);
+        NumberPacker.packInt(VERSION, header, 4);
+        NumberPacker.packInt(capacity, header, 8);
+        NumberPacker.packInt(current, header, 12);
+        NumberPacker.packInt(overflow, header, 16);
+        return header;
+    }
+
+    /**
+     * 根据索引文件开头的两个int判断文件的版本
+     *
+     * @param firstInt  MAGIC, v1版本为capacity
+     * @param secondInt VERSION
+     * @return
+     */
+    static int versionOf(int firstInt, int secondInt) {
+
+        return firstInt != MAGIC ? 1 : secondInt;
+    }
+
+    // 各个版本的索引文件头的长度
+    static int headerSizeOf(int version) {
+
+        return version == 1 ? LEGACY_HEADER_SIZE : version < 5 ? V4_HEADER_SIZE : HEADER_SIZE;
     }
 
     /**
@@ -99,10 +200,15 @@ public final class IndexMemoryByte {
      * @param index: 为slot的索引值
      * @return
      */
-    public int getHashCode(int index) {
+    public abstract int getHashCode(int index);
 
-        return Slot.getHashCode(slotBytes(index));
-    }
+    /**
+     * 根据index获取key的hash值里用来计算bucket的32位
+     *
+     * @param index
+     * @return
+     */
+    public abstract int getBucketHash(int index);
 
     /**
      * 根据index获取索引中,value在文件中偏移
@@ -110,10 +216,7 @@ public final class IndexMemoryByte {
      * @param index
      * @return
      */
-    public long getFilePosition(int index) {
-
-        return Slot.getFileInfo(slotBytes(index));
-    }
+    public abstract long getFilePosition(int index);
 
     /**
      * 根据index获取与之相邻的后继Slot的索引值
@@ -121,10 +224,15 @@ public final class IndexMemoryByte {
      * @param index
      * @return
      */
-    public int getAttachedSlot(int index) {
+    public abstract int getAttachedSlot(int index);
 
-        return Slot.getAttachedSlot(slotBytes(index));
-    }
+    /**
+     * 根据index获取索引中itemData的长度，为0的时候长度未知
+     *
+     * @param index
+     * @return
+     */
+    public abstract int getLength(int index);
 
     /**
      * 设置preIndex的attachedSlot序号为：thisIndex
@@ -132,29 +240,19 @@ public final class IndexMemoryByte {
      * @param preIndex
      * @param thisIndex
      */
-    public void setAttachedSlot(int preIndex, int thisIndex) {
-
-        byte[] attachedSlotIndex = NumberPacker.packInt(thisIndex);
-        for (int i = 0; i < 4; i++) {
-            bytes[preIndex * Slot.slotSize + 8 + 9 + i] = attachedSlotIndex[i];
-        }
-    }
+    public abstract void setAttachedSlot(int preIndex, int thisIndex);
 
     /**
-     * 将序号为index的slot的数据信息改成新的哈希，文件指针， 后继slot
+     * 将序号为index的slot的数据信息改成新的哈希，文件指针，itemData长度， 后继slot
      *
      * @param hc    hashCode
+     * @param bh    bucketHash
      * @param fp    filePosition
+     * @param len   itemData的长度
      * @param as    attachedSlot
      * @param index
      */
-    public void replaceSlot(int hc, long fp, int as, int index) {
-
-        byte[] slotBytes = Slot.generate(hc, fp, as);
-        for (int i = 0, length = slotBytes.length; i < length; i++) {
-            bytes[index * Slot.slotSize + 8 + i] = slotBytes[i];
-        }
-    }
+    public abstract void replaceSlot(int hc, int bh, long fp, int len, int as, int index);
 
     // 返回内存索引的capacity
     public int capacity() {
@@ -162,10 +260,99 @@ public final class IndexMemoryByte {
         return capacity;
     }
 
+    // 返回attachedSlots已经用掉的slot个数
+    public int current() {
+
+        return current;
+    }
+
+    // 返回attachedSlots的个数
+    public int overflow() {
+
+        return overflow;
+    }
+
+    // 返回slot的总数：bucket与attachedSlots
+    public int slots() {
+
+        return capacity + overflow;
+    }
+
+    // 返回索引里key的个数：每个不为空的bucket与用掉的attachedSlot都是一个key
+    public int entries() {
+
+        return usedBuckets + current;
+    }
+
+    // 返回不为空的bucket个数
+    public int usedBuckets() {
+
+        return usedBuckets;
+    }
+
+    // 返回最长的slot链的长度
+    public int longestChain() {
+
+        return longestChain;
+    }
+
+    // 一个空的bucket写入了slot
+    void bucketUsed() {
+
+        usedBuckets++;
+    }
+
+    // slot链上追加了一个slot，length为追加之后的长度
+    void chainGrew(int length) {
+
+        if (length > longestChain) {
+            longestChain = length;
+        }
+    }
+
+    /**
+     * 遍历所有的bucket统计不为空的bucket个数与最长的slot链；打开已有的索引文件之后调用
+     */
+    void countChains() {
+
+        usedBuckets = 0;
+        longestChain = 0;
+        for (int bucket = 0; bucket < capacity; bucket++) {
+            if (getHashCode(bucket) == 0) {
+                continue;
+            }
+            usedBuckets++;
+            int length = 1;
+            for (int index = bucket; (index = getAttachedSlot(index)) != 0; ) {
+                length++;
+            }
+            chainGrew(length);
+        }
+    }
+
+    /**
+     * 拷贝source里所有用到的slot与统计，slot的序号不变；source的bucket个数要相同, attachedSlots不能更多
+     *
+     * @param source
+     */
+    void copyFrom(IndexMemoryByte source) {
+
+        for (int index = 0, end = capacity + source.current; index < end; index++) {
+            if (index < capacity && source.getHashCode(index) == 0) {
+                continue;
+            }
+            replaceSlot(source.getHashCode(index), source.getBucketHash(index), source.getFilePosition(index),
+                    source.getLength(index), source.getAttachedSlot(index), index);
+        }
+        current = source.current;
+        usedBuckets = source.usedBuckets;
+        longestChain = source.longestChain;
+    }
+
     // 将current自增
     public void incCurrent() throws IndexOutofRangeException {
 
-        if (++current > capacity) {
+        if (++current > overflow) {
             throw new IndexOutofRangeException();
         }
 
@@ -202,39 +389,50 @@ public final class IndexMemoryByte {
         return oldIndex + capacity;
     }
 
-    // 返回该内存索引的所有数据
-    public byte[] Bytes() {
-
-        return bytes;
-    }
-
-    // 写入capacity到bytes
-    public IndexMemoryByte writeCapacity() {
-
-        byte[] capacityBytes = NumberPacker.packInt(capacity);
-        for (int i = 0; i < 4; i++) {
-            bytes[i] = capacityBytes[i];
+    /**
+     * 将内存索引写入索引文件
+     *
+     * @param fsIndex   索引文件的io入口
+     * @param fsJournal 索引checkpoint日志文件的io入口
+     * @throws IOException
+     */
+    public void flush(InputOutData fsIndex, InputOutData fsJournal) throws IOException {
+
+        Flush flush = prepareFlush();
+        try {
+            flush.write(fsIndex, fsJournal);
+        } catch (IOException e) {
+            flush.abort();
+            throw e;
         }
-
-        return this;
     }
 
-    // 写入attachedSlots用到哪一个slot
-    public IndexMemoryByte writeCurrent() {
-
-        byte[] currentBytes = NumberPacker.packInt(current);
-        for (int i = 0; i < 4; i++) {
-            bytes[i + 4] = currentBytes[i];
-        }
+    /**
+     * 取出上次flush以来要写入索引文件的内容，调用时持有分段的锁；
+     * 之后可以不加锁调用{@link Flush#write(InputOutData, InputOutData)}写入，写的时候put照常修改索引
+     *
+     * @return
+     */
+    public abstract Flush prepareFlush();
 
-        return this;
+    /**
+     * 一次flush要写入索引文件的内容
+     */
+    public interface Flush {
+
+        /**
+         * 写入索引文件并刷到磁盘上；同一个索引文件同时只能有一个在写
+         *
+         * @param fsIndex   索引文件的io入口
+         * @param fsJournal 索引checkpoint日志文件的io入口
+         * @throws IOException
+         */
+        void write(InputOutData fsIndex, InputOutData fsJournal) throws IOException;
+
+        // 写入失败的时候调用，这次的内容留到下次flush再写；调用时持有分段的锁
+        void abort();
     }
 
     // 释放相应的内存
-    // to do: check it's fine or not to call system.gc() 
-    public void release() {
-
-        bytes = null;
-        System.gc();
-    }
+    public abstract void release();
 }
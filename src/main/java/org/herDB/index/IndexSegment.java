@@ -1,15 +1,29 @@
 package org.herDB.index;
 
-import com.sun.istack.internal.NotNull;
 import org.herDB.herdb.Configuration;
 import org.herDB.store.FSDirectory;
 import org.herDB.store.InputOutData;
 import org.herDB.utils.Bytes;
 import org.herDB.utils.Hash;
 import org.herDB.utils.NumberPacker;
+import org.herDB.utils.RateLimiter;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -22,43 +36,173 @@ import java.util.concurrent.locks.ReentrantLock;
 @SuppressWarnings("serial")
 public class IndexSegment extends ReentrantLock {
 
-    private IndexMemoryByte indexMemoryByte;
+    // 不加锁的get会读到这几个引用，替换的时候要对get可见
+    private volatile IndexMemoryByte indexMemoryByte;
     // 为文件的名称，这里索引文件与数据文件文件名称一致
     private String fileName;
     // todo: 放在configuration里
     // 索引文件的后缀
     private final static String INDEXSUFFIX = ".index";
-    // 数据文件的后缀
-    private final static String DATASUFFIX = ".data";
     // 临时文件的后缀名
     private final static String TEMFILESUFFIX = ".tep";
+    // 索引checkpoint日志文件的后缀
+    private final static String JOURNALSUFFIX = ".journal";
+    // 布隆过滤器文件的后缀
+    private final static String BLOOMSUFFIX = ".bloom";
+    // checkpoint文件的后缀，记录索引文件包含了哪个地址之前put的数据
+    private final static String CHECKPOINTSUFFIX = ".checkpoint";
+    // 映射模式下索引文件正在修改的标记文件的后缀，正常关闭的时候删除
+    private final static String MAPPEDSUFFIX = ".mapped";
     // 扩容不能超过的最大容量
     private final static int MAXSIZE = 2 << 26;
     // main.java.org.herDB.index io操作的入口类
     private InputOutData fsIndex;
-    // data io操作的入口类
-    private InputOutData fsData;
+    // 分段的所有数据文件
+    private final DataFiles dataFiles;
+    // 扩容之后已经没有索引指向的数据文件，下次commit写入索引之后再删除
+    private final List<Integer> retiredFiles = new ArrayList<Integer>();
+    // 索引checkpoint日志的io入口类
+    private InputOutData fsJournal;
     // FSDirectory的门面
     private FSDirectory fsd;
-    // 读取文件用到的文件块大小 默认先 64KB的大小
-    private int BufferedSize = 1 << 10;
+    // 读写文件用到的缓冲块大小，见{@link Configuration#BUFFERED_BLOCK_SIZE}
+    private final int bufferedSize;
+    // 索引文件是否映射到内存
+    private final boolean indexMapped;
+    // 是否只读，只读的时候不修改任何文件
+    private final boolean onlyRead;
+    // 索引的扩容方式
+    private final int growthMode;
+    // 什么时候扩容索引，见{@link Configuration#RESIZE_POLICY}
+    private final int resizePolicy;
+    // 装载因子的上限(百分比)
+    private final int loadFactor;
+    // slot链的长度上限
+    private final int maxChain;
+    // key的hash函数
+    private final Hash hashFunction;
+    // 布隆过滤器每个key占用的位数，为0的时候不开启布隆过滤器
+    private final int bloomBitsPerKey;
+    // 布隆过滤器，没有开启的时候为null
+    private volatile BloomFilter bloom;
+    // 线性扩容过程中新索引对应的布隆过滤器
+    private BloomFilter splittingBloom;
+    // 线性扩容时每次put分裂的bucket个数
+    private final static int SPLITS_PER_PUT = 2;
+    // 不加锁的get最多尝试的次数，都与修改并发的话就加锁读；为0的时候总是加锁读
+    private final int optimisticReads;
+    // contains找到key时的返回值
+    private final static byte[] PRESENT = new byte[0];
+    // 线性扩容过程中的新索引，没有在扩容的时候为null
+    private volatile IndexMemoryByte splitting;
+    // 旧索引里下一个要分裂的bucket, 小于splitPointer的bucket都已经分裂到splitting里
+    private volatile int splitPointer;
+    // 索引的修改版本号按bucket hash分成STAMP_STRIPES份，修改索引的时候为奇数；不加锁的get前后两次读到
+    // 自己那一份的版本号相同才说明没有与修改并发，第二次用compareAndSet读，见{@link #validate(int, int)}；
+    // put只改它那个bucket的那一份，不同bucket的get不在同一个cache line上compareAndSet
+    private final AtomicIntegerArray stamps = new AtomicIntegerArray(STAMP_STRIPES << STAMP_PADDING);
+    // 版本号的份数
+    private final static int STAMP_STRIPES = 256;
+    // 每份版本号占16个int, 一个cache line
+    private final static int STAMP_PADDING = 4;
+    // 是否正在后台扩容
+    private boolean resizing;
+    // 上一次后台扩容是否失败
+    private boolean resizeFailed;
+    // 后台扩容完成的通知
+    private final Condition resized = newCondition();
+    // 执行后台扩容的线程池
+    private final static ExecutorService RESIZER = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "herDB-resizer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // 扩容与compact的时候并行判断itemData是否有效的线程池，所有分段共用
+    private final static ExecutorService VALIDATORS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "herDB-validator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // 扩容的时候最多同时有多少批itemData在并行判断
+    private final static int PENDING_BATCHES = Runtime.getRuntime().availableProcessors() * 2;
+    // 扩容顺序读写数据文件的缓冲是读写缓冲块的多少倍
+    private final static int READ_AHEAD_BLOCKS = 16;
+    // 触发后台compact的无效数据比例(百分比)，为0的时候不开启
+    private final int garbageRatio;
+    // 后台compact每秒最多读写的字节数，为0的时候不限速
+    private final int compactionRate;
+    // 定时检查是否需要compact的任务
+    private ScheduledFuture<?> compactionTask;
+    // 是否正在后台compact
+    private boolean compacting;
+    // 扩容或者关闭的时候要求后台compact尽快停下
+    private volatile boolean compactionAborted;
+    // 后台compact结束的通知
+    private final Condition compacted = newCondition();
+    // 分段是否已经关闭
+    private boolean closed;
+    // 定时后台checkpoint的任务
+    private ScheduledFuture<?> checkpointTask;
+    // 上次checkpoint记录的数据地址，数据没有增加的话后台checkpoint不用再写
+    private volatile long checkpointed = -1;
+    // 同一分段同时只有一次checkpoint在写文件；要同时持有分段的锁的话先取这个锁
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    // 执行后台compact的线程，所有分段共用，同一时间只compact一个数据文件
+    private final static ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "herDB-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // 执行后台checkpoint的线程池，所有分段共用，各个分段的checkpoint可以同时进行
+    private final static ScheduledExecutorService CHECKPOINTER = Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "herDB-checkpointer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     /**
-     * @param campacity
-     * @param current
+     * @param indexMemoryByte
      * @param fileName
      * @param fs
-     * @param fsData
+     * @param dataFiles
+     * @param fsJournal
      * @param fsd
-     * @param isFirst
+     * @param conf
      */
-    private IndexSegment(int campacity, int current, String fileName, InputOutData fs,
-                         InputOutData fsData, FSDirectory fsd, boolean isFirst) {
-        this.indexMemoryByte = isFirst ? IndexMemoryByte.init(campacity, current) :
-                IndexMemoryByte.open(fsd.readIndexFully(fileName + INDEXSUFFIX));
+    private IndexSegment(IndexMemoryByte indexMemoryByte, String fileName, InputOutData fs,
+                         DataFiles dataFiles, InputOutData fsJournal, FSDirectory fsd, Configuration conf) {
+        this.indexMemoryByte = indexMemoryByte;
+        this.indexMapped = conf.isIndexMapped();
+        this.onlyRead = conf.isOnlyRead();
+        this.growthMode = conf.get(Configuration.GROWTH_MODE);
+        this.resizePolicy = conf.get(Configuration.RESIZE_POLICY);
+        this.loadFactor = conf.get(Configuration.LOAD_FACTOR);
+        this.maxChain = conf.get(Configuration.MAX_CHAIN);
+        this.hashFunction = conf.hashFunction();
+        this.bloomBitsPerKey = conf.get(Configuration.BLOOM_BITS_PER_KEY);
+        this.optimisticReads = conf.get(Configuration.OPTIMISTIC_READS);
+        this.garbageRatio = conf.isOnlyRead() ? 0 : conf.get(Configuration.COMPACTION_GARBAGE_RATIO);
+        this.compactionRate = conf.get(Configuration.COMPACTION_RATE);
+        this.bufferedSize = conf.get(Configuration.BUFFERED_BLOCK_SIZE);
         this.fileName = fileName;
         this.fsIndex = fs;
-        this.fsData = fsData;
+        this.dataFiles = dataFiles;
+        this.fsJournal = fsJournal;
         this.fsd = fsd;
     }
 
@@ -81,313 +225,2094 @@ public class IndexSegment extends ReentrantLock {
             fsd.touchFile(fileName + INDEXSUFFIX);
         InputOutData fsIndex = fsd.createDataStream(fileName + INDEXSUFFIX, false);
 
-        if (!fsd.isExsit(fileName + DATASUFFIX))
-            fsd.touchFile(fileName + DATASUFFIX);
-        InputOutData fsData = fsd.createDataStream(fileName + DATASUFFIX, conf.isOnlyRead());
+        DataFiles dataFiles = DataFiles.open(fsd, fileName, conf);
 
-        if (first) {
-            return new IndexSegment(conf.get(Configuration.SLOTS_CAPACITY), 0, fileName, fsIndex,
-                    fsData, fsd, true);
+        // 上次checkpoint写索引文件的途中崩溃的话，先用日志把索引文件恢复完整
+        InputOutData fsJournal = fsd.createDataStream(fileName + JOURNALSUFFIX, false);
+        IndexJournal.replay(fsJournal, fsIndex);
+
+        boolean mapped = conf.isIndexMapped();
+        // 映射的索引文件随时会被操作系统写回一部分页，checkpoint也挡不住，只有正常关闭之后才是完整的；
+        // 标记文件还在说明上次映射模式下没有正常关闭，索引文件可能残缺，当作丢失用数据文件与hint文件重建
+        boolean unclean = fsd.isExsit(fileName + MAPPEDSUFFIX);
+        if (!unclean && mapped && !conf.isOnlyRead()) {
+            fsd.touchFile(fileName + MAPPEDSUFFIX);
+        }
+        // 新建分段之后、第一次checkpoint写索引文件之前崩溃的话，索引文件是空的，与没有索引文件一样处理
+        boolean missing = first || unclean || fsd.fileOf(fileName + INDEXSUFFIX).length() == 0;
+        IndexMemoryByte indexMemory = null;
+        if (!missing) {
+            try {
+                // 旧版本的索引文件没有buckethash，转换格式的时候读取一次key计算
+                BucketResolver resolver = bucketResolver(dataFiles, conf.hashFunction());
+                // 映射模式下不用将整个索引文件读到堆内存
+                indexMemory = mapped ? IndexMemoryByte.map(fsd.fileOf(fileName + INDEXSUFFIX), resolver)
+                        : IndexMemoryByte.open(fsd.readIndexFully(fileName + INDEXSUFFIX), resolver);
+                indexMemory.countChains();
+            } catch (Exception e) {
+                // 索引文件损坏了，下面用数据文件重建
+                e.printStackTrace();
+            }
+        }
+        // 索引文件丢失或者损坏，但是数据文件里有数据
+        boolean rebuild = indexMemory == null && dataFiles.hasData();
+        if (indexMemory == null) {
+            if (!mapped) {
+                fsIndex.truncate(0);
+            }
+            indexMemory = mapped
+                    ? IndexMemoryByte.map(fsd.fileOf(fileName + INDEXSUFFIX), conf.get(Configuration.SLOTS_CAPACITY))
+                    : IndexMemoryByte.init(conf.get(Configuration.SLOTS_CAPACITY), 0);
         }
 
-        byte[] bytes = fsIndex.readFully();
-        return new IndexSegment(NumberPacker.unpackInt(Arrays.copyOfRange(bytes, 0, 4)),
-                NumberPacker.unpackInt(Arrays.copyOfRange(bytes, 4, 8)),
-                fileName, fsIndex, fsData, fsd, false);
+        IndexSegment segment = new IndexSegment(indexMemory, fileName, fsIndex, dataFiles, fsJournal, fsd, conf);
+        if (rebuild) {
+            segment.rebuildIndex(indexMemory.capacity());
+        } else {
+            segment.openBloom();
+            if (missing && !conf.isOnlyRead()) {
+                // 新的分段从数据文件的开头开始都要重放
+                segment.saveCheckpoint(dataFiles.end());
+            } else if (!segment.recoverTail()) {
+                // 重放的时候attachedSlots满了就整个重建
+                segment.rebuildIndex(segment.doubledCapacity());
+            }
+        }
+        if (unclean && !mapped && !conf.isOnlyRead()) {
+            // 重建的索引已经通过日志写入索引文件
+            fsd.fileOf(fileName + MAPPEDSUFFIX).delete();
+        }
+        if (!conf.isOnlyRead()) {
+            segment.dropUnfinishedTargets();
+        }
+        if (segment.garbageRatio > 0) {
+            segment.countLive();
+            segment.scheduleCompaction(conf.get(Configuration.COMPACTION_INTERVAL));
+        }
+        if (!conf.isOnlyRead() && conf.get(Configuration.CHECKPOINT_INTERVAL) > 0) {
+            segment.scheduleCheckpoint(conf.get(Configuration.CHECKPOINT_INTERVAL));
+        }
+        return segment;
     }
 
+    // 读取数据文件里的key计算buckethash，转换旧版本的索引文件时用
+    private static BucketResolver bucketResolver(final DataFiles dataFiles, final Hash hashFunction) {
+
+        return new BucketResolver() {
+            @Override
+            public int bucketOf(long address) throws IOException {
+                return Hash.bucket(hashFunction.hash(keyData(dataFiles, address)));
+            }
+        };
+    }
 
     /**
-     * put操作的实现；
-     * <ul>
-     * <li>更新内存索引的数据</li>
-     * <li>往磁盘里写入文件</li>
-     * </ul>
+     * 扩容或者compact写数据文件的途中崩溃，会留下hint文件没有写完的数据文件：没有索引指向的话删除；
+     * compact已经让索引指向了其中的数据的话保留，hint文件头里有before, 重放与重建索引的时候仍然当作旧数据
+     *
+     * @throws IOException
+     */
+    private void dropUnfinishedTargets() throws IOException {
+
+        List<Integer> unfinished = new ArrayList<Integer>();
+        for (int id : dataFiles.ids()) {
+            if (dataFiles.isUnfinished(id)) {
+                unfinished.add(id);
+            }
+        }
+        IndexMemoryByte table = indexMemoryByte;
+        for (int bucket = 0; bucket < table.capacity() && !unfinished.isEmpty(); bucket++) {
+            if (table.getHashCode(bucket) == 0) {
+                continue;
+            }
+            int index = bucket;
+            do {
+                unfinished.remove(Integer.valueOf(Slot.fileId(table.getFilePosition(index))));
+            } while ((index = table.getAttachedSlot(index)) != 0);
+        }
+        for (int id : unfinished) {
+            dataFiles.remove(id);
+        }
+    }
+
+    /**
+     * 遍历内存索引，重新统计每个数据文件里有效数据的字节数；打开分段或者扩容替换索引之后调用
      *
-     * @param key
-     * @param value
      * @throws IOException
      */
-    public void put(byte[] key, byte[] value) throws IOException {
+    private void countLive() throws IOException {
 
-        // key经FVHash1的hash函数得出hash值
-        int index = Hash.FNVHash1(key) & indexMemoryByte.capacity() - 1;
-        // key利用系统函数hashCode的出hashcode
-        int hashcode = Hash.KeyHash(key);
-        // 标记是否在attachedSlot
-        boolean isInAttachedSlot = false;
+        dataFiles.resetLive();
+        IndexMemoryByte table = indexMemoryByte;
+        for (int bucket = 0; bucket < table.capacity(); bucket++) {
+            if (table.getHashCode(bucket) == 0) {
+                continue;
+            }
+            int index = bucket;
+            do {
+                long address = table.getFilePosition(index);
+                dataFiles.addLive(Slot.fileId(address), itemLength(address, table.getLength(index)));
+            } while ((index = table.getAttachedSlot(index)) != 0);
+        }
+    }
 
-        lock();
-        try {
-            int hc;
+    // address处itemData的长度，旧版本的索引没有记录长度(length为0)的话读取itemData的头
+    private int itemLength(long address, int length) throws IOException {
 
-            while ((hc = indexMemoryByte.getHashCode(index)) != 0) {
-                isInAttachedSlot = true;
+        return length > 0 ? length : NumberPacker.unpackInt(dataFiles.seek(address, 4)) + 4;
+    }
 
-                // put的key可能与之前已加入的数据相等
-                if (hashcode == hc) {
-                    // 获取index相应的key磁盘数据
-                    byte[] oldkey = keyData(indexMemoryByte.getFilePosition(index));
+    // 每隔interval毫秒检查一次是否有需要compact的数据文件
+    private void scheduleCompaction(long interval) {
 
-                    // 用新的索引数据替换旧的key数据，
-                    if (Arrays.equals(oldkey, key)) {
-                        int attachedslot = indexMemoryByte.getAttachedSlot(index);
-                        indexMemoryByte.replaceSlot(hashcode, fsData.maxOffSet(), attachedslot, index);
+        compactionTask = COMPACTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compactGarbage();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
 
-                        break;
-                    }
+    // 每隔interval毫秒在后台checkpoint一次
+    private void scheduleCheckpoint(long interval) {
+
+        checkpointTask = CHECKPOINTER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpointOnline();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
 
-                if (indexMemoryByte.getAttachedSlot(index) == 0) {
-                    int oldindex = index;
-                    try {
-                        index = indexMemoryByte.nextCurrent();
-                    } catch (IndexOutofRangeException iore) {
-                        // 如果catch indexoutofrangeException 就开始扩容
-                        try {
-                            resize();
-                        } catch (Exception e) {
+    /**
+     * 读取上次commit时保存的布隆过滤器，没有或者与索引对不上的话就顺序扫描数据文件重建；
+     * 扫描到的无效数据也会加到过滤器里，只会增加误判，不会漏掉存在的key
+     *
+     * @throws IOException
+     */
+    private void openBloom() throws IOException {
 
-                            e.printStackTrace();
-                        }
-                        // 扩容后重新计算index
-                        index = Hash.FNVHash1(key) & (indexMemoryByte.capacity() - 1);
-                        isInAttachedSlot = false;
+        if (bloomBitsPerKey == 0) {
+            return;
+        }
 
-                        continue;
+        int capacity = indexMemoryByte.capacity();
+        if (fsd.isExsit(fileName + BLOOMSUFFIX)) {
+            BloomFilter filter = BloomFilter.load(fsd.readIndexFully(fileName + BLOOMSUFFIX));
+            if (filter != null && filter.matches(capacity, bloomBitsPerKey)) {
+                bloom = filter;
+                return;
+            }
+        }
+
+        BloomFilter filter = BloomFilter.create(capacity, bloomBitsPerKey);
+        for (int id : dataFiles.ids()) {
+            // 有hint文件的话只读hint文件里的key的hash值
+            HintFile.Reader hint = dataFiles.openHint(id);
+            if (hint != null) {
+                try {
+                    while (hint.next()) {
+                        filter.add(hint.keyHash());
                     }
-                    // 设置上个slot 与本slot的关联
-                    indexMemoryByte.setAttachedSlot(oldindex, index);
-                    // 更新slot的数据
-                    indexMemoryByte.replaceSlot(hashcode, fsData.maxOffSet(), 0, index);
-                    break;
-                } else {
-                    index = indexMemoryByte.getAttachedSlot(index);
+                } finally {
+                    hint.close();
                 }
+                continue;
+            }
+
+            DataFileScanner scanner = new DataFileScanner(dataFiles.file(id), 0, dataFiles.file(id).maxOffSet(),
+                    bufferedSize);
+            while (scanner.next()) {
+                filter.add(hashFunction.hash(scanner.key()));
+            }
+        }
+        bloom = filter;
+    }
+
+    /**
+     * 索引文件丢失或者损坏的时候，用所有的数据文件重建索引与布隆过滤器：有{@link HintFile}的数据文件只读hint文件，
+     * 其余的数据文件顺序扫描, 截掉末尾不完整的itemData；按数据的新旧依次添加，新的数据覆盖旧的索引；
+     * attachedSlots不够的话扩大一倍重建
+     * <p>
+     * 重建完成之后马上checkpoint, 再次崩溃也不用重建
+     *
+     * @param capacity 新索引的容量
+     * @throws IOException
+     */
+    private void rebuildIndex(int capacity) throws IOException {
 
+        int[] ids = idsByAge();
+        while (true) {
+            indexMemoryByte.release();
+            IndexMemoryByte table = indexMemoryByte = indexMapped
+                    ? IndexMemoryByte.map(fsd.fileOf(fileName + INDEXSUFFIX), capacity)
+                    : IndexMemoryByte.init(capacity, 0);
+            BloomFilter filter = newBloom(capacity);
+            boolean full = false;
+            for (int i = 0; i < ids.length && !full; i++) {
+                if (dataFiles.isUnfinished(ids[i])) {
+                    // 写到一半的扩容或者compact数据文件里都是拷贝，来源的数据文件要等hint文件写完才会删除
+                    continue;
+                }
+                HintFile.Reader hint = dataFiles.openHint(ids[i]);
+                if (hint == null) {
+                    full = !replayFile(ids[i], 0, table, filter);
+                    continue;
+                }
+                try {
+                    full = !replayHint(ids[i], hint, table, filter);
+                } finally {
+                    hint.close();
+                }
             }
-            // 没有发生hash碰撞的情况
-            if (!isInAttachedSlot) {
-                indexMemoryByte.replaceSlot(hashcode, fsData.maxOffSet(), 0, index);
+            if (!full) {
+                bloom = filter;
+                break;
             }
-            // 写入key/value的数据到磁盘
-            fsData.append(Bytes.wrapData(key, value));
-        } finally {
-            unlock();
+            capacity = doubledCapacity();
+        }
+        if (!onlyRead) {
+            checkpoint();
         }
     }
 
     /**
-     * 根据 key 获取 value的字节数组；
+     * 上次checkpoint之后put的数据还没有写入索引文件：从checkpoint记录的地址开始, 按顺序重放之后put的数据文件，
+     * 扩容与compact写的数据文件(包括写到一半崩溃、hint文件没有写完的)里都是旧数据的拷贝，跳过；崩溃时只写了一半的itemData截掉
+     * <p>
+     * 没有checkpoint文件的是旧版本的数据库，索引文件就是上次commit的状态，不用重放
      *
-     * @param key
-     * @return byte[] or null
+     * @return attachedSlots满了返回false
+     * @throws IOException
      */
-    public byte[] get(byte[] key) {
+    private boolean recoverTail() throws IOException {
 
-        int index = Hash.FNVHash1(key) & indexMemoryByte.capacity() - 1;
-        int hashcode = Hash.KeyHash(key);
+        long covered = readCheckpoint();
+        if (covered < 0) {
+            return true;
+        }
+        for (int id : dataFiles.ids()) {
+            if (id < Slot.fileId(covered) || dataFiles.hasHint(id)) {
+                continue;
+            }
+            if (!replayFile(id, id == Slot.fileId(covered) ? Slot.position(covered) : 0, indexMemoryByte, bloom)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        lock();
-        try {
-            do {
-                if (indexMemoryByte.getHashCode(index) == hashcode) {
-                    long filepo = indexMemoryByte.getFilePosition(index);
-                    try {
-                        // key/value磁盘数据格式： 
-                        // datalength(4 bytes) + keylength(4 bytes) + key(raw data) + value(raw data) 
-                        // datalength的大小：4 + key的字节长度 + value的字节长度
-                        long start = System.currentTimeMillis();
-                        int datalen = NumberPacker.unpackInt(
-                                fsData.position(filepo)
-                                        .readSequentially(4));
-                        int keylen = NumberPacker.unpackInt(
-                                fsData.readSequentially(4));
-                        int valuelen = datalen - keylen - 4;
-                        long end = System.currentTimeMillis();
-                        long during = end - start;
-                        // note: key的hashcode相等的情况下也有可能key不一致
-                        if (Arrays.equals(fsData.readSequentially(keylen), key)) {
-                            byte[] value = fsData.readSequentially(valuelen);
-                            return value;
-                        }
-                    } catch (IOException e) {
+    /**
+     * 重放序号为id的数据文件从position开始的所有数据，末尾不完整的itemData截掉
+     *
+     * @return table的attachedSlots满了返回false
+     * @throws IOException
+     */
+    private boolean replayFile(int id, long position, IndexMemoryByte table, BloomFilter filter)
+            throws IOException {
 
-                        e.printStackTrace();
-                        return null;
-                    }
-                }
-            } while ((index = indexMemoryByte.getAttachedSlot(index)) != 0);
-        } finally {
-            unlock();
+        long end = dataFiles.file(id).maxOffSet();
+        if (position >= end) {
+            return true;
         }
-        return null;
+        long stop = replayData(id, position, end, table, filter);
+        if (stop < 0) {
+            return false;
+        }
+        if (stop < end && !onlyRead) {
+            dataFiles.truncate(id, stop);
+        }
+        return true;
     }
 
     /**
-     * 根据 key字节查找判断是否存在
+     * 所有数据文件的序号，按数据从旧到新排序：有hint文件的数据文件排在它的before之前，其余的按序号排序
      *
      * @return
+     * @throws IOException
      */
-    public boolean contains(byte[] key) {
+    private int[] idsByAge() throws IOException {
 
-        return get(key) == null ? false : true;
+        int[] ids = dataFiles.ids();
+        // 高32位为排序的顺序，低32位为序号
+        long[] orders = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            long order = (long) ids[i] << 1;
+            // 没有写完的hint文件也有before
+            int before = dataFiles.hintBefore(ids[i]);
+            if (before >= 0) {
+                order = ((long) before << 1) - 1;
+            }
+            orders[i] = order << 32 | ids[i];
+        }
+        Arrays.sort(orders);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (int) orders[i];
+        }
+        return ids;
     }
 
     /**
-     * 每个阶段的操作最终都要commit，如果在commit阶段，程序在执行扩容的话,就该等待程序执行完成 所以加lock()
+     * 按hint文件里的顺序在table里添加或者替换序号为id的数据文件的索引
+     *
+     * @return table的attachedSlots满了返回false
+     * @throws IOException
      */
-    public void commit() {
-        lock();
-        try {
-            close();
-        } finally {
-            unlock();
+    private boolean replayHint(int id, HintFile.Reader hint, IndexMemoryByte table, BloomFilter filter)
+            throws IOException {
+
+        while (hint.next()) {
+            long keyHash = hint.keyHash();
+            if (!putSlot(table, dataFiles, keyHash, hint.key(), Slot.address(id, hint.position()), hint.length())) {
+                return false;
+            }
+            if (filter != null) {
+                filter.add(keyHash);
+            }
         }
+        return true;
     }
 
     /**
-     * 根据offset去获取key的bytes,由于offset指itemData的开始段
-     * <pre><b>itemData格式:</b> itemData.length(4字节) + key.length(4字节) + key/value(n字节)</pre>
+     * 将布隆过滤器写到临时文件再替换，布隆过滤器文件不会只写了一半；
+     * 在索引文件之前写入，过滤器里的key只会比索引多，不会比索引少
      *
-     * @param offset： itemData的开头
-     * @return
+     * @param bytes 布隆过滤器的内容，没有开启的时候为null
      * @throws IOException
      */
-    private byte[] keyData(long offset) throws IOException {
+    private void saveBloom(byte[] bytes) throws IOException {
 
-        // 获取key数据的长度
-        int keyLength = NumberPacker.unpackInt(fsData.seek(offset + 4, 4));
+        if (bytes == null) {
+            // 关闭布隆过滤器之后旧的文件就过时了
+            if (fsd.isExsit(fileName + BLOOMSUFFIX)) {
+                fsd.fileOf(fileName + BLOOMSUFFIX).delete();
+            }
+            return;
+        }
+
+        InputOutData temBloom = fsd.createDataStream(fileName + BLOOMSUFFIX + TEMFILESUFFIX, false);
+        try {
+            temBloom.truncate(0);
+            temBloom.append(bytes);
+            temBloom.sync();
+        } finally {
+            temBloom.close();
+        }
+        fsd.rename(fileName + BLOOMSUFFIX + TEMFILESUFFIX, fileName + BLOOMSUFFIX);
+    }
 
-        return fsData.readSequentially(keyLength);
+    // 新建扩容用的空的布隆过滤器，没有开启的时候为null
+    private BloomFilter newBloom(int capacity) {
+
+        return bloomBitsPerKey == 0 ? null : BloomFilter.create(capacity, bloomBitsPerKey);
     }
 
+
     /**
-     * 索引文件达到full即attachedSlots没有可以再利用 需要扩容
-     * 扩容的时候：从磁盘文件里顺序读取文件判断是否该数据被删除
-     * 并写到另一个文件里
+     * put操作的实现；
+     * <ul>
+     * <li>更新内存索引的数据</li>
+     * <li>往磁盘里写入文件</li>
+     * </ul>
      *
-     * @throws Exception
+     * @param key
+     * @param keyHash 调用方已经算好的key的64位hash值
+     * @param value
+     * @throws IOException
      */
-    private void resize() throws Exception {
+    public void put(byte[] key, long keyHash, byte[] value) throws IOException {
 
-        int newCap = 0;
+        // 低32位用来计算bucket
+        int hash = Hash.bucket(keyHash);
+        // 高32位作为slot里的hashcode
+        int hashcode = Hash.fingerprint(keyHash);
 
-        if ((newCap = indexMemoryByte.capacity() << 1) > MAXSIZE) {
-            throw new IllegalArgumentException(
-                    "The comapacity:`" + newCap + "` is reaching its maxsize and can`t expend anymore");
-        }
+        byte[] itemData = Bytes.wrapData(key, value);
 
-        // 用来读文件的缓存的block
-        ReadingBufferedBlock readingBlock = ReadingBufferedBlock.allocate(BufferedSize);
-        // 用来写文件的缓存的block
-        WritingBufferedBlock writingBlock = WritingBufferedBlock.allocate(BufferedSize);
-        // 将写文件的缓存block的limit设置为最大
-        writingBlock.setLimit(BufferedSize);
-
-        // 文件用来写去除无用数据
-        InputOutData temData = fsd.createDataStream(fileName + TEMFILESUFFIX, false);
-        IndexMemoryByte tempMemoryByte = IndexMemoryByte.init(newCap, 0);
-
-        // 每次resize之前，先将文件的指针置于开头的位置，便于从头开始顺序读
-        fsData.jumpHeader();
-        while (readingBlock.placeHeader()
-                .setLimit(fsData.readBlock(readingBlock.getBlock())) != -1) {
-            byte[] resultData;
-            while ((resultData = readingBlock.nextItem()) != null) {
-                byte[] keyBytes = Bytes.extractKey(resultData);
-                long Offset = Bytes.extractOffset(resultData);
-                byte[] itemData = Bytes.extractItemData(resultData);
-
-                // 有效的itemData数据，添加到writingBlock
-                if (isItemValid(keyBytes, Offset)) {
-                    long newOffset = writingBlock.getOffset();
-                    putOnExtension(keyBytes, newOffset, tempMemoryByte);
-
-                    if (writingBlock.hasRoomFor(itemData)) {
-                        writingBlock.wrap(itemData);
-                    } else {
-                        temData.append(writingBlock.flush());
-                        writingBlock.wrap(itemData);
+        lock();
+        try {
+            IndexMemoryByte table;
+            int index;
+            // attachedSlots满了就扩容, 扩容后重新计算index
+            while ((index = findSlot(table = tableFor(hash), dataFiles, hash & (table.capacity() - 1),
+                    key, hashcode)) < 0 && !hasAttachedSlot(table)) {
+                makeRoom();
+            }
+
+            // 被替换的旧数据变成了无效数据
+            long replaced = -1;
+            int replacedLength = 0;
+            if (garbageRatio > 0 && index >= 0 && table.getHashCode(index) != 0) {
+                replaced = table.getFilePosition(index);
+                replacedLength = itemLength(replaced, table.getLength(index));
+            }
+
+            // 先写入key/value的数据到磁盘，再更新索引，不加锁的get读到的索引指向的都是完整的数据；
+            // 写数据文件不算修改索引，不让同一个bucket的get等着
+            long offset = dataFiles.append(itemData);
+            int bucket = hash & (table.capacity() - 1);
+            beginWrite(bucket, table.capacity());
+            try {
+                writeSlot(table, index, hashcode, hash, offset, itemData.length);
+                if (garbageRatio > 0) {
+                    dataFiles.addLive(Slot.fileId(offset), itemData.length);
+                    if (replaced >= 0) {
+                        dataFiles.addLive(Slot.fileId(replaced), -replacedLength);
                     }
                 }
+                if (bloom != null) {
+                    bloom.add(keyHash);
+                    // 线性扩容的时候新索引的过滤器也要加上
+                    if (splittingBloom != null) {
+                        splittingBloom.add(keyHash);
+                    }
+                }
+            } finally {
+                endWrite(bucket, table.capacity());
+            }
+
+            if (growthMode == Configuration.GROWTH_MODE_LINEAR) {
+                splitStep();
+            } else if (growthMode == Configuration.GROWTH_MODE_BACKGROUND) {
+                if (!resizing && !compacting && needsGrowth()) {
+                    startBackgroundResize();
+                }
+            } else if (resizePolicy == Configuration.RESIZE_POLICY_LOAD && needsGrowth()) {
+                // 装载因子或者slot链超过限制，不等attachedSlots用完就扩容
+                grow();
             }
+        } finally {
+            unlock();
         }
-        temData.append(writingBlock.flush());
+    }
+
+    /**
+     * 在table的index的slot链上添加或者替换key的索引数据
+     *
+     * @param table
+     * @param data    table对应的数据文件
+     * @param keyHash key的64位hash值
+     * @param key
+     * @param offset  key/value数据的地址
+     * @param length  itemData的长度
+     * @return attachedSlots满了返回false
+     * @throws IOException
+     */
+    private boolean putSlot(IndexMemoryByte table, DataFiles data, long keyHash, byte[] key, long offset, int length)
+            throws IOException {
 
-        // 删除旧的文件
-        fsData.deleteFile();
-        temData.reName(fileName + DATASUFFIX);
-        fsData = temData;
-        indexMemoryByte = tempMemoryByte;
+        int bucketHash = Hash.bucket(keyHash);
+        int hashcode = Hash.fingerprint(keyHash);
+        int index;
+        if ((index = findSlot(table, data, bucketHash & (table.capacity() - 1), key, hashcode)) < 0
+                && !hasAttachedSlot(table)) {
+            return false;
+        }
+        writeSlot(table, index, hashcode, bucketHash, offset, length);
+        return true;
     }
 
     /**
-     * 不加锁的put 只在扩容或者campact的时候调用,添加新的索引信息
+     * 在table的index的slot链上查找key要写入的slot
      *
-     * @param key         存储的key 字节数组
-     * @param offset      rawdata在磁盘文件的偏移
-     * @param indexMemory 另一内存索引用来扩充等等
+     * @return 空的bucket或者key相同的slot的index; 需要新分配slot的时候返回~(链尾slot的index)
+     * @throws IOException
      */
-    private void putOnExtension(byte[] key, long offset, IndexMemoryByte indexMemory) {
+    private int findSlot(IndexMemoryByte table, DataFiles data, int index, byte[] key, int hashcode)
+            throws IOException {
 
-        int index = Hash.FNVHash1(key) & (indexMemory.capacity() - 1);
-        int hc = Hash.KeyHash(key);
-        // 标记最终的slot是否在attachedSlots里
-        boolean isInAttached = false;
+        // 没有发生hash碰撞的情况
+        if (table.getHashCode(index) == 0) {
+            return index;
+        }
 
-        if (indexMemory.getHashCode(index) != 0) {
-            isInAttached = true;
+        while (true) {
+            // put的key可能与之前已加入的数据相等, 用新的索引数据替换旧的key数据
+            if (table.getHashCode(index) == hashcode
+                    && Arrays.equals(keyData(data, table.getFilePosition(index)), key)) {
+                return index;
+            }
 
-            while (indexMemory.getAttachedSlot(index) != 0) {
-                index = indexMemory.getAttachedSlot(index);
+            int next = table.getAttachedSlot(index);
+            if (next == 0) {
+                return ~index;
             }
+            index = next;
         }
+    }
 
-        // 新建slot, 并将slot的index 更新到上一个slot的attachedSlot
-        if (isInAttached) {
-            int newIndex = indexMemory.nextCurrentSafely();
-            indexMemory.setAttachedSlot(index, newIndex);
-            indexMemory.replaceSlot(hc, offset, 0, newIndex);
+    // attachedSlots里是否还有可以分配的slot
+    private static boolean hasAttachedSlot(IndexMemoryByte table) {
+
+        return table.current() < table.overflow();
+    }
+
+    /**
+     * 写入findSlot找到的slot; 新分配的slot先写好数据再挂到链尾slot的attachedSlot上,
+     * 不加锁的get要么看不到这个slot，要么看到完整的slot
+     */
+    private static void writeSlot(IndexMemoryByte table, int index, int hashcode, int bucketHash, long offset,
+                                  int length) {
+
+        if (index >= 0) {
+            if (table.getHashCode(index) == 0) {
+                table.bucketUsed();
+            }
+            table.replaceSlot(hashcode, bucketHash, offset, length, table.getAttachedSlot(index), index);
             return;
         }
-        indexMemory.replaceSlot(hc, offset, 0, index);
+        int newIndex = table.nextCurrentSafely();
+        table.replaceSlot(hashcode, bucketHash, offset, length, 0, newIndex);
+        table.setAttachedSlot(~index, newIndex);
+        table.chainGrew(chainLength(table, bucketHash & (table.capacity() - 1)));
+    }
+
+    // bucket上的slot链的长度
+    private static int chainLength(IndexMemoryByte table, int bucket) {
+
+        int length = 1;
+        for (int index = bucket; (index = table.getAttachedSlot(index)) != 0; ) {
+            length++;
+        }
+        return length;
     }
 
     /**
-     * 从磁盘读取每个item，并在索引内存里判断其是否有效
+     * 根据hash获取key所在的内存索引；线性扩容的过程中, 已经分裂过的bucket在新的索引里
      *
-     * @return true: 无效的item； false：有效的item
+     * @param hash 用来计算bucket的hash值
+     * @return
      */
-    private boolean isItemValid(byte[] key, long offset) {
+    private IndexMemoryByte tableFor(int hash) {
 
-        int index = Hash.FNVHash1(key) & indexMemoryByte.capacity() - 1;
+        IndexMemoryByte table = indexMemoryByte;
+        IndexMemoryByte next = splitting;
+        if (next != null && (hash & (table.capacity() - 1)) < splitPointer) {
+            return next;
+        }
+        return table;
+    }
 
-        do {
-            if (indexMemoryByte.getFilePosition(index) == offset) {
-                return true;
-            }
-        } while ((index = indexMemoryByte.getAttachedSlot(index)) != 0);
+    // 开始修改整个索引(替换索引、删除数据文件等)，调用时持有锁
+    private void beginWrite() {
+
+        for (int stripe = 0; stripe < STAMP_STRIPES; stripe++) {
+            stamps.incrementAndGet(stripe << STAMP_PADDING);
+        }
+    }
 
-        return false;
+    // 整个索引修改完成，调用时持有锁
+    private void endWrite() {
+
+        beginWrite();
     }
 
     /**
-     * 将内存的index文件flush到磁盘里
+     * 开始修改容量为capacity的索引里的bucket这一条slot链，调用时持有锁：
+     * 只有bucket hash与bucket同余的key会读到它，它们的版本号在这几份里
+     *
+     * @param bucket
+     * @param capacity
      */
-    private void close() {
-        // 写入索引的容量值 attachedSlots用到的current值
-        indexMemoryByte.writeCapacity()
-                .writeCurrent();
+    private void beginWrite(int bucket, int capacity) {
 
-        try {
-            fsIndex.deleteFile()
-                    .createNewFile()
-                    .flush(indexMemoryByte.Bytes());
-        } catch (IOException e) {
+        int step = Math.min(capacity, STAMP_STRIPES);
+        for (int stripe = bucket & (step - 1); stripe < STAMP_STRIPES; stripe += step) {
+            stamps.incrementAndGet(stripe << STAMP_PADDING);
+        }
+    }
 
-            e.printStackTrace();
+    // bucket这一条slot链修改完成，调用时持有锁
+    private void endWrite(int bucket, int capacity) {
+
+        beginWrite(bucket, capacity);
+    }
+
+    // bucket hash为hash的key的版本号在stamps里的下标
+    private static int stampOf(int hash) {
+
+        return (hash & (STAMP_STRIPES - 1)) << STAMP_PADDING;
+    }
+
+    /**
+     * 不加锁读完索引之后确认期间没有修改过：普通的volatile读不能阻止之前读索引的操作被重排到它之后，
+     * 用compareAndSet读版本号，之前的读都在它之前完成；之后开始的修改一定看到这次compareAndSet，
+     * 读到的索引不会包含它写的内容。compareAndSet只写自己那一份版本号的cache line
+     *
+     * @param stamp   {@link #stampOf(int)}
+     * @param version 读索引之前的版本号
+     * @return 期间没有修改过返回true
+     */
+    private boolean validate(int stamp, int version) {
+
+        return stamps.compareAndSet(stamp, version, version);
+    }
+
+    /**
+     * attachedSlots满了的时候扩容
+     *
+     * @throws IOException
+     */
+    private void grow() throws IOException {
+
+        if (growthMode == Configuration.GROWTH_MODE_REHASH) {
+            // 只重建索引不读写数据文件，不用停下后台compact
+            rehash();
+            return;
+        }
+
+        // 扩容要处理所有的数据文件，先让后台compact停下
+        stopCompaction();
+
+        if (growthMode == Configuration.GROWTH_MODE_LINEAR) {
+            // 正常情况下分裂在attachedSlots满之前就已完成，这里只是兜底
+            if (splitting == null) {
+                startSplit();
+            }
+            while (splitting != null) {
+                splitBucket();
+            }
+            return;
+        }
+
+        if (growthMode == Configuration.GROWTH_MODE_BACKGROUND && !resizeFailed) {
+            // 等待后台扩容完成，等待的时候会释放锁
+            if (!resizing) {
+                startBackgroundResize();
+            }
+            while (resizing) {
+                resized.awaitUninterruptibly();
+            }
+            if (!resizeFailed) {
+                return;
+            }
+        }
+        // 后台扩容失败的话就退回到一次性扩容
+        resizeFailed = false;
+        resize();
+    }
+
+    /**
+     * 是否需要提前扩容：RESIZE_POLICY_OVERFLOW下attachedSlots用掉一半的时候开始扩容；
+     * RESIZE_POLICY_LOAD下装载因子超过上限，或者超过上限的一半并且有slot链长过上限的时候扩容,
+     * 扩容后装载因子减半，个别key的hash值相同的长链不会引起接连的扩容
+     *
+     * @return
+     */
+    private boolean needsGrowth() {
+
+        IndexMemoryByte table = indexMemoryByte;
+        if (table.capacity() << 1 > MAXSIZE) {
+            return false;
+        }
+        if (resizePolicy == Configuration.RESIZE_POLICY_OVERFLOW) {
+            return table.current() >= table.overflow() >> 1;
+        }
+        long load = table.entries() * 100L;
+        long limit = (long) table.capacity() * loadFactor;
+        return load >= limit || (table.longestChain() > maxChain && load << 1 >= limit);
+    }
+
+    /**
+     * attachedSlots用完的时候：RESIZE_POLICY_LOAD下装载因子还没到上限的话只扩大attachedSlots, 否则扩容
+     *
+     * @throws IOException
+     */
+    private void makeRoom() throws IOException {
+
+        IndexMemoryByte table = indexMemoryByte;
+        if (resizePolicy == Configuration.RESIZE_POLICY_LOAD && splitting == null && !resizing
+                && !needsGrowth() && (long) table.capacity() + ((long) table.overflow() << 1) <= Integer.MAX_VALUE) {
+            growOverflow();
+            return;
+        }
+        grow();
+    }
+
+    /**
+     * 只把attachedSlots扩大一倍，bucket的个数不变：所有的slot原样拷贝到新的索引里，不读写数据文件
+     *
+     * @throws IOException
+     */
+    private void growOverflow() throws IOException {
+
+        IndexMemoryByte table = newIndexMemory(indexMemoryByte.capacity(), indexMemoryByte.overflow() << 1);
+        table.copyFrom(indexMemoryByte);
+
+        beginWrite();
+        try {
+            swapIndexMemory(table, bloom);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * 线性扩容：attachedSlots用掉一半的时候开始新一轮的分裂，之后每次put都分裂{@link #SPLITS_PER_PUT}个bucket,
+     * 旧索引里剩下的attachedSlots足够容纳这一轮分裂期间的put
+     *
+     * @throws IOException
+     */
+    private void splitStep() throws IOException {
+
+        if (splitting == null) {
+            // 后台compact的时候不开始新的分裂，attachedSlots满了的话由grow()停下compact再扩容
+            if (compacting || !needsGrowth()) {
+                return;
+            }
+            startSplit();
+        }
+
+        for (int i = 0; i < SPLITS_PER_PUT && splitting != null; i++) {
+            splitBucket();
+        }
+    }
+
+    // 开始新一轮的分裂，新索引的容量为原来的两倍
+    private void startSplit() throws IOException {
+
+        splitting = newIndexMemory(doubledCapacity());
+        splittingBloom = newBloom(splitting.capacity());
+        splitPointer = 0;
+    }
+
+    /**
+     * 将旧索引里splitPointer所指的bucket的slot链拆到新索引的两个bucket里：splitPointer与splitPointer + capacity,
+     * 所有bucket都分裂完成就用新索引替换旧索引
+     *
+     * @throws IOException
+     */
+    private void splitBucket() throws IOException {
+
+        int bucket = splitPointer;
+        int capacity = indexMemoryByte.capacity();
+        // 分裂完最后一个bucket要替换整个索引
+        boolean last = bucket + 1 == capacity;
+        if (last) {
+            beginWrite();
+        } else {
+            beginWrite(bucket, capacity);
+        }
+        int index = bucket;
+        try {
+            if (indexMemoryByte.getHashCode(index) != 0) {
+                do {
+                    // slot里存有key的hash值，分裂不用读取key
+                    putOnExtension(keyHashOf(indexMemoryByte, index), indexMemoryByte.getFilePosition(index),
+                            indexMemoryByte.getLength(index), splitting, splittingBloom);
+                } while ((index = indexMemoryByte.getAttachedSlot(index)) != 0);
+            }
+
+            if (++splitPointer == indexMemoryByte.capacity()) {
+                swapIndexMemory(splitting, splittingBloom);
+                splitting = null;
+                splittingBloom = null;
+                splitPointer = 0;
+            }
+        } finally {
+            if (last) {
+                endWrite();
+            } else {
+                endWrite(bucket, capacity);
+            }
+        }
+    }
+
+    /**
+     * 根据 key 获取 value的字节数组；
+     *
+     * @param key
+     * @param keyHash 调用方已经算好的key的64位hash值
+     * @return byte[] or null
+     */
+    public byte[] get(byte[] key, long keyHash) {
+
+        return lookup(key, keyHash, true);
+    }
+
+    /**
+     * 根据 key字节查找判断是否存在, 只读取key不读取value
+     *
+     * @param key
+     * @param keyHash 调用方已经算好的key的64位hash值
+     * @return
+     */
+    public boolean contains(byte[] key, long keyHash) {
+
+        return lookup(key, keyHash, false) != null;
+    }
+
+    /**
+     * key所在的itemData的地址，只用来给预热缓存的key按数据文件里的位置排序；
+     * fingerprint一致的slot有多个的话返回第一个，不比较key
+     *
+     * @param keyHash
+     * @return 没有fingerprint一致的slot返回-1
+     */
+    public long addressOf(long keyHash) {
+
+        int hash = Hash.bucket(keyHash);
+        lock();
+        try {
+            IndexMemoryByte table = tableFor(hash);
+            long[] positions = candidates(table, hash & (table.capacity() - 1), Hash.fingerprint(keyHash));
+            return positions.length == 0 ? -1 : positions[0];
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * get与contains的实现；
+     * <p>
+     * 布隆过滤器判断key不存在就直接返回；
+     * 否则先不加锁读索引与数据文件，读完再确认期间索引没有被put或者扩容修改过, 修改过的话就加锁重读,
+     * 读多写少的时候get之间不会互相阻塞；加锁的时候也只在锁内查内存索引，读磁盘在锁外
+     *
+     * @param withValue 是否读取value
+     * @return value, 不读取value的时候key存在返回{@link #PRESENT}; key不存在返回null
+     */
+    private byte[] lookup(byte[] key, long keyHash, boolean withValue) {
+
+        int hash = Hash.bucket(keyHash);
+        int hashcode = Hash.fingerprint(keyHash);
+
+        int stamp = stampOf(hash);
+        for (int i = 0; i < optimisticReads; i++) {
+            int version = stamps.get(stamp);
+            // 先读版本号，之前完成的put加到过滤器里的位都能看到
+            BloomFilter filter = bloom;
+            if (filter != null && !filter.mightContain(keyHash)) {
+                return null;
+            }
+            if ((version & 1) != 0) {
+                // 正在修改索引
+                break;
+            }
+            try {
+                IndexMemoryByte table = tableFor(hash);
+                byte[] value = find(table, dataFiles, hash & (table.capacity() - 1), key, hashcode, withValue);
+                if (validate(stamp, version)) {
+                    return value;
+                }
+            } catch (Exception e) {
+                // 与修改并发的时候可能读到不一致的索引，加锁重读
+            }
+        }
+
+        while (true) {
+            int version;
+            long[] positions;
+            lock();
+            try {
+                version = stamps.get(stamp);
+                IndexMemoryByte table = tableFor(hash);
+                positions = candidates(table, hash & (table.capacity() - 1), hashcode);
+            } finally {
+                unlock();
+            }
+
+            try {
+                // 数据文件里的itemData写入之后不会再改变，锁外读取的是加锁时索引指向的数据
+                for (int i = 0; i < positions.length; i += 2) {
+                    byte[] value = readValue(dataFiles, positions[i], (int) positions[i + 1], key, withValue);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+                return null;
+            } catch (IOException e) {
+                if (stamps.get(stamp) == version) {
+                    e.printStackTrace();
+                    return null;
+                }
+                // 读的时候数据文件被删除了，重新查找
+            }
+        }
+    }
+
+    /**
+     * 在table的index的slot链上找出hashcode一致的slot，调用时持有锁
+     *
+     * @return 每个slot依次为itemData的地址与长度
+     */
+    private static long[] candidates(IndexMemoryByte table, int index, int hashcode) {
+
+        long[] positions = new long[2];
+        int count = 0;
+        do {
+            if (table.getHashCode(index) == hashcode) {
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count << 1);
+                }
+                positions[count++] = table.getFilePosition(index);
+                positions[count++] = table.getLength(index);
+            }
+        } while ((index = table.getAttachedSlot(index)) != 0);
+        return count == positions.length ? positions : Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * 在table的index的slot链上查找key的value
+     *
+     * @param table
+     * @param data      table对应的数据文件
+     * @param index     key所在的bucket
+     * @param key
+     * @param hashcode
+     * @param withValue 是否读取value
+     * @return byte[] or null
+     * @throws IOException
+     */
+    private static byte[] find(IndexMemoryByte table, DataFiles data, int index, byte[] key, int hashcode,
+                               boolean withValue) throws IOException {
+
+        // 不加锁读的时候slot链可能不一致, 限制遍历的长度
+        int steps = table.capacity() + 1;
+        do {
+            if (table.getHashCode(index) == hashcode) {
+                byte[] value = readValue(data, table.getFilePosition(index), table.getLength(index), key,
+                        withValue);
+                if (value != null) {
+                    return value;
+                }
+            }
+            if (--steps == 0) {
+                throw new IllegalStateException("the slot chain of bucket is broken");
+            }
+        } while ((index = table.getAttachedSlot(index)) != 0);
+        return null;
+    }
+
+    /**
+     * 读取address处的itemData, key与itemData里的key一致就返回value;
+     * slot里记录了itemData的长度的话只需一次随机读
+     * <pre><b>itemData格式:</b> datalength(4字节) + keylength(4字节) + key + value
+     * datalength的大小：4 + key的字节长度 + value的字节长度</pre>
+     *
+     * @param address   itemData的地址
+     * @param length    itemData的长度，为0的时候先读取itemData的头得到长度
+     * @param withValue 为false的时候只读取key, key一致返回{@link #PRESENT}
+     * @return byte[] or null
+     * @throws IOException
+     */
+    private static byte[] readValue(DataFiles dataFiles, long address, int length, byte[] key, boolean withValue)
+            throws IOException {
+
+        InputOutData data = dataFiles.file(Slot.fileId(address));
+        long offset = Slot.position(address);
+
+        if (length <= 0) {
+            // 旧版本的索引没有记录长度
+            byte[] header = data.seek(offset, 8);
+            // note: key的hashcode相等的情况下也有可能key不一致
+            if (NumberPacker.unpackInt(header, 4) != key.length) {
+                return null;
+            }
+            length = NumberPacker.unpackInt(header, 0) + 4;
+        }
+        if (length < 8 + key.length || offset + length > data.maxOffSet()) {
+            return null;
+        }
+
+        byte[] item = data.seek(offset, withValue ? length : 8 + key.length);
+        if (NumberPacker.unpackInt(item, 0) + 4 != length || NumberPacker.unpackInt(item, 4) != key.length) {
+            return null;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (item[8 + i] != key[i]) {
+                return null;
+            }
+        }
+        return withValue ? Arrays.copyOfRange(item, 8 + key.length, length) : PRESENT;
+    }
+
+    /**
+     * 将数据文件已写入的数据刷到磁盘上，不用加锁；扩容新写的数据文件在替换索引前已经sync过
+     *
+     * @throws IOException
+     */
+    public void syncData() throws IOException {
+
+        dataFiles.sync();
+    }
+
+    /**
+     * 当前索引的装载因子与slot链长度的统计
+     *
+     * @return
+     */
+    public IndexStats stats() {
+
+        lock();
+        try {
+            IndexMemoryByte table = indexMemoryByte;
+            return new IndexStats(table.capacity(), table.overflow(), table.entries(), table.usedBuckets(),
+                    table.longestChain());
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 不关闭分段，将索引写入磁盘并记录checkpoint，之后崩溃的话打开时只需重放这之后put的数据；
+     * <p>
+     * 只在锁里取出要写的内容(见{@link #prepareCheckpoint()})，sync数据文件与写布隆过滤器、索引文件都在锁外，
+     * put只等拷贝内存的时间，get不加锁不受影响。线性扩容分裂到一半的话先在锁里分裂完，
+     * 后台扩容与compact的时候照常checkpoint：它们写的新数据文件在替换索引之前没有索引指向
+     *
+     * @return 是否已经checkpoint，分段已经关闭或者只读的时候返回false
+     * @throws IOException
+     */
+    public boolean checkpointOnline() throws IOException {
+
+        checkpointLock.lock();
+        try {
+            Checkpoint pending;
+            lock();
+            try {
+                if (closed || onlyRead) {
+                    return false;
+                }
+                // 已经分裂的bucket在新索引里，旧索引不完整，分裂只在内存里进行
+                while (splitting != null) {
+                    splitBucket();
+                }
+                // 上次checkpoint之后没有put，也没有等待删除的数据文件
+                if (dataFiles.end() == checkpointed && retiredFiles.isEmpty()) {
+                    return true;
+                }
+                pending = prepareCheckpoint();
+            } finally {
+                unlock();
+            }
+            writeCheckpoint(pending);
+            return true;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * 在{@link #CHECKPOINTER}里执行{@link #checkpointOnline()}，各个分段的checkpoint可以同时进行
+     *
+     * @return
+     */
+    public Future<Boolean> checkpointInBackground() {
+
+        return CHECKPOINTER.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return checkpointOnline();
+            }
+        });
+    }
+
+    /**
+     * 每个阶段的操作最终都要commit，如果在commit阶段，程序在执行扩容的话,就该等待程序执行完成 所以加lock()；
+     * 先等正在锁外写文件的checkpoint写完
+     */
+    public void commit() {
+        checkpointLock.lock();
+        try {
+            lock();
+            try {
+                close();
+            } finally {
+                unlock();
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * 根据offset去获取key的bytes,由于offset指itemData的开始段
+     * <pre><b>itemData格式:</b> itemData.length(4字节) + key.length(4字节) + key/value(n字节)</pre>
+     *
+     * @param offset： itemData的地址
+     * @return
+     * @throws IOException
+     */
+    private byte[] keyData(long offset) throws IOException {
+
+        return keyData(dataFiles, offset);
+    }
+
+    // 从数据文件里获取address处的key的bytes
+    private static byte[] keyData(DataFiles dataFiles, long address) throws IOException {
+
+        InputOutData data = dataFiles.file(Slot.fileId(address));
+        long offset = Slot.position(address);
+
+        // 获取key数据的长度
+        int keyLength = NumberPacker.unpackInt(data.seek(offset + 4, 4));
+
+        return data.seek(offset + 8, keyLength);
+    }
+
+    /**
+     * 索引文件达到full即attachedSlots没有可以再利用 需要扩容
+     * 扩容的时候：从旧的数据文件里顺序读取数据判断是否该数据被删除
+     * 并写到新的数据文件里
+     *
+     * @throws IOException
+     */
+    private void resize() throws IOException {
+
+        int newCap = doubledCapacity();
+        IndexMemoryByte tempMemoryByte = newIndexMemory(newCap);
+        BloomFilter tempBloom = newBloom(newCap);
+
+        // 之前的数据文件都不再改变，扩容只处理这些数据文件
+        int first = dataFiles.roll();
+        int[] sources = filesBefore(first);
+        compactFiles(sources, first, tempMemoryByte, tempBloom);
+
+        beginWrite();
+        try {
+            swapIndexMemory(tempMemoryByte, tempBloom);
+            retireFiles(sources);
+        } finally {
+            endWrite();
+        }
+        if (garbageRatio > 0) {
+            countLive();
+        }
+    }
+
+    /**
+     * 只在内存里扩容：用slot里存的key的hash值把所有slot重新放到两倍容量的新索引里，不读写数据文件;
+     * 数据文件里的无效数据交给后台compact处理
+     * <p>
+     * 新索引建好之前get仍然读旧的索引，替换的时候才通知不加锁的get重试
+     *
+     * @throws IOException
+     */
+    private void rehash() throws IOException {
+
+        IndexMemoryByte table = newIndexMemory(doubledCapacity());
+        BloomFilter filter = newBloom(table.capacity());
+        for (int bucket = 0, capacity = indexMemoryByte.capacity(); bucket < capacity; bucket++) {
+            if (indexMemoryByte.getHashCode(bucket) == 0) {
+                continue;
+            }
+            int index = bucket;
+            do {
+                putOnExtension(keyHashOf(indexMemoryByte, index), indexMemoryByte.getFilePosition(index),
+                        indexMemoryByte.getLength(index), table, filter);
+            } while ((index = indexMemoryByte.getAttachedSlot(index)) != 0);
+        }
+
+        beginWrite();
+        try {
+            swapIndexMemory(table, filter);
+        } finally {
+            endWrite();
+        }
+    }
+
+    // 扩容后的容量, 超过MAXSIZE就抛出异常
+    private int doubledCapacity() {
+
+        int newCap;
+        if ((newCap = indexMemoryByte.capacity() << 1) > MAXSIZE) {
+            throw new IllegalArgumentException(
+                    "The comapacity:`" + newCap + "` is reaching its maxsize and can`t expend anymore");
+        }
+        return newCap;
+    }
+
+    /**
+     * 序号小于first并且没有等待删除的数据文件，调用时持有锁
+     *
+     * @param first
+     * @return
+     */
+    private int[] filesBefore(int first) {
+
+        int[] ids = dataFiles.ids();
+        int count = 0;
+        for (int id : ids) {
+            if (id < first && !retiredFiles.contains(id)) {
+                ids[count++] = id;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * 逐个顺序读取sources里的数据文件，将其中有效的itemData写到新的数据文件里，并在table里添加索引；
+     * 新的数据文件写满{@link DataFiles#fileSize()}就再新建一个, 每个新的数据文件都写一个{@link HintFile}；
+     * hint文件在新建数据文件的时候就写好文件头，中途崩溃留下的数据文件打开分段的时候会删除
+     * <p>
+     * 流水线：调用线程用大的预读缓冲顺序读出一批批itemData，交给{@link #VALIDATORS}并行算hash值、判断是否有效，
+     * 再按读取的顺序把有效的itemData攒成大块顺序写入新的数据文件；判断有效不加锁, 所以后台扩容的时候也能与put并发执行
+     *
+     * @param sources 要处理的数据文件的序号，这些数据文件都不再改变
+     * @param before  扩容开始之后put的第一个数据文件的序号
+     * @param table  新的空的内存索引
+     * @param filter table对应的空的布隆过滤器，可以为null
+     * @return 新的数据文件的序号，已经sync到磁盘上
+     * @throws IOException
+     */
+    private List<Integer> compactFiles(int[] sources, int before, IndexMemoryByte table, BloomFilter filter)
+            throws IOException {
+
+        List<Integer> targets = new ArrayList<Integer>();
+        List<HintFile.Writer> hints = new ArrayList<HintFile.Writer>();
+        int blockSize = bufferedSize * READ_AHEAD_BLOCKS;
+        // 用来写文件的缓存的block
+        WritingBufferedBlock writingBlock = WritingBufferedBlock.allocate(blockSize);
+        // 将写文件的缓存block的limit设置为最大
+        writingBlock.setLimit(blockSize);
+        // 正在并行判断的批次，按读取的顺序写入
+        LinkedList<Future<ItemBatch>> pending = new LinkedList<Future<ItemBatch>>();
+        InputOutData target = null;
+        int targetId = -1;
+        // 正在读取的数据文件在sources里的下标
+        int next = 0;
+        // 用自己的文件读写入口顺序读，不加锁的get还在用这个数据文件
+        InputOutData source = null;
+        DataFileScanner scanner = null;
+
+        boolean done = false;
+        try {
+            while (true) {
+                while (pending.size() < PENDING_BATCHES && next < sources.length) {
+                    if (scanner == null) {
+                        source = dataFiles.openReader(sources[next]);
+                        scanner = new DataFileScanner(source, 0, source.maxOffSet(), blockSize);
+                    }
+                    ItemBatch batch = ItemBatch.read(scanner, sources[next], bufferedSize);
+                    if (batch == null) {
+                        source.close();
+                        source = null;
+                        scanner = null;
+                        next++;
+                        continue;
+                    }
+                    pending.add(validateLater(batch));
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                ItemBatch batch = awaitBatch(pending.removeFirst());
+                for (int i = 0; i < batch.size(); i++) {
+                    if (!batch.isLive(i)) {
+                        continue;
+                    }
+                    byte[] itemData = batch.itemData(i);
+                    long written = target == null ? 0 : target.maxOffSet() + writingBlock.getPosition();
+                    if (target == null || written > 0 && written + itemData.length > dataFiles.fileSize()) {
+                        // 新的数据文件写满了
+                        if (target != null) {
+                            target.append(writingBlock.flush());
+                        }
+                        targetId = dataFiles.createTarget(before, hints);
+                        targets.add(targetId);
+                        target = dataFiles.file(targetId);
+                    } else if (!writingBlock.hasRoomFor(itemData)) {
+                        target.append(writingBlock.flush());
+                    }
+                    long position = target.maxOffSet() + writingBlock.getPosition();
+                    putOnExtension(batch.keyHash(i), Slot.address(targetId, position), itemData.length, table, filter);
+                    hints.get(hints.size() - 1).add(batch.keyHash(i), batch.key(i), position, itemData.length);
+                    wrapOrAppend(target, writingBlock, itemData);
+                }
+            }
+            if (target != null) {
+                target.append(writingBlock.flush());
+            }
+            // 旧的数据文件删除之后只剩新文件里的数据，先刷到磁盘上
+            for (int id : targets) {
+                dataFiles.file(id).sync();
+            }
+            for (HintFile.Writer hint : hints) {
+                hint.finish();
+            }
+            done = true;
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+            for (Future<ItemBatch> future : pending) {
+                future.cancel(false);
+            }
+            if (!done) {
+                for (HintFile.Writer hint : hints) {
+                    hint.abandon();
+                }
+                for (int id : targets) {
+                    dataFiles.remove(id);
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * 将itemData放入写缓冲块，调用前已经确认缓冲块为空或者还有空间；比整个缓冲块还大的itemData直接写入target
+     *
+     * @param target
+     * @param writingBlock
+     * @param itemData
+     * @throws IOException
+     */
+    private static void wrapOrAppend(InputOutData target, WritingBufferedBlock writingBlock, byte[] itemData)
+            throws IOException {
+
+        if (writingBlock.hasRoomFor(itemData)) {
+            writingBlock.wrap(itemData);
+        } else {
+            target.append(itemData);
+        }
+    }
+
+    // 在VALIDATORS里判断batch里的itemData是否有效
+    private Future<ItemBatch> validateLater(final ItemBatch batch) {
+
+        return VALIDATORS.submit(new Callable<ItemBatch>() {
+            @Override
+            public ItemBatch call() {
+                for (int i = 0; i < batch.size(); i++) {
+                    long keyHash = hashFunction.hash(batch.key(i));
+                    batch.mark(i, keyHash, isLive(keyHash, batch.address(i)));
+                }
+                return batch;
+            }
+        });
+    }
+
+    // 等待一批itemData判断完
+    private static ItemBatch awaitBatch(Future<ItemBatch> future) throws IOException {
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("failed to validate the items: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while validating the items");
+        }
+    }
+
+    /**
+     * 不加锁判断address处的itemData是否还有索引指向，在{@link #VALIDATORS}里调用；
+     * 读的时候索引被put修改了就重读。同步扩容的时候调用方持有锁，索引不会改变；
+     * 后台扩容的时候判断为有效之后才被覆盖的itemData, 由之后重放新的active数据文件修正
+     *
+     * @param keyHash
+     * @param address
+     * @return
+     */
+    private boolean isLive(long keyHash, long address) {
+
+        int stamp = stampOf(Hash.bucket(keyHash));
+        while (true) {
+            int version = stamps.get(stamp);
+            if ((version & 1) == 0) {
+                try {
+                    boolean live = slotOf(indexMemoryByte, keyHash, address) >= 0;
+                    if (validate(stamp, version)) {
+                        return live;
+                    }
+                } catch (Exception e) {
+                    // 与修改并发的时候可能读到不一致的索引，重读
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 后台扩容：在后台线程里生成新的内存索引与去掉无效数据的数据文件，期间get与put仍然使用旧的索引与数据文件；
+     * 扩容期间put的数据都追加在新的active数据文件里，新索引建完后先在后台追赶这部分数据，
+     * 最后加锁重放剩下的少量数据，再替换旧的索引; 重放只添加索引，不用拷贝数据
+     *
+     * @throws IOException
+     */
+    private void startBackgroundResize() throws IOException {
+
+        // 调用时持有锁，之前的数据文件都不再改变
+        final int first = dataFiles.roll();
+        final int[] sources = filesBefore(first);
+        resizing = true;
+        RESIZER.execute(new Runnable() {
+            @Override
+            public void run() {
+                backgroundResize(first, sources);
+            }
+        });
+    }
+
+    private void backgroundResize(int first, int[] sources) {
+
+        List<Integer> compacted = null;
+        boolean swapped = false;
+        try {
+            IndexMemoryByte table = newIndexMemory(doubledCapacity());
+            BloomFilter filter = newBloom(table.capacity());
+
+            compacted = compactFiles(sources, first, table, filter);
+
+            // 追赶扩容期间put的数据，直到剩下的不足一个读缓冲块
+            long replayed = Slot.address(first, 0);
+            long tail;
+            while (!caughtUp(replayed, tail = flushedEnd())) {
+                replayTail(replayed, tail, compacted, table, filter);
+                replayed = tail;
+            }
+
+            lock();
+            try {
+                dataFiles.flush();
+                replayTail(replayed, dataFiles.end(), compacted, table, filter);
+                beginWrite();
+                try {
+                    swapIndexMemory(table, filter);
+                    retireFiles(sources);
+                } finally {
+                    endWrite();
+                }
+                swapped = true;
+                if (garbageRatio > 0) {
+                    countLive();
+                }
+            } finally {
+                resizing = false;
+                resizeFailed = !swapped;
+                resized.signalAll();
+                unlock();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            lock();
+            try {
+                resizing = false;
+                resizeFailed = true;
+                resized.signalAll();
+            } finally {
+                unlock();
+            }
+        } finally {
+            if (!swapped && compacted != null) {
+                for (int id : compacted) {
+                    dataFiles.remove(id);
+                }
+            }
+        }
+    }
+
+    // 加锁将追加缓冲写入文件，并获取当前数据的末尾的地址
+    private long flushedEnd() throws IOException {
+
+        lock();
+        try {
+            dataFiles.flush();
+            return dataFiles.end();
+        } finally {
+            unlock();
+        }
+    }
+
+    // from与to在同一个数据文件里，且相差不到一个读缓冲块
+    private boolean caughtUp(long from, long to) {
+
+        return Slot.fileId(from) == Slot.fileId(to) && Slot.position(to) - Slot.position(from) <= bufferedSize;
+    }
+
+    /**
+     * 将[from, to)之间的数据按顺序在table里添加或者替换索引, 跳过扩容新写的数据文件
+     *
+     * @param from    开始的地址
+     * @param to      结束的地址
+     * @param skipped 扩容新写的数据文件的序号
+     * @throws IOException
+     */
+    private void replayTail(long from, long to, List<Integer> skipped, IndexMemoryByte table, BloomFilter filter)
+            throws IOException {
+
+        for (int id : dataFiles.ids()) {
+            if (id < Slot.fileId(from) || id > Slot.fileId(to) || skipped.contains(id)) {
+                continue;
+            }
+            long position = id == Slot.fileId(from) ? Slot.position(from) : 0;
+            long end = id == Slot.fileId(to) ? Slot.position(to) : dataFiles.file(id).maxOffSet();
+            if (position < end && replayData(id, position, end, table, filter) != end) {
+                throw new IOException(
+                        "no empty slot left in the resized index or broken data in " + dataFiles.nameOf(id));
+            }
+        }
+    }
+
+    /**
+     * 顺序读取序号为id的数据文件里[position, end)之间的数据，按顺序在table里添加或者替换索引
+     *
+     * @return 读到的位置：全部重放完为end, 遇到不完整的itemData为它的开始位置; table的attachedSlots满了返回-1
+     * @throws IOException
+     */
+    private long replayData(int id, long position, long end, IndexMemoryByte table, BloomFilter filter)
+            throws IOException {
+
+        DataFileScanner scanner = new DataFileScanner(dataFiles.file(id), position, end, bufferedSize);
+        while (scanner.next()) {
+            byte[] key = scanner.key();
+            long keyHash = hashFunction.hash(key);
+            if (!putSlot(table, dataFiles, keyHash, key, Slot.address(id, scanner.itemPosition()),
+                    scanner.itemData().length)) {
+                return -1;
+            }
+            if (filter != null) {
+                filter.add(keyHash);
+            }
+        }
+        return scanner.position();
+    }
+
+    /**
+     * 扩容处理过的数据文件已经没有索引指向，等到下次commit写入新的索引之后再删除；
+     * 在这之前崩溃的话，磁盘上旧的索引还能找到数据。调用时持有锁
+     *
+     * @param sources
+     */
+    private void retireFiles(int[] sources) {
+
+        for (int id : sources) {
+            retiredFiles.add(id);
+        }
+    }
+
+    /**
+     * 新建扩容用的空的内存索引; 映射模式下先映射到临时的索引文件
+     *
+     * @param capacity
+     * @return
+     * @throws IOException
+     */
+    private IndexMemoryByte newIndexMemory(int capacity) throws IOException {
+
+        // 扩大过的attachedSlots要能容纳旧索引里所有的key
+        IndexMemoryByte table = indexMemoryByte;
+        return newIndexMemory(capacity, Math.max(capacity, table.capacity() + table.current()));
+    }
+
+    // 新建bucket与attachedSlots个数分别为capacity与overflow的空的内存索引
+    private IndexMemoryByte newIndexMemory(int capacity, int overflow) throws IOException {
+
+        return indexMapped
+                ? IndexMemoryByte.map(fsd.fileOf(fileName + INDEXSUFFIX + TEMFILESUFFIX), capacity, overflow)
+                : IndexMemoryByte.init(capacity, overflow, 0);
+    }
+
+    /**
+     * 用扩容完成的内存索引与布隆过滤器替换旧的; 映射模式下临时的索引文件替换掉旧的索引文件
+     *
+     * @param newIndexMemory
+     * @param newBloom
+     */
+    private void swapIndexMemory(IndexMemoryByte newIndexMemory, BloomFilter newBloom) {
+
+        if (indexMapped) {
+            fsd.rename(fileName + INDEXSUFFIX + TEMFILESUFFIX, fileName + INDEXSUFFIX);
+        }
+        indexMemoryByte = newIndexMemory;
+        bloom = newBloom;
+    }
+
+    /**
+     * 不加锁的put 只在扩容或者campact的时候调用,添加新的索引信息
+     *
+     * @param keyHash     key的64位hash值
+     * @param offset      rawdata的地址：数据文件的序号与文件里的偏移
+     * @param length      rawdata的长度, 0为未知
+     * @param indexMemory 另一内存索引用来扩充等等
+     * @param filter      indexMemory对应的布隆过滤器，可以为null
+     */
+    private static void putOnExtension(long keyHash, long offset, int length, IndexMemoryByte indexMemory,
+                                       BloomFilter filter) {
+
+        if (filter != null) {
+            filter.add(keyHash);
+        }
+        int index = Hash.bucket(keyHash) & (indexMemory.capacity() - 1);
+        int hc = Hash.fingerprint(keyHash);
+        // 标记最终的slot是否在attachedSlots里
+        boolean isInAttached = false;
+
+        // 追加之后slot链的长度
+        int chain = 1;
+        if (indexMemory.getHashCode(index) != 0) {
+            isInAttached = true;
+
+            chain++;
+            while (indexMemory.getAttachedSlot(index) != 0) {
+                index = indexMemory.getAttachedSlot(index);
+                chain++;
+            }
+        }
+
+        // 新建slot, 并将slot的index 更新到上一个slot的attachedSlot
+        if (isInAttached) {
+            int newIndex = indexMemory.nextCurrentSafely();
+            indexMemory.replaceSlot(hc, Hash.bucket(keyHash), offset, length, 0, newIndex);
+            indexMemory.setAttachedSlot(index, newIndex);
+            indexMemory.chainGrew(chain);
+            return;
+        }
+        indexMemory.replaceSlot(hc, Hash.bucket(keyHash), offset, length, 0, index);
+        indexMemory.bucketUsed();
+    }
+
+    /**
+     * 从磁盘读取每个item，并在索引内存里判断其是否有效
+     *
+     * @return true: 有效的item； false：无效的item
+     */
+    private boolean isItemValid(byte[] key, long offset) {
+
+        return slotOf(indexMemoryByte, key, offset) >= 0;
+    }
+
+    /**
+     * 在table里查找指向offset处的key的slot
+     *
+     * @param table
+     * @param key
+     * @param offset itemData的地址
+     * @return slot的index, 没有索引指向的话返回-1
+     */
+    private int slotOf(IndexMemoryByte table, byte[] key, long offset) {
+
+        return slotOf(table, hashFunction.hash(key), offset);
+    }
+
+    /**
+     * table里序号为index的slot的key的64位hash值；slot里的hashcode为1的时候无法区分fingerprint是0还是1,
+     * 只有这时才读取key重新计算
+     *
+     * @param table
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    private long keyHashOf(IndexMemoryByte table, int index) throws IOException {
+
+        int hashcode = table.getHashCode(index);
+        if (Slot.isKeyHashExact(hashcode)) {
+            return Slot.keyHash(hashcode, table.getBucketHash(index));
+        }
+        return hashFunction.hash(keyData(table.getFilePosition(index)));
+    }
+
+    // 在table里查找指向offset处的itemData的slot, keyHash为itemData的key的64位hash值
+    private static int slotOf(IndexMemoryByte table, long keyHash, long offset) {
+
+        int index = Hash.bucket(keyHash) & table.capacity() - 1;
+
+        do {
+            if (table.getFilePosition(index) == offset && table.getHashCode(index) != 0) {
+                return index;
+            }
+        } while ((index = table.getAttachedSlot(index)) != 0);
+
+        return -1;
+    }
+
+    /**
+     * 后台compact：定时找出无效数据比例超过{@link Configuration#COMPACTION_GARBAGE_RATIO}的数据文件，
+     * 只把其中有效的itemData搬到新的数据文件里，原地修改索引指向新的地址，索引的容量不变；
+     * 搬完之后写入索引，再删除整个旧的数据文件
+     * <p>
+     * 搬数据的时候只在判断有效与修改索引的时候加锁，读写数据文件都在锁外并受{@link Configuration#COMPACTION_RATE}限速,
+     * 与get和put并发执行；扩容或者关闭分段的时候停下，已经搬过的数据仍然有效
+     */
+    private void compactGarbage() {
+
+        int victim;
+        lock();
+        try {
+            if (closed || resizing || splitting != null || compacting) {
+                return;
+            }
+            victim = garbageFile();
+            if (victim < 0) {
+                return;
+            }
+            compacting = true;
+            compactionAborted = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            unlock();
+        }
+
+        boolean done = false;
+        try {
+            done = relocate(victim);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            lock();
+            try {
+                if (done) {
+                    retiredFiles.add(victim);
+                }
+            } finally {
+                compacting = false;
+                compacted.signalAll();
+                unlock();
+            }
+        }
+        // 写入指向新位置的索引之后才能删除旧的数据文件
+        if (done) {
+            try {
+                checkpointOnline();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 无效数据最多并且比例超过garbageRatio的数据文件，不包括active数据文件与等待删除的数据文件；调用时持有锁
+     *
+     * @return 数据文件的序号，没有的话返回-1
+     * @throws IOException
+     */
+    private int garbageFile() throws IOException {
+
+        int victim = -1;
+        long most = 0;
+        for (int id : dataFiles.ids()) {
+            if (id == dataFiles.activeId() || retiredFiles.contains(id)) {
+                continue;
+            }
+            long size = dataFiles.file(id).maxOffSet();
+            long garbage = size - dataFiles.liveBytes(id);
+            if (garbage > most && garbage * 100 >= (long) garbageRatio * size) {
+                victim = id;
+                most = garbage;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * 顺序读取序号为victim的数据文件，把有效的itemData追加到新的数据文件里并修改索引；
+     * 每个读缓冲块先写入新的数据文件，再加锁确认itemData仍然有效才让索引指向新的地址,
+     * 期间被put覆盖的itemData不会改回去
+     * <p>
+     * 新建数据文件的同时让put换到一个序号更大的数据文件，之后覆盖的数据都在序号更大的数据文件里；
+     * 新的数据文件的{@link HintFile}只记录索引指向了的itemData
+     *
+     * @param victim
+     * @return 所有有效的itemData都搬完了返回true, 中途被要求停下返回false
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private boolean relocate(int victim) throws IOException, InterruptedException {
+
+        RateLimiter limiter = RateLimiter.create(compactionRate);
+        List<Integer> targets = new ArrayList<Integer>();
+        List<HintFile.Writer> hints = new ArrayList<HintFile.Writer>();
+        WritingBufferedBlock writingBlock = WritingBufferedBlock.allocate(bufferedSize);
+        writingBlock.setLimit(bufferedSize);
+        InputOutData target = null;
+        int targetId = -1;
+
+        InputOutData source = dataFiles.openReader(victim);
+        try {
+            DataFileScanner scanner = new DataFileScanner(source, 0, source.maxOffSet(), bufferedSize);
+            ItemBatch batch;
+            while ((batch = ItemBatch.read(scanner, victim, bufferedSize)) != null) {
+                if (compactionAborted) {
+                    return false;
+                }
+                limiter.acquire(batch.bytes());
+
+                long[] keyHashes = new long[batch.size()];
+                for (int i = 0; i < keyHashes.length; i++) {
+                    keyHashes[i] = hashFunction.hash(batch.key(i));
+                }
+                boolean any = false;
+                lock();
+                try {
+                    for (int i = 0; i < keyHashes.length; i++) {
+                        boolean live = slotOf(tableFor(Hash.bucket(keyHashes[i])), keyHashes[i], batch.address(i)) >= 0;
+                        batch.mark(i, keyHashes[i], live);
+                        any |= live;
+                    }
+                } finally {
+                    unlock();
+                }
+                if (!any) {
+                    continue;
+                }
+
+                // 先把这一批有效的itemData写入新的数据文件
+                long[] addresses = new long[batch.size()];
+                long written = 0;
+                for (int i = 0; i < addresses.length; i++) {
+                    if (!batch.isLive(i)) {
+                        continue;
+                    }
+                    byte[] itemData = batch.itemData(i);
+                    long end = target == null ? 0 : target.maxOffSet() + writingBlock.getPosition();
+                    if (target == null || end > 0 && end + itemData.length > dataFiles.fileSize()) {
+                        // 新的数据文件写满了
+                        if (target != null) {
+                            target.append(writingBlock.flush());
+                        }
+                        lock();
+                        try {
+                            targetId = dataFiles.createTargetAndRoll(hints);
+                        } finally {
+                            unlock();
+                        }
+                        targets.add(targetId);
+                        target = dataFiles.file(targetId);
+                    } else if (!writingBlock.hasRoomFor(itemData)) {
+                        target.append(writingBlock.flush());
+                    }
+                    addresses[i] = Slot.address(targetId, target.maxOffSet() + writingBlock.getPosition());
+                    wrapOrAppend(target, writingBlock, itemData);
+                    written += itemData.length;
+                }
+                target.append(writingBlock.flush());
+                limiter.acquire(written);
+
+                // 再让仍然有效的slot指向新的地址
+                boolean[] moved = new boolean[addresses.length];
+                lock();
+                beginWrite();
+                try {
+                    for (int i = 0; i < addresses.length; i++) {
+                        if (!batch.isLive(i)) {
+                            continue;
+                        }
+                        IndexMemoryByte table = tableFor(Hash.bucket(batch.keyHash(i)));
+                        int index = slotOf(table, batch.keyHash(i), batch.address(i));
+                        if (index < 0) {
+                            continue;
+                        }
+                        int length = batch.itemData(i).length;
+                        table.replaceSlot(table.getHashCode(index), table.getBucketHash(index), addresses[i], length,
+                                table.getAttachedSlot(index), index);
+                        dataFiles.addLive(victim, -length);
+                        dataFiles.addLive(Slot.fileId(addresses[i]), length);
+                        moved[i] = true;
+                    }
+                } finally {
+                    endWrite();
+                    unlock();
+                }
+
+                for (int i = 0; i < addresses.length; i++) {
+                    if (moved[i]) {
+                        hintOf(hints, targets, Slot.fileId(addresses[i])).add(batch.keyHash(i), batch.key(i),
+                                Slot.position(addresses[i]), batch.itemData(i).length);
+                    }
+                }
+            }
+            return true;
+        } finally {
+            source.close();
+            // 索引可能已经指向新的数据文件，中途停下也要刷到磁盘上
+            for (int id : targets) {
+                dataFiles.file(id).sync();
+            }
+            // 新的数据文件里可能已经有索引指向的数据，出错的时候也保留，hint文件标记它不是put的数据文件
+            for (HintFile.Writer hint : hints) {
+                hint.finish();
+            }
+        }
+    }
+
+    // 序号为id的新数据文件的hint文件
+    private static HintFile.Writer hintOf(List<HintFile.Writer> hints, List<Integer> targets, int id) {
+
+        return hints.get(targets.indexOf(id));
+    }
+
+    /**
+     * 让后台compact停下并等待它结束，等待的时候会释放锁；调用时持有锁
+     */
+    private void stopCompaction() {
+
+        if (!compacting) {
+            return;
+        }
+        compactionAborted = true;
+        while (compacting) {
+            compacted.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * 记录索引文件包含了covered之前put的所有数据，写到临时文件再替换
+     *
+     * @param covered 数据的地址
+     * @throws IOException
+     */
+    private void saveCheckpoint(long covered) throws IOException {
+
+        byte[] bytes = new byte[12];
+        NumberPacker.packInt(Slot.fileId(covered), bytes, 0);
+        NumberPacker.packInt((int) (Slot.position(covered) >>> 32), bytes, 4);
+        NumberPacker.packInt((int) Slot.position(covered), bytes, 8);
+
+        InputOutData temCheckpoint = fsd.createDataStream(fileName + CHECKPOINTSUFFIX + TEMFILESUFFIX, false);
+        try {
+            temCheckpoint.truncate(0);
+            temCheckpoint.append(bytes);
+            temCheckpoint.sync();
+        } finally {
+            temCheckpoint.close();
+        }
+        fsd.rename(fileName + CHECKPOINTSUFFIX + TEMFILESUFFIX, fileName + CHECKPOINTSUFFIX);
+        checkpointed = covered;
+    }
+
+    /**
+     * 读取checkpoint文件里记录的地址
+     *
+     * @return 没有checkpoint文件的话返回-1
+     */
+    private long readCheckpoint() {
+
+        if (!fsd.isExsit(fileName + CHECKPOINTSUFFIX)) {
+            return -1;
+        }
+        byte[] bytes = fsd.readIndexFully(fileName + CHECKPOINTSUFFIX);
+        if (bytes == null || bytes.length != 12) {
+            return -1;
+        }
+        long position = (long) NumberPacker.unpackInt(bytes, 4) << 32 | NumberPacker.unpackInt(bytes, 8) & 0xFFFFFFFFL;
+        return Slot.address(NumberPacker.unpackInt(bytes, 0), position);
+    }
+
+    /**
+     * 将数据文件的追加缓冲、布隆过滤器与索引写入磁盘, 再删除已经没有索引指向的数据文件；
+     * 调用时持有锁，打开与关闭分段的时候用，与put并发的见{@link #checkpointOnline()}
+     *
+     * @throws IOException
+     */
+    private void checkpoint() throws IOException {
+
+        writeCheckpoint(prepareCheckpoint());
+    }
+
+    /**
+     * checkpoint在锁里要做的：追加缓冲写入数据文件，取得数据的末尾、布隆过滤器与索引里修改过的部分；
+     * 三者是同一时刻的，布隆过滤器里的key不会比索引少，索引包含末尾之前的所有数据。调用时持有锁
+     *
+     * @return
+     * @throws IOException
+     */
+    private Checkpoint prepareCheckpoint() throws IOException {
+
+        dataFiles.flush();
+        return new Checkpoint(dataFiles.end(), bloom == null ? null : bloom.toBytes(),
+                indexMemoryByte.prepareFlush(), new ArrayList<Integer>(retiredFiles));
+    }
+
+    /**
+     * 按顺序sync数据文件，写入布隆过滤器、索引文件与checkpoint文件，不用持有锁；
+     * 最后加锁删除checkpoint之前已经没有索引指向的数据文件。失败的话索引修改过的部分留到下次再写
+     *
+     * @param pending
+     * @throws IOException
+     */
+    private void writeCheckpoint(Checkpoint pending) throws IOException {
+
+        try {
+            // 索引指向的数据都要先刷到磁盘上
+            dataFiles.sync();
+            saveBloom(pending.bloom);
+            pending.index.write(fsIndex, fsJournal);
+            saveCheckpoint(pending.covered);
+        } catch (IOException e) {
+            lock();
+            try {
+                pending.index.abort();
+            } finally {
+                unlock();
+            }
+            throw e;
+        }
+        // 新的索引已经写入，扩容与compact处理过的数据文件可以删除了
+        lock();
+        try {
+            for (int id : pending.retired) {
+                dataFiles.remove(id);
+            }
+            retiredFiles.removeAll(pending.retired);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 将内存的index文件flush到磁盘里, 只写入上次flush以来修改过的部分
+     */
+    private void close() {
+        closed = true;
+        if (compactionTask != null) {
+            compactionTask.cancel(false);
+        }
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+        }
+        stopCompaction();
+        try {
+            // 线性扩容还没有完成的话，先完成剩下的分裂
+            while (splitting != null) {
+                splitBucket();
+            }
+            // 等待后台扩容完成
+            while (resizing) {
+                resized.awaitUninterruptibly();
+            }
+            // 只读的时候索引没有修改过
+            if (!onlyRead) {
+                checkpoint();
+                // 映射的索引文件已经完整地刷到磁盘上，下次打开不用重建
+                if (indexMapped) {
+                    fsd.fileOf(fileName + MAPPEDSUFFIX).delete();
+                }
+            }
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        }
+        indexMemoryByte.release();
+        dataFiles.close();
+    }
+
+    // 一次checkpoint在锁里取出、在锁外写入的内容
+    private final static class Checkpoint {
+
+        // 索引包含这个地址之前的所有数据
+        private final long covered;
+        // 布隆过滤器的内容，没有开启的时候为null
+        private final byte[] bloom;
+        private final IndexMemoryByte.Flush index;
+        // 写完之后可以删除的数据文件
+        private final List<Integer> retired;
+
+        Checkpoint(long covered, byte[] bloom, IndexMemoryByte.Flush index, List<Integer> retired) {
+
+            this.covered = covered;
+            this.bloom = bloom;
+            this.index = index;
+            this.retired = retired;
         }
-        indexMemoryByte.release();
     }
 }
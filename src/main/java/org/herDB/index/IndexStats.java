@@ -0,0 +1,76 @@
+package org.herDB.index;
+
+/**
+ * 一个分段的内存索引在某一时刻的统计：装载因子与slot链的长度，用来观察get的探测长度
+ * <p>
+ * 线性扩容的过程中只统计旧的索引
+ *
+ * @author funeyu
+ */
+public final class IndexStats {
+
+    // bucket的个数
+    private final int capacity;
+    // attachedSlots的个数
+    private final int overflow;
+    // 索引里key的个数
+    private final int entries;
+    // 不为空的bucket个数
+    private final int usedBuckets;
+    // 最长的slot链的长度
+    private final int longestChain;
+
+    IndexStats(int capacity, int overflow, int entries, int usedBuckets, int longestChain) {
+
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.entries = entries;
+        this.usedBuckets = usedBuckets;
+        this.longestChain = longestChain;
+    }
+
+    public int capacity() {
+
+        return capacity;
+    }
+
+    public int overflow() {
+
+        return overflow;
+    }
+
+    public int entries() {
+
+        return entries;
+    }
+
+    public int usedBuckets() {
+
+        return usedBuckets;
+    }
+
+    public int longestChain() {
+
+        return longestChain;
+    }
+
+    // 装载因子：key的个数 / bucket的个数
+    public double loadFactor() {
+
+        return (double) entries / capacity;
+    }
+
+    // 不为空的bucket上slot链的平均长度，即命中的get平均比较的slot个数的上限
+    public double averageChain() {
+
+        return usedBuckets == 0 ? 0 : (double) entries / usedBuckets;
+    }
+
+    @Override
+    public String toString() {
+
+        return "capacity=" + capacity + ", overflow=" + overflow + ", entries=" + entries
+                + ", loadFactor=" + String.format("%.2f", loadFactor())
+                + ", averageChain=" + String.format("%.2f", averageChain()) + ", longestChain=" + longestChain;
+    }
+}
@@ -0,0 +1,117 @@
+package org.herDB.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 从一个数据文件里顺序读出的一批itemData，扩容与compact的时候以批为单位交给工作线程并行判断是否有效,
+ * 再按读取的顺序写入新的数据文件
+ * <p>
+ * 工作线程填写每个itemData的key的hash值与是否有效，{@link java.util.concurrent.Future#get()}之后读线程才能看到
+ *
+ * @author funeyu
+ */
+final class ItemBatch {
+
+    // 数据文件的序号
+    private final int fileId;
+    private int count;
+    private long[] positions = new long[16];
+    private byte[][] items = new byte[16][];
+    private byte[][] keys = new byte[16][];
+    // 所有itemData的字节数
+    private long bytes;
+
+    private long[] hashes;
+    private boolean[] live;
+
+    private ItemBatch(int fileId) {
+
+        this.fileId = fileId;
+    }
+
+    /**
+     * 从scanner里读出一批itemData，直到字节数达到size或者读完
+     *
+     * @param scanner
+     * @param fileId  scanner所读的数据文件的序号
+     * @param size    一批的字节数
+     * @return 没有更多的itemData返回null
+     * @throws IOException
+     */
+    static ItemBatch read(DataFileScanner scanner, int fileId, int size) throws IOException {
+
+        ItemBatch batch = new ItemBatch(fileId);
+        while (batch.bytes < size && scanner.next()) {
+            batch.add(scanner.itemPosition(), scanner.itemData(), scanner.key());
+        }
+        if (batch.count == 0) {
+            return null;
+        }
+        batch.hashes = new long[batch.count];
+        batch.live = new boolean[batch.count];
+        return batch;
+    }
+
+    private void add(long position, byte[] itemData, byte[] key) {
+
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, count << 1);
+            items = Arrays.copyOf(items, count << 1);
+            keys = Arrays.copyOf(keys, count << 1);
+        }
+        positions[count] = position;
+        items[count] = itemData;
+        keys[count] = key;
+        count++;
+        bytes += itemData.length;
+    }
+
+    int fileId() {
+
+        return fileId;
+    }
+
+    int size() {
+
+        return count;
+    }
+
+    long bytes() {
+
+        return bytes;
+    }
+
+    // 第i个itemData的地址
+    long address(int i) {
+
+        return Slot.address(fileId, positions[i]);
+    }
+
+    byte[] itemData(int i) {
+
+        return items[i];
+    }
+
+    byte[] key(int i) {
+
+        return keys[i];
+    }
+
+    long keyHash(int i) {
+
+        return hashes[i];
+    }
+
+    // 第i个itemData是否还有索引指向
+    boolean isLive(int i) {
+
+        return live[i];
+    }
+
+    void mark(int i, long keyHash, boolean isLive) {
+
+        hashes[i] = keyHash;
+        live[i] = isLive;
+    }
+}
@@ -0,0 +1,326 @@
+package org.herDB.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.herDB.store.InputOutData;
+
+/**
+ * 将.index文件映射到内存的slot表；slot的数据不在堆内存里，直接在映射的文件上原地读写。
+ * <p>
+ * 单个MappedByteBuffer最大只能映射2G，所以slots按照每{@link #REGION_SLOTS}个slot
+ * 分成多个region分别映射，整个索引文件的大小不受2G的限制。
+ * <p>
+ * 修改过的内存页什么时候写回文件由操作系统决定，一条slot链的修改可能只写回了一部分，
+ * flush的force也不能让文件停在某一次checkpoint的样子，所以不经过{@link IndexJournal}；
+ * 崩溃之后的索引文件不可信，由{@link IndexSegment}在打开的时候判断上次是否正常关闭，没有的话用数据文件重建
+ *
+ * @author funeyu
+ */
+final class MappedIndexMemoryByte extends IndexMemoryByte {
+
+    // 每个region能容纳的slot个数的位数
+    private final static int REGION_SHIFT = 26;
+    // 每个region能容纳的slot个数
+    private final static int REGION_SLOTS = 1 << REGION_SHIFT;
+    private final static int REGION_MASK = REGION_SLOTS - 1;
+
+    // 映射的文件头: MAGIC(4字节) + VERSION(4字节) + capacity(4字节) + current(4字节) + overflow(4字节)
+    private MappedByteBuffer header;
+    // 映射的slots
+    private MappedByteBuffer[] regions;
+
+    private MappedIndexMemoryByte(File file, int capacity, int overflow, int current) throws IOException {
+
+        super(capacity, overflow, current);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long slots = (long) capacity + overflow;
+            long length = HEADER_SIZE + slots * Slot.slotSize;
+            if (raf.length() < length) {
+                raf.setLength(length);
+            }
+
+            FileChannel channel = raf.getChannel();
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            regions = new MappedByteBuffer[(int) ((slots + REGION_SLOTS - 1) >>> REGION_SHIFT)];
+            for (int i = 0; i < regions.length; i++) {
+                long regionSlots = Math.min(REGION_SLOTS, slots - ((long) i << REGION_SHIFT));
+                regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + ((long) i << REGION_SHIFT) * Slot.slotSize,
+                        regionSlots * Slot.slotSize);
+            }
+        } finally {
+            // 映射建立之后关闭文件不影响映射的内存
+            raf.close();
+        }
+    }
+
+    /**
+     * 新建映射到file的空的slot表，file原有的内容会被清掉
+     *
+     * @param file
+     * @param capacity
+     * @param overflow attachedSlots的个数
+     * @return
+     * @throws IOException
+     */
+    static MappedIndexMemoryByte create(File file, int capacity, int overflow) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+        } finally {
+            raf.close();
+        }
+
+        MappedIndexMemoryByte indexMemory = new MappedIndexMemoryByte(file, capacity, overflow, 0);
+        indexMemory.writeHeader();
+        return indexMemory;
+    }
+
+    /**
+     * 映射已有的索引文件，capacity、current与overflow从文件头读取
+     *
+     * @param file
+     * @param resolver 旧版本的索引文件用来计算slot的buckethash
+     * @return
+     * @throws IOException
+     */
+    static MappedIndexMemoryByte open(File file, BucketResolver resolver) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        int capacity, current, overflow;
+        int version;
+        try {
+            version = versionOf(raf.readInt(), raf.readInt());
+        } finally {
+            raf.close();
+        }
+        if (version != VERSION) {
+            upgrade(file, version, resolver);
+        }
+
+        raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(8);
+            capacity = raf.readInt();
+            current = raf.readInt();
+            overflow = raf.readInt();
+        } finally {
+            raf.close();
+        }
+
+        return new MappedIndexMemoryByte(file, capacity, overflow, current);
+    }
+
+    /**
+     * 将旧版本的索引文件顺序转写成新格式的临时文件，再替换掉旧的文件，中途崩溃的话旧的文件不受影响；
+     * 旧版本的attachedSlots与bucket一样多; v1、v2转写后slot的fileid为0, v1转写后slot的length为0(未知),
+     * v1到v3的buckethash由resolver计算
+     *
+     * @param file
+     * @param version  索引文件的版本
+     * @param resolver
+     * @throws IOException
+     */
+    private static void upgrade(File file, int version, BucketResolver resolver) throws IOException {
+
+        File upgraded = new File(file.getPath() + ".upgrade");
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        FileOutputStream fos = new FileOutputStream(upgraded);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            // 跳过MAGIC与VERSION
+            in.skipBytes(headerSizeOf(version) - 8);
+            int capacity = in.readInt();
+            int current = in.readInt();
+            out.write(header(capacity, current, capacity));
+
+            byte[] legacySlot = new byte[Slot.sizeOf(version)];
+            byte[] slot = new byte[Slot.slotSize];
+            for (long i = 0, slots = (long) capacity << 1; i < slots; i++) {
+                in.readFully(legacySlot);
+                Slot.upgrade(version, legacySlot, 0, slot, 0, resolver);
+                out.write(slot);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        if (!upgraded.renameTo(file) && !(file.delete() && upgraded.renameTo(file))) {
+            throw new IOException("can not replace the index file:" + file);
+        }
+    }
+
+    // slot所在的region
+    private MappedByteBuffer regionOf(int index) {
+
+        return regions[index >>> REGION_SHIFT];
+    }
+
+    // slot在region里的开始位置
+    private int positionOf(int index) {
+
+        return (index & REGION_MASK) * Slot.slotSize;
+    }
+
+    @Override
+    public int getHashCode(int index) {
+
+        return regionOf(index).getInt(positionOf(index));
+    }
+
+    @Override
+    public int getBucketHash(int index) {
+
+        return regionOf(index).getInt(positionOf(index) + 21);
+    }
+
+    @Override
+    public long getFilePosition(int index) {
+
+        MappedByteBuffer region = regionOf(index);
+        int fileId = region.getInt(positionOf(index) + 4);
+        int position = positionOf(index) + 8;
+
+        // 与NumberPacker.unpackLong一致的varint解码，不分配字节数组
+        long result = 0;
+        for (int offset = 0; offset < 64; offset += 7) {
+            long b = region.get(position++);
+            result |= (b & 0x7F) << offset;
+            if ((b & 0x80) == 0) {
+                return Slot.address(fileId, result);
+            }
+        }
+        throw new Error("Malformed long.");
+    }
+
+    @Override
+    public int getAttachedSlot(int index) {
+
+        return regionOf(index).getInt(positionOf(index) + 17);
+    }
+
+    @Override
+    public int getLength(int index) {
+
+        return regionOf(index).getInt(positionOf(index) + 13);
+    }
+
+    @Override
+    public void setAttachedSlot(int preIndex, int thisIndex) {
+
+        regionOf(preIndex).putInt(positionOf(preIndex) + 17, thisIndex);
+    }
+
+    @Override
+    public void replaceSlot(int hc, int bh, long fp, int len, int as, int index) {
+
+        if (fp < 0) {
+            throw new IllegalArgumentException("file position out of range: " + fp);
+        }
+
+        MappedByteBuffer region = regionOf(index);
+        int position = positionOf(index);
+
+        region.putInt(position, hc);
+        region.putInt(position + 4, Slot.fileId(fp));
+        fp = Slot.position(fp);
+        // 与NumberPacker.packLong一致的varint编码, 未用到的字节补0
+        int i = position + 8;
+        while ((fp & ~0x7FL) != 0) {
+            region.put(i++, (byte) (((int) fp & 0x7F) | 0x80));
+            fp >>>= 7;
+        }
+        region.put(i++, (byte) fp);
+        while (i < position + 13) {
+            region.put(i++, (byte) 0);
+        }
+        region.putInt(position + 13, len);
+        region.putInt(position + 17, as);
+        region.putInt(position + 21, bh);
+    }
+
+    // 映射的文件头里的current随着attachedSlots的分配一起更新；
+    // 进程崩溃之后slot已经在映射的文件里，文件头里的current要与之对应，否则重新打开后会再次分配已经用掉的slot
+    @Override
+    public void incCurrent() throws IndexOutofRangeException {
+
+        super.incCurrent();
+        header.putInt(12, current);
+    }
+
+    @Override
+    public int nextCurrentSafely() {
+
+        int index = super.nextCurrentSafely();
+        header.putInt(12, current);
+        return index;
+    }
+
+    @Override
+    void copyFrom(IndexMemoryByte source) {
+
+        super.copyFrom(source);
+        header.putInt(12, current);
+    }
+
+    private void writeHeader() {
+
+        header.position(0);
+        header.put(header(capacity, current, overflow));
+    }
+
+    // slot已经在映射的文件里，只需写入文件头并把映射的内容刷到磁盘;
+    // force只会写回被修改过的内存页，不需要再记录修改过的slot。锁里只取文件头，force在锁外进行
+    @Override
+    public Flush prepareFlush() {
+
+        final byte[] bytes = header(capacity, current, overflow);
+        final MappedByteBuffer[] mapped = regions;
+        final MappedByteBuffer mappedHeader = header;
+        return new Flush() {
+            @Override
+            public void write(InputOutData fsIndex, InputOutData fsJournal) throws IOException {
+
+                for (MappedByteBuffer region : mapped) {
+                    region.force();
+                }
+                // duplicate会带上原来的position
+                ByteBuffer buffer = mappedHeader.duplicate();
+                buffer.position(0);
+                buffer.put(bytes);
+                mappedHeader.force();
+            }
+
+            @Override
+            public void abort() {
+
+                // 没有写完的内存页仍然是脏的，下次force的时候写回
+            }
+        };
+    }
+
+    // 映射的内存在buffer被gc回收时释放
+    @Override
+    public void release() {
+
+        header = null;
+        regions = null;
+    }
+}
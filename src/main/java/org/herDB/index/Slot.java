@@ -1,15 +1,29 @@
 package org.herDB.index;
 
-import java.util.Arrays;
+import java.io.IOException;
 
 import org.herDB.utils.NumberPacker;
 
 /**
- * 为哈希的槽节点相关的方法集合，每个slot实际上三步分组成
+ * 为哈希的槽节点相关的方法集合，每个slot实际上六部分组成
  * <pre>
- * <--hashcode-->|<--fileposition-->|<--attachedslot-->
- * ----4字节-----------5字节----------------4字节--------
+ * <--hashcode-->|<--fileid-->|<--fileposition-->|<--length-->|<--attachedslot-->|<--buckethash-->
+ * ----4字节---------4字节-----------5字节-------------4字节-----------4字节--------------4字节------
  * </pre>
+ * fileid为itemData所在的数据文件的序号，fileposition为itemData在这个数据文件里的偏移；
+ * 在内存里两者合成一个long型的地址，见{@link #address(int, long)}；
+ * length为itemData的总长度，get只用一次随机读就能读到完整的itemData；
+ * buckethash为key的hash值里用来计算bucket的32位({@link org.herDB.utils.Hash#bucket(long)})，
+ * 与hashcode合起来就是key的64位hash值，扩容的时候不用再从数据文件里读key；
+ * <p>
+ * 旧版本的索引文件只有一个数据文件，slot里没有fileid, 读进来的fileid都为0：
+ * <ul>
+ * <li>v1: hashcode + fileposition + attachedslot, 共{@link #LEGACY_SLOT_SIZE}个字节，读进来的length为0(未知)</li>
+ * <li>v2: hashcode + fileposition + length + attachedslot, 共{@link #V2_SLOT_SIZE}个字节</li>
+ * <li>v3: 没有buckethash, 共{@link #V3_SLOT_SIZE}个字节</li>
+ * <li>v4: 与当前版本的slot相同，只是索引文件头里没有overflow</li>
+ * </ul>
+ * 转成当前版本的时候v1到v3的buckethash由{@link BucketResolver}读取key重新计算
  * <p>
  * 此时的Slot相当于static unit class
  *
@@ -17,7 +31,25 @@ import org.herDB.utils.NumberPacker;
  */
 public final class Slot {
     // 每个slot
-    public final static int slotSize = (4 + 5 + 4);
+    public final static int slotSize = (4 + 4 + 5 + 4 + 4 + 4);
+    // v1版本索引文件里每个slot的大小：hashcode + fileposition + attachedslot
+    public final static int LEGACY_SLOT_SIZE = (4 + 5 + 4);
+    // v2版本索引文件里每个slot的大小：hashcode + fileposition + length + attachedslot
+    public final static int V2_SLOT_SIZE = (4 + 5 + 4 + 4);
+    // v3版本索引文件里每个slot的大小：没有buckethash
+    public final static int V3_SLOT_SIZE = (4 + 4 + 5 + 4 + 4);
+    // fileposition在slot里的开始位置
+    private final static int POSITION_OFFSET = 8;
+    // length在slot里的开始位置
+    private final static int LENGTH_OFFSET = 13;
+    // attachedslot在slot里的开始位置
+    private final static int ATTACHED_OFFSET = 17;
+    // buckethash在slot里的开始位置
+    private final static int BUCKET_OFFSET = 21;
+    // 5个字节的varint能表示的最大文件偏移(不包含)
+    public final static long MAX_FILE_POSITION = 1L << 35;
+    // 地址里fileposition占用的位数
+    private final static int POSITION_BITS = 35;
 
     private Slot() {
     }
@@ -25,29 +57,85 @@ public final class Slot {
     ;
 
     /**
-     * 由hc fp as三个参数去组装成一个byte[slotSize]
+     * 由数据文件的序号与文件里的偏移合成itemData的地址
+     *
+     * @param fileId
+     * @param fileposition
+     * @return
+     */
+    public static long address(int fileId, long fileposition) {
+
+        if (fileposition >= MAX_FILE_POSITION || fileposition < 0 || fileId < 0) {
+            throw new IllegalArgumentException("file position out of range: " + fileId + ":" + fileposition);
+        }
+        return (long) fileId << POSITION_BITS | fileposition;
+    }
+
+    /**
+     * 地址里数据文件的序号
+     *
+     * @param address
+     * @return
+     */
+    public static int fileId(long address) {
+
+        return (int) (address >>> POSITION_BITS);
+    }
+
+    /**
+     * 地址里itemData在数据文件里的偏移
+     *
+     * @param address
+     * @return
+     */
+    public static long position(long address) {
+
+        return address & (MAX_FILE_POSITION - 1);
+    }
+
+    /**
+     * 由hc bh fp length as五个参数去组装成一个byte[slotSize]
      *
      * @param hashcode
-     * @param fileposition 5 byte长度的long数 最大值为 256^5 1T
+     * @param buckethash
+     * @param fileposition itemData的地址，见{@link #address(int, long)}
+     * @param length       itemData的长度
      * @param attachedslot
      */
-    public static byte[] generate(int hashcode, long fileposition, int attachedslot) {
+    public static byte[] generate(int hashcode, int buckethash, long fileposition, int length, int attachedslot) {
 
         byte[] bytes = new byte[slotSize];
+        write(hashcode, buckethash, fileposition, length, attachedslot, bytes, 0);
 
-        byte[] hc = NumberPacker.packInt(hashcode);
-        for (int i = 0; i < 4; i++)
-            bytes[i] = hc[i];
+        return bytes;
+    }
 
-        byte[] fp = NumberPacker.packLong(fileposition);
-        for (int i = 0; i < 5; i++)
-            bytes[i + 4] = fp[i];
+    /**
+     * 将hc bh fp length as五个参数直接写入bytes从offset开始的slotSize个字节
+     *
+     * @param hashcode
+     * @param buckethash
+     * @param fileposition
+     * @param length
+     * @param attachedslot
+     * @param bytes
+     * @param offset
+     */
+    public static void write(int hashcode, int buckethash, long fileposition, int length, int attachedslot,
+                             byte[] bytes, int offset) {
 
-        byte[] as = NumberPacker.packInt(attachedslot);
-        for (int i = 0; i < 4; i++)
-            bytes[i + 9] = as[i];
+        if (fileposition < 0) {
+            throw new IllegalArgumentException("file position out of range: " + fileposition);
+        }
 
-        return bytes;
+        NumberPacker.packInt(hashcode, bytes, offset);
+        NumberPacker.packInt(fileId(fileposition), bytes, offset + 4);
+        for (int i = 0; i < 5; i++)
+            bytes[offset + POSITION_OFFSET + i] = 0;
+        NumberPacker.packLong(position(fileposition), bytes, offset + POSITION_OFFSET);
+        NumberPacker.packInt(length, bytes, offset + LENGTH_OFFSET);
+        NumberPacker.packInt(attachedslot, bytes, offset + ATTACHED_OFFSET);
+        NumberPacker.packInt(buckethash, bytes, offset + BUCKET_OFFSET);
     }
 
     /**
@@ -59,10 +147,7 @@ public final class Slot {
      */
     public static void setAttachedSlot(int slot, int attachedslot, byte[] bytes) {
 
-        byte[] attach = NumberPacker.packInt(attachedslot);
-        for (int i = 0; i < 4; i++) {
-            bytes[slot * slotSize + 8 + 9 + i] = attach[i];
-        }
+        NumberPacker.packInt(attachedslot, bytes, slot * slotSize + IndexMemoryByte.HEADER_SIZE + ATTACHED_OFFSET);
     }
 
 
@@ -74,18 +159,43 @@ public final class Slot {
      */
     public static int getHashCode(byte[] bytes) {
 
-        return NumberPacker.unpackInt(Arrays.copyOfRange(bytes, 0, 4));
+        return getHashCode(bytes, 0);
     }
 
     /**
-     * 获取hash索引某slots对应的file文件位置信息
+     * 获取从offset开始的slot的hashcode，不拷贝字节数组
+     *
+     * @param bytes
+     * @param offset slot在bytes里的开始位置
+     * @return
+     */
+    public static int getHashCode(byte[] bytes, int offset) {
+
+        return NumberPacker.unpackInt(bytes, offset);
+    }
+
+    /**
+     * 获取hash索引某slots对应的itemData的地址
      *
      * @param bytes
      * @return
      */
     public static long getFileInfo(byte[] bytes) {
 
-        return NumberPacker.unpackLong(Arrays.copyOfRange(bytes, 4, 9));
+        return getFileInfo(bytes, 0);
+    }
+
+    /**
+     * 获取从offset开始的slot对应的itemData的地址，不拷贝字节数组
+     *
+     * @param bytes
+     * @param offset slot在bytes里的开始位置
+     * @return
+     */
+    public static long getFileInfo(byte[] bytes, int offset) {
+
+        return address(NumberPacker.unpackInt(bytes, offset + 4),
+                NumberPacker.unpackLong(bytes, offset + POSITION_OFFSET));
     }
 
     /**
@@ -96,6 +206,105 @@ public final class Slot {
      */
     public static int getAttachedSlot(byte[] bytes) {
 
-        return NumberPacker.unpackInt(Arrays.copyOfRange(bytes, 9, slotSize));
+        return getAttachedSlot(bytes, 0);
+    }
+
+    /**
+     * 获取从offset开始的slot的后继slot的id，不拷贝字节数组
+     *
+     * @param bytes
+     * @param offset slot在bytes里的开始位置
+     * @return
+     */
+    public static int getAttachedSlot(byte[] bytes, int offset) {
+
+        return NumberPacker.unpackInt(bytes, offset + ATTACHED_OFFSET);
+    }
+
+    /**
+     * 获取从offset开始的slot对应的itemData的长度，不拷贝字节数组
+     *
+     * @param bytes
+     * @param offset slot在bytes里的开始位置
+     * @return
+     */
+    public static int getLength(byte[] bytes, int offset) {
+
+        return NumberPacker.unpackInt(bytes, offset + LENGTH_OFFSET);
+    }
+
+    /**
+     * 获取从offset开始的slot的buckethash，不拷贝字节数组
+     *
+     * @param bytes
+     * @param offset slot在bytes里的开始位置
+     * @return
+     */
+    public static int getBucketHash(byte[] bytes, int offset) {
+
+        return NumberPacker.unpackInt(bytes, offset + BUCKET_OFFSET);
+    }
+
+    /**
+     * 由slot里的hashcode与buckethash还原key的64位hash值;
+     * hashcode为1的时候原来的高32位可能是0也可能是1(见{@link org.herDB.utils.Hash#fingerprint(long)}),
+     * 不能还原，见{@link #isKeyHashExact(int)}
+     *
+     * @param hashcode
+     * @param buckethash
+     * @return
+     */
+    public static long keyHash(int hashcode, int buckethash) {
+
+        return (long) hashcode << 32 | buckethash & 0xFFFFFFFFL;
+    }
+
+    // 由hashcode与buckethash能否准确还原key的64位hash值
+    public static boolean isKeyHashExact(int hashcode) {
+
+        return hashcode != 1;
+    }
+
+    /**
+     * 各个版本的索引文件里slot的大小
+     *
+     * @param version 索引文件的版本
+     * @return
+     */
+    public static int sizeOf(int version) {
+
+        return version == 1 ? LEGACY_SLOT_SIZE : version == 2 ? V2_SLOT_SIZE : version == 3 ? V3_SLOT_SIZE : slotSize;
+    }
+
+    /**
+     * 将旧版本索引文件里从offset开始的slot转写成当前版本的slot, 写入target从targetOffset开始的位置；
+     * v1与v2只有一个数据文件，fileid为0; 不为空的slot用resolver读取key计算buckethash
+     *
+     * @param version  索引文件的版本
+     * @param resolver
+     * @throws IOException
+     */
+    public static void upgrade(int version, byte[] bytes, int offset, byte[] target, int targetOffset,
+                               BucketResolver resolver) throws IOException {
+
+        if (version == 4) {
+            // v4的slot与当前版本相同，只是文件头不同
+            System.arraycopy(bytes, offset, target, targetOffset, slotSize);
+            return;
+        }
+        int hashcode = getHashCode(bytes, offset);
+        long fileposition;
+        int length, attachedslot;
+        if (version == 3) {
+            fileposition = getFileInfo(bytes, offset);
+            length = getLength(bytes, offset);
+            attachedslot = getAttachedSlot(bytes, offset);
+        } else {
+            fileposition = NumberPacker.unpackLong(bytes, offset + 4);
+            length = version == 1 ? 0 : NumberPacker.unpackInt(bytes, offset + 9);
+            attachedslot = NumberPacker.unpackInt(bytes, offset + (version == 1 ? 9 : 13));
+        }
+        int buckethash = hashcode == 0 ? 0 : resolver.bucketOf(fileposition);
+        write(hashcode, buckethash, fileposition, length, attachedslot, target, targetOffset);
     }
 }
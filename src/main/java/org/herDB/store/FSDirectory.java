@@ -4,6 +4,14 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author funeyu
@@ -12,6 +20,16 @@ public class FSDirectory {
     private File directory;
     private Lock lock;
     private final static String LOCKFILENAME = "herDB.lock";
+    // 定时刷新追加缓冲的线程
+    private final static ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "herDB-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     /**
      * @param directoryPath：为目录的文件夹文件
@@ -81,6 +99,43 @@ public class FSDirectory {
         return null;
     }
 
+    /**
+     * 该目录下所有文件的文件名
+     *
+     * @return
+     */
+    public String[] fileNames() {
+
+        String[] names = directory.list();
+        return names == null ? new String[0] : names;
+    }
+
+    /**
+     * 获取该目录下文件名为name的文件
+     *
+     * @param name 文件名
+     * @return
+     */
+    public File fileOf(String name) {
+
+        return new File(directory, name);
+    }
+
+    /**
+     * 将该目录下的文件name重命名为newName, newName已存在的话会被替换
+     *
+     * @param name
+     * @param newName
+     * @return 成功返回true
+     */
+    public boolean rename(String name, String newName) {
+
+        File newFile = new File(directory, newName);
+        if (newFile.exists() && !newFile.delete())
+            return false;
+        return new File(directory, name).renameTo(newFile);
+    }
+
     /**
      * 将磁盘文件全部读到内存， 方法只用在索引文件
      *
@@ -162,44 +217,101 @@ public class FSDirectory {
      *
      * @param name 该目录下的文件名
      * @return
-     * @throws Exception
+     * @throws IOException
      * @onlyRead 只读：true， 读写：false
      * 在打开herdb数据库，只读情况下可以将数据文件映射到堆内存，加快读操作
      */
-    public InputOutData createDataStream(String name, boolean onlyRead) throws Exception {
+    public InputOutData createDataStream(String name, boolean onlyRead) throws IOException {
 
         return onlyRead ? new MMapInputStream(this.directory, name)
                 : new FSDataStream(this.directory, name);
     }
 
+    /**
+     * 基于RandomAccessFile的文件读写；
+     * seek用FileChannel的positional read, 不移动文件指针，多个线程可以同时随机读同一个文件；
+     * 其余移动文件指针的操作都加了同步
+     * <p>
+     * 开启追加缓冲之后append只把数据拷到缓冲里，缓冲满了或者超过刷新间隔再一次顺序写入文件；
+     * 还在缓冲里的数据seek也能读到
+     */
     class FSDataStream extends InputOutData {
 
         private long length;
-        private long maxOffSet;
+        // 追加的数据的末尾, 包含还在缓冲里的数据
+        private volatile long maxOffSet;
+        // 已经写入文件的数据的末尾, maxOffSet = flushedOffSet + buffered
+        private volatile long flushedOffSet;
         private String fileName;
         private File file;
         private File directory;
         private RandomAccessFile raf;
-
-        public FSDataStream(File dir, String name) throws Exception {
+        // raf的channel, 替换raf的时候一起替换
+        private volatile FileChannel channel;
+        private boolean closed;
+        // 追加缓冲, 没有开启的时候为null
+        private byte[] buffer;
+        // 缓冲里的数据长度
+        private int buffered;
+        // 缓冲里最早的数据的追加时间
+        private long bufferedSince;
+        // 缓冲的刷新间隔(毫秒)
+        private long flushInterval;
+        // 定时刷新缓冲的任务
+        private ScheduledFuture<?> flushTask;
+        // 写入失败并且没能截掉写了一半的数据，不为null的时候不再接受追加
+        private IOException broken;
+
+        public FSDataStream(File dir, String name) throws IOException {
 
             File f = new File(dir, name);
             file = f;
             directory = dir;
             fileName = name;
             raf = new RandomAccessFile(f, "rw");
-            maxOffSet = length = raf.length();
+            channel = raf.getChannel();
+            maxOffSet = flushedOffSet = length = raf.length();
+
+        }
 
+        @Override
+        public synchronized InputOutData bufferAppends(int bufferSize, long flushInterval) throws IOException {
+
+            if (bufferSize <= 0) {
+                // 关闭缓冲，先把缓冲里的数据写入文件
+                flush();
+                if (flushTask != null) {
+                    flushTask.cancel(false);
+                    flushTask = null;
+                }
+                buffer = null;
+                return this;
+            }
+            if (buffer != null) {
+                return this;
+            }
+            this.buffer = new byte[bufferSize];
+            this.flushInterval = flushInterval;
+            if (flushInterval > 0) {
+                flushTask = FLUSHER.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushIfStale();
+                    }
+                }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+            }
+            return this;
         }
 
-        public byte[] readFully() throws IOException {
+        public synchronized byte[] readFully() throws IOException {
 
+            flush();
             byte[] data = new byte[(int) length];
             raf.read(data);
             return data;
         }
 
-        public void flush(byte[] datas) {
+        public synchronized void flush(byte[] datas) {
 
             try {
                 raf.write(datas, 0, datas.length);
@@ -211,28 +323,212 @@ public class FSDirectory {
         @Override
         public byte[] seek(long offset, int size) throws IOException {
 
-            raf.seek(offset);
+            // 要读的数据还有一部分在缓冲里
+            if (offset + size > flushedOffSet) {
+                synchronized (this) {
+                    if (offset + size > flushedOffSet) {
+                        return readBuffered(offset, size);
+                    }
+                }
+            }
+
+            ByteBuffer dst = ByteBuffer.allocate(size);
+            read(dst, offset);
+            return dst.array();
+        }
 
-            byte[] res = new byte[size];
-            if (raf.read(res) == -1)
+        // 从文件与缓冲里读取数据，调用时持有锁
+        private byte[] readBuffered(long offset, int size) throws IOException {
+
+            if (offset + size > maxOffSet) {
                 throw new EOFException();
+            }
 
-            return res;
+            byte[] result = new byte[size];
+            int onDisk = (int) Math.max(0, Math.min(size, flushedOffSet - offset));
+            if (onDisk > 0) {
+                read(ByteBuffer.wrap(result, 0, onDisk), offset);
+            }
+            System.arraycopy(buffer, (int) (offset + onDisk - flushedOffSet), result, onDisk, size - onDisk);
+            return result;
         }
 
-        @Override
-        public FSDataStream append(byte[] data) throws IOException {
+        // 从文件position处读满dst
+        private void read(ByteBuffer dst, long position) throws IOException {
 
-            long fileLength = raf.length();
-            raf.seek(fileLength);
-            raf.write(data);
-            maxOffSet += data.length;
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    FileChannel fc = channel;
+                    try {
+                        while (dst.hasRemaining()) {
+                            int read = fc.read(dst, position);
+                            // 读不满size的时候抛出EOFException
+                            if (read == -1)
+                                throw new EOFException();
+                            position += read;
+                        }
+                        return;
+                    } catch (ClosedChannelException e) {
+                        interrupted |= reopen(fc, e);
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * 任何一个线程在读写的时候被中断都会关掉共用的channel, 自己得到ClosedByInterruptException，
+         * 同时在读写的线程得到AsynchronousCloseException, 之后的得到ClosedChannelException；
+         * 这些情况下都重新打开文件，调用方在新的channel上重试。中断状态先清掉, 否则重试时又会关掉channel
+         *
+         * @param closedChannel 抛出异常的channel
+         * @param e
+         * @return 当前线程是否被中断过，调用方在重试完成之后恢复中断状态
+         * @throws IOException 文件已经被close()的话抛出e
+         */
+        private boolean reopen(FileChannel closedChannel, ClosedChannelException e) throws IOException {
+
+            boolean interrupted = Thread.interrupted();
+            synchronized (this) {
+                if (closed) {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw e;
+                }
+                if (channel == closedChannel) {
+                    raf = new RandomAccessFile(file, "rw");
+                    channel = raf.getChannel();
+                }
+            }
+            return interrupted;
+        }
+
+        @Override
+        public synchronized FSDataStream append(byte[] data) throws IOException {
+
+            checkBroken();
+            if (buffer == null) {
+                appendDirectly(data);
+            } else {
+                if (buffered + data.length > buffer.length) {
+                    flush();
+                }
+                if (data.length >= buffer.length) {
+                    // 比缓冲还大的数据直接写入文件
+                    appendDirectly(data);
+                } else {
+                    if (buffered == 0) {
+                        bufferedSince = System.currentTimeMillis();
+                    }
+                    System.arraycopy(data, 0, buffer, buffered, data.length);
+                    buffered += data.length;
+                    maxOffSet += data.length;
+                }
+            }
             return this;
         }
 
+        /**
+         * 不经过缓冲直接追加一条数据, 调用时持有锁且缓冲为空；
+         * 只写了一部分就失败的话截掉写了的部分，数据文件里不留下半条数据，截不掉就不再接受追加
+         */
+        private void appendDirectly(byte[] data) throws IOException {
+
+            long start = flushedOffSet;
+            try {
+                writeAt(data, 0, data.length);
+            } catch (IOException e) {
+                if (flushedOffSet != start) {
+                    try {
+                        channel.truncate(start);
+                        flushedOffSet = start;
+                    } catch (IOException truncateFailed) {
+                        broken = e;
+                    }
+                }
+                maxOffSet = flushedOffSet;
+                throw e;
+            }
+            maxOffSet = flushedOffSet;
+        }
+
+        /**
+         * 从文件末尾顺序写入, 调用时持有锁；每次写入之后就推进flushedOffSet,
+         * 中途失败的时候flushedOffSet就是文件里实际写到的位置
+         */
+        private void writeAt(byte[] data, int offset, int size) throws IOException {
+
+            ByteBuffer src = ByteBuffer.wrap(data, offset, size);
+            boolean interrupted = false;
+            try {
+                while (src.hasRemaining()) {
+                    FileChannel fc = channel;
+                    try {
+                        flushedOffSet += fc.write(src, flushedOffSet);
+                    } catch (ClosedChannelException e) {
+                        // 重新打开之后从实际写到的位置接着写
+                        interrupted |= reopen(fc, e);
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * 缓冲里的数据写入文件；写入失败的时候没有写入的部分留在缓冲里，下一次flush接着写，
+         * 始终保持maxOffSet = flushedOffSet + buffered, 按maxOffSet分配的地址不会错位
+         */
+        @Override
+        public synchronized void flush() throws IOException {
+
+            if (buffered == 0) {
+                return;
+            }
+            checkBroken();
+            long start = flushedOffSet;
+            try {
+                writeAt(buffer, 0, buffered);
+            } finally {
+                int written = (int) (flushedOffSet - start);
+                if (written > 0) {
+                    System.arraycopy(buffer, written, buffer, 0, buffered - written);
+                    buffered -= written;
+                }
+            }
+        }
+
+        // 写入失败又没能恢复的文件，之后的追加都失败
+        private void checkBroken() throws IOException {
+
+            if (broken != null) {
+                throw new IOException(fileName + " is broken by a failed write", broken);
+            }
+        }
+
+        // 缓冲里的数据超过了刷新间隔就写入文件
+        private synchronized void flushIfStale() {
+
+            if (buffered > 0 && System.currentTimeMillis() - bufferedSince >= flushInterval) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
         @Override
-        public byte[] readSequentially(int size) throws IOException {
+        public synchronized byte[] readSequentially(int size) throws IOException {
 
+            flush();
             byte[] bytes = new byte[size];
             raf.read(bytes);
             return bytes;
@@ -245,7 +541,7 @@ public class FSDirectory {
         }
 
         @Override
-        public InputOutData position(long offset) throws IOException {
+        public synchronized InputOutData position(long offset) throws IOException {
             this.raf.seek(offset);
             return this;
         }
@@ -257,31 +553,45 @@ public class FSDirectory {
         }
 
         @Override
-        public InputOutData createNewFile() throws IOException {
+        public synchronized InputOutData createNewFile() throws IOException {
 
             File f = new File(directory, fileName);
             file = f;
+            raf.close();
             raf = new RandomAccessFile(f, "rw");
-            length = raf.length();
+            channel = raf.getChannel();
+            buffered = 0;
+            broken = null;
+            maxOffSet = flushedOffSet = length = raf.length();
             return this;
         }
 
 
         @Override
-        public int readBlock(byte[] block) throws IOException {
+        public synchronized int readBlock(byte[] block) throws IOException {
 
+            flush();
             return this.raf.read(block);
         }
 
         @Override
-        public boolean reName(String newName) {
+        public synchronized boolean reName(String newName) {
 
             File newFile = new File(directory, newName);
-            boolean isok = file.renameTo(newFile);
+            boolean isok;
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            isok = file.renameTo(newFile);
             file = newFile;
 
             try {
+                raf.close();
                 raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
                 length = raf.length();
             } catch (IOException e) {
                 isok = false;
@@ -292,11 +602,81 @@ public class FSDirectory {
         }
 
         @Override
-        public void jumpHeader() throws IOException {
+        public synchronized void jumpHeader() throws IOException {
 
             this.raf.seek(0);
         }
 
+        // 直接用raf的写操作之前调用：别的线程被中断关掉了channel的话raf也关掉了，重新打开
+        private void ensureOpen() throws IOException {
+
+            FileChannel fc = channel;
+            if (!fc.isOpen() && reopen(fc, new ClosedChannelException())) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public synchronized void write(long offset, byte[] data) throws IOException {
+
+            flush();
+            ensureOpen();
+            raf.seek(offset);
+            raf.write(data);
+            maxOffSet = flushedOffSet = Math.max(maxOffSet, offset + data.length);
+        }
+
+        @Override
+        public synchronized void truncate(long length) throws IOException {
+
+            flush();
+            ensureOpen();
+            raf.setLength(length);
+            maxOffSet = flushedOffSet = Math.min(maxOffSet, length);
+        }
+
+        @Override
+        public void sync() throws IOException {
+
+            flush();
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    FileChannel fc = channel;
+                    try {
+                        fc.force(false);
+                        return;
+                    } catch (ClosedChannelException e) {
+                        // fsync作用于文件, 在新打开的channel上重做也能把之前写入的数据落盘
+                        interrupted |= reopen(fc, e);
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+
+            if (flushTask != null) {
+                flushTask.cancel(false);
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            closed = true;
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
 
     }
 }
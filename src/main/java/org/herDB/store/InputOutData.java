@@ -95,4 +95,49 @@ public abstract class InputOutData {
      * @return
      */
     public abstract boolean reName(String newName);
+
+    /**
+     * 从文件offset开始处写入data，不改变文件的追加位置
+     *
+     * @param offset 写入的开始位置
+     * @param data
+     */
+    public abstract void write(long offset, byte[] data) throws IOException;
+
+    /**
+     * 将文件截断为length的长度
+     *
+     * @param length
+     */
+    public abstract void truncate(long length) throws IOException;
+
+    /**
+     * 将文件已写入的内容强制刷到磁盘上(fsync)
+     */
+    public abstract void sync() throws IOException;
+
+    /**
+     * 开启追加缓冲：append的数据先放在缓冲里，缓冲满了或者超过刷新间隔再一次写入文件，
+     * 缓冲里的数据seek也能读到；默认不支持缓冲，直接返回
+     *
+     * @param bufferSize    缓冲的大小(字节)，小于等于0的时候关闭缓冲
+     * @param flushInterval 缓冲的刷新间隔(毫秒)，小于等于0的时候只在缓冲满了的时候刷新
+     * @return
+     */
+    public InputOutData bufferAppends(int bufferSize, long flushInterval) throws IOException {
+
+        return this;
+    }
+
+    /**
+     * 将追加缓冲里的数据写入文件，没有开启缓冲的时候什么都不做
+     */
+    public void flush() throws IOException {
+
+    }
+
+    /**
+     * 关闭文件，释放文件句柄
+     */
+    public abstract void close();
 }
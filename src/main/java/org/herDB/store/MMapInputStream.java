@@ -3,6 +3,7 @@ package org.herDB.store;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
@@ -37,11 +38,15 @@ public class MMapInputStream extends InputOutData {
         throw new UnsupportedException("readFully", this);
     }
 
+    // 用duplicate出来的buffer做绝对位置的读取，不改变共用的position，多个线程可以同时读
     @Override
     public byte[] seek(long offset, int size) throws IOException {
 
-        randomFile.position((int) offset);
-        return null;
+        byte[] result = new byte[size];
+        ByteBuffer buffer = randomFile.duplicate();
+        buffer.position((int) offset);
+        buffer.get(result);
+        return result;
     }
 
     @Override
@@ -57,7 +62,7 @@ public class MMapInputStream extends InputOutData {
     }
 
     @Override
-    public byte[] readSequentially(int size) throws IOException {
+    public synchronized byte[] readSequentially(int size) throws IOException {
 
         byte[] result = new byte[size];
         randomFile.get(result);
@@ -71,7 +76,7 @@ public class MMapInputStream extends InputOutData {
     }
 
     @Override
-    public InputOutData position(long offset) throws IOException {
+    public synchronized InputOutData position(long offset) throws IOException {
 
         randomFile.position((int) offset);
         return this;
@@ -90,7 +95,7 @@ public class MMapInputStream extends InputOutData {
     }
 
     @Override
-    public int readBlock(byte[] block) {
+    public synchronized int readBlock(byte[] block) {
 
         return randomFile.get(block).capacity();
     }
@@ -102,9 +107,33 @@ public class MMapInputStream extends InputOutData {
     }
 
     @Override
-    public void jumpHeader() throws IOException {
+    public synchronized void jumpHeader() throws IOException {
 
         randomFile.position(0);
     }
 
+    @Override
+    public void write(long offset, byte[] data) throws IOException {
+
+        throw new UnsupportedException("write", this);
+    }
+
+    @Override
+    public void truncate(long length) throws IOException {
+
+        throw new UnsupportedException("truncate", this);
+    }
+
+    @Override
+    public void sync() throws IOException {
+
+        throw new UnsupportedException("sync", this);
+    }
+
+    // 映射的内存在buffer被gc回收时释放
+    @Override
+    public void close() {
+
+    }
+
 }
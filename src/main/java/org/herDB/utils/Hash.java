@@ -2,10 +2,93 @@ package org.herDB.utils;
 
 import java.util.Arrays;
 
-public class Hash {
-    private final static int segmentSize = 7;
+/**
+ * key的hash函数；每次操作只对key计算一次64位的hash值，分段、bucket与slot里的hashcode都从这个值里取：
+ * <ul>
+ * <li>低32位用来计算bucket，扩容的时候索引容量翻倍，bucket只多用一位</li>
+ * <li>高32位作为slot里存的hashcode</li>
+ * <li>分段由各个hash函数自己从64位里取，不与上面两者相关</li>
+ * </ul>
+ *
+ * @author funeyu
+ */
+public abstract class Hash {
 
-    private Hash() {
+    private final static Hash LEGACY = new Hash() {
+
+        // 低32位为FNVHash1, 高32位为Arrays.hashCode
+        @Override
+        public long hash(byte[] key) {
+
+            return (long) Arrays.hashCode(key) << 32 | FNVHash1(key) & 0xFFFFFFFFL;
+        }
+
+        // 旧版本的分段用的是Arrays.hashCode
+        @Override
+        public int segment(long hash) {
+
+            return (int) (hash >>> 32);
+        }
+    };
+
+    protected Hash() {
+    }
+
+    /**
+     * 旧版本的hash：分段与slot的hashcode用Arrays.hashCode，bucket用FNVHash1；
+     * 打开旧版本创建的数据库时使用
+     *
+     * @return
+     */
+    public static Hash legacy() {
+
+        return LEGACY;
+    }
+
+    /**
+     * xxHash64
+     *
+     * @param seed hash的种子
+     * @return
+     */
+    public static Hash xxHash64(long seed) {
+
+        return new XXHash64(seed);
+    }
+
+    /**
+     * 计算key的64位hash值
+     *
+     * @param key
+     * @return
+     */
+    public abstract long hash(byte[] key);
+
+    /**
+     * 用来选择分段的hash值，调用方再与分段数-1做&运算
+     *
+     * @param hash key的64位hash值
+     * @return
+     */
+    public abstract int segment(long hash);
+
+    // 用来计算bucket的hash值，调用方再与索引容量-1做&运算
+    public static int bucket(long hash) {
+
+        return (int) hash;
+    }
+
+    /**
+     * slot里存的hashcode，为了内存索引数据中的hashcode字段 == 0判断该slot是否为空；
+     * 需要将hashcode全部转成不等于0的数据；
+     *
+     * @param hash key的64位hash值
+     * @return 不为0的数据
+     */
+    public static int fingerprint(long hash) {
+
+        int hashcode = (int) (hash >>> 32);
+        return hashcode == 0 ? 1 : hashcode;
     }
 
     public static int FNVHash1(byte[] data) {
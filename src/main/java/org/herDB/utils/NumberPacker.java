@@ -20,18 +20,29 @@ public final class NumberPacker {
     public static byte[] packLong(long value) {
 
         byte[] ba = new byte[5];
+        packLong(value, ba, 0);
+        return ba;
+    }
+
+    /**
+     * 将long型数字打包写入bytes从start开始的位置，不分配新的字节数组
+     *
+     * @param value 需要pack的long
+     * @param bytes 写入的目标字节数组
+     * @param start 写入的开始位置
+     */
+    public static void packLong(long value, byte[] bytes, int start) {
+
         if (value < 0) {
             throw new IllegalArgumentException("negative value: v=" + value);
         }
 
-        int i = 1;
+        int i = start;
         while ((value & ~0x7FL) != 0) {
-            ba[i - 1] = (byte) (((int) value & 0x7F) | 0x80);
+            bytes[i++] = (byte) (((int) value & 0x7F) | 0x80);
             value >>>= 7;
-            i++;
         }
-        ba[i - 1] = (byte) value;
-        return ba;
+        bytes[i] = (byte) value;
     }
 
     /**
@@ -42,8 +53,20 @@ public final class NumberPacker {
      */
     public static long unpackLong(byte[] bytes) {
 
+        return unpackLong(bytes, 0);
+    }
+
+    /**
+     * 从bytes的start位置开始解包出long数字，不分配新的字节数组
+     *
+     * @param bytes
+     * @param start
+     * @return
+     */
+    public static long unpackLong(byte[] bytes, int start) {
+
         long result = 0;
-        int index = 0;
+        int index = start;
         for (int offset = 0; offset < 64; offset += 7) {
             long b = bytes[index++];
             result |= (b & 0x7F) << offset;
@@ -62,9 +85,21 @@ public final class NumberPacker {
      */
     public static int unpackInt(byte[] bytes) {
 
+        return unpackInt(bytes, 0);
+    }
+
+    /**
+     * 从bytes的start位置开始读取4个字节转换成int
+     *
+     * @param bytes
+     * @param start
+     * @return int
+     */
+    public static int unpackInt(byte[] bytes, int start) {
+
         int result = 0;
         for (int i = 0; i < 4; i++) {
-            result |= ((bytes[i] & 0xFF) << (4 - 1 - i) * 8);
+            result |= ((bytes[start + i] & 0xFF) << (4 - 1 - i) * 8);
         }
 
         return result;
@@ -79,11 +114,22 @@ public final class NumberPacker {
     public static byte[] packInt(int value) {
 
         byte[] ba = new byte[4];
+        packInt(value, ba, 0);
+        return ba;
+    }
+
+    /**
+     * 将int number写入bytes从start开始的4个字节
+     *
+     * @param value
+     * @param bytes
+     * @param start
+     */
+    public static void packInt(int value, byte[] bytes, int start) {
 
         for (int i = 0; i < 4; i++) {
-            ba[i] = (byte) ((value >> 8 * (4 - 1 - i)) & 0xFF);
+            bytes[start + i] = (byte) ((value >> 8 * (4 - 1 - i)) & 0xFF);
         }
-        return ba;
     }
 
     public static void main(String[] args) {
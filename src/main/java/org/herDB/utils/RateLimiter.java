@@ -0,0 +1,52 @@
+package org.herDB.utils;
+
+/**
+ * 限制后台任务的io速度：每次读写之前登记字节数，超过了速度就sleep到平均速度不超过限制
+ * <p>
+ * 非线程安全，每个后台任务用自己的实例
+ *
+ * @author funeyu
+ */
+public final class RateLimiter {
+
+    // 每秒最多的字节数, 小于等于0的时候不限速
+    private final long bytesPerSecond;
+    // 开始计时的时间(纳秒)
+    private final long start;
+    // 已经登记的字节数
+    private long bytes;
+
+    private RateLimiter(long bytesPerSecond) {
+
+        this.bytesPerSecond = bytesPerSecond;
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * @param bytesPerSecond 每秒最多的字节数, 小于等于0的时候不限速
+     * @return
+     */
+    public static RateLimiter create(long bytesPerSecond) {
+
+        return new RateLimiter(bytesPerSecond);
+    }
+
+    /**
+     * 登记size个字节的io, 超过速度限制的话sleep
+     *
+     * @param size
+     * @throws InterruptedException
+     */
+    public void acquire(long size) throws InterruptedException {
+
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        bytes += size;
+        long expected = bytes * 1000L / bytesPerSecond;
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+        if (expected > elapsed) {
+            Thread.sleep(expected - elapsed);
+        }
+    }
+}
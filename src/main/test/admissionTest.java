@@ -0,0 +1,82 @@
+import org.herDB.cache.CacheStats;
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 读缓存的W-TinyLFU淘汰：一次性扫描大量的key不会把常访问的key挤出去，缓存占用的字节数不超过上限
+ */
+public class admissionTest {
+
+    private static final int HOT = 50;
+    private static final int COLD = 5000;
+    private static final int ROUNDS = 20;
+    // 两次读热的key之间读多少个冷的key
+    private static final int SCAN = 500;
+
+    @Test
+    public void hotKeysSurviveScan() throws Exception {
+
+        HerDB herDB = open("herdb-admission-scan");
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < HOT; i++) {
+                Assert.assertEquals(value("hot", i), herDB.get("hot" + i));
+            }
+        }
+        // 每个冷的key只读一次；两次读热的key之间扫描的冷的key比整个缓存还多，只按LRU淘汰的话热的key已经被挤出去
+        for (int i = 0; i < COLD; i++) {
+            Assert.assertEquals(value("cold", i), herDB.get("cold" + i));
+            if (i % SCAN == SCAN - 1) {
+                for (int j = 0; j < HOT; j++) {
+                    Assert.assertEquals(value("hot", j), herDB.get("hot" + j));
+                }
+            }
+        }
+
+        CacheStats before = herDB.cacheStats();
+        for (int i = 0; i < HOT; i++) {
+            Assert.assertEquals(value("hot", i), herDB.get("hot" + i));
+        }
+        CacheStats after = herDB.cacheStats();
+        Assert.assertEquals(HOT, after.hits() - before.hits());
+        Assert.assertEquals(0, after.misses() - before.misses());
+        herDB.commit();
+    }
+
+    @Test
+    public void evictionKeepsWithinMaxWeight() throws Exception {
+
+        HerDB herDB = open("herdb-admission-weight");
+        for (int i = 0; i < COLD; i++) {
+            Assert.assertEquals(value("cold", i), herDB.get("cold" + i));
+            CacheStats stats = herDB.cacheStats();
+            Assert.assertTrue(stats.toString(), stats.weight() <= stats.maxWeight());
+        }
+        CacheStats stats = herDB.cacheStats();
+        Assert.assertTrue(stats.toString(), stats.evictions() > 0);
+        Assert.assertTrue(stats.toString(), stats.entries() < COLD);
+        Assert.assertEquals(COLD, stats.misses());
+        herDB.commit();
+    }
+
+    // 64KB的缓存只有一个分片，放得下所有热的key，放不下冷的key
+    private static HerDB open(String dir) throws Exception {
+
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.STORAGE_CACHE_SIZE, "65536");
+        HerDB herDB = HerDB.create(config, dir);
+        for (int i = 0; i < HOT; i++) {
+            herDB.put("hot" + i, value("hot", i));
+        }
+        for (int i = 0; i < COLD; i++) {
+            herDB.put("cold" + i, value("cold", i));
+        }
+        return herDB.cacheOn();
+    }
+
+    private static String value(String prefix, int i) {
+
+        return prefix + i + "-0123456789012345678901234567890123456789012345678901234567890123456789";
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 布隆过滤器随commit写入磁盘，重新打开的时候直接读取而不是重建；过滤器说不存在的key get直接返回null,
+ * 所以扩容过、重新打开过之后每个key都能get到，说明没有漏判
+ */
+public class bloomTest {
+
+    private static final int SEGMENTS = 2;
+    private static final int KEYS = 20000;
+
+    @Test
+    public void survivesCommitAndReopen() throws Exception {
+
+        String dir = "herdb-bloom";
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SEGMENTS_SIZE, String.valueOf(SEGMENTS));
+        // 容量小，put的过程中扩容几次，过滤器跟着重建
+        config.set(Configuration.SLOTS_CAPACITY, "1024");
+        config.set(Configuration.BLOOM_BITS_PER_KEY, "10");
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        HerDB herDB = HerDB.create(config, dir);
+        herDB.cacheOff();
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "value" + i);
+        }
+        verify(herDB, KEYS);
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        herDB.cacheOff();
+        assertLoaded(herDB, dir);
+        verify(herDB, KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertFalse(herDB.contains("missing" + i));
+        }
+
+        // 读取的过滤器上继续添加
+        for (int i = KEYS; i < KEYS * 2; i++) {
+            herDB.put("key" + i, "value" + i);
+        }
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        herDB.cacheOff();
+        assertLoaded(herDB, dir);
+        verify(herDB, KEYS * 2);
+        herDB.commit();
+    }
+
+    // 每个分段用的过滤器与commit写入的文件内容相同
+    private static void assertLoaded(HerDB herDB, String dir) throws Exception {
+
+        Field segments = HerDB.class.getDeclaredField("segments");
+        segments.setAccessible(true);
+        Object[] opened = (Object[]) segments.get(herDB);
+        for (int i = 0; i < SEGMENTS; i++) {
+            Field bloom = opened[i].getClass().getDeclaredField("bloom");
+            bloom.setAccessible(true);
+            Object filter = bloom.get(opened[i]);
+            Assert.assertNotNull(filter);
+            Method toBytes = filter.getClass().getDeclaredMethod("toBytes");
+            toBytes.setAccessible(true);
+            Assert.assertArrayEquals("segment" + i, read(new File(dir, "segment" + i + ".bloom")),
+                    (byte[]) toBytes.invoke(filter));
+        }
+    }
+
+    private static void verify(HerDB herDB, int keys) {
+
+        for (int i = 0; i < keys; i++) {
+            Assert.assertEquals("key" + i, "value" + i, herDB.get("key" + i));
+            Assert.assertTrue("key" + i, herDB.contains("key" + i));
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return read == bytes.length ? bytes : Arrays.copyOf(bytes, read);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import org.herDB.cache.StorageCache;
+import org.herDB.herdb.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 缓存的version按key分条：读数据文件期间别的key被put，读到的value与不存在仍然可以缓存；
+ * 同一个key被put的话不缓存
+ */
+public class cacheVersionTest {
+
+    private static final int OTHERS = 100;
+
+    @Test
+    public void otherKeysDoNotBlockCaching() throws Exception {
+
+        Configuration config = Configuration.create("herdb-cache-version");
+        config.set(Configuration.STORAGE_CACHE_SIZE, "1048576");
+        config.set(Configuration.NEGATIVE_CACHE_SIZE, "1000");
+        config.set(Configuration.OFFHEAP_CACHE_SIZE, "1");
+        config.set(Configuration.CACHE_SLAB_SIZE, "65536");
+        StorageCache cache = StorageCache.initCache(config);
+
+        byte[] key = "key".getBytes();
+        byte[] missing = "missing".getBytes();
+        long keyHash = 1L;
+        long missingHash = 0x5555555555555555L;
+        long version = cache.version(keyHash);
+        long missingVersion = cache.version(missingHash);
+        // 分片不超过64个，100个别的key里一定有和它们同一分片的
+        for (int i = 0; i < OTHERS; i++) {
+            cache.invalidate(("other" + i).getBytes(), 1000L + i * 0x9E3779B97F4A7C15L);
+        }
+        Assert.assertEquals(version, cache.version(keyHash));
+        Assert.assertEquals(missingVersion, cache.version(missingHash));
+
+        cache.put(key, keyHash, "value".getBytes(), version);
+        cache.putAbsent(missing, missingHash, missingVersion);
+        Assert.assertArrayEquals("value".getBytes(), cache.get(key, keyHash));
+        Assert.assertTrue(cache.isAbsent(missing, missingHash));
+
+        // 同一个key在读的期间被put，读到的是旧数据，不缓存
+        version = cache.version(keyHash);
+        cache.invalidate(key, keyHash);
+        cache.put(key, keyHash, "old".getBytes(), version);
+        Assert.assertNull(cache.get(key, keyHash));
+        Assert.assertFalse(cache.contains(key, keyHash));
+
+        missingVersion = cache.version(missingHash);
+        cache.invalidate(missing, missingHash);
+        cache.putAbsent(missing, missingHash, missingVersion);
+        Assert.assertFalse(cache.isAbsent(missing, missingHash));
+    }
+}
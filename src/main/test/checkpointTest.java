@@ -0,0 +1,164 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 与put并发的checkpoint：线性扩容分裂到一半的时候也不跳过；checkpoint一返回就把目录拷贝一份，
+ * 相当于这时崩溃，拷贝打开之后checkpoint之前put的key都在
+ */
+public class checkpointTest {
+
+    private static final int SEGMENTS = 4;
+    private static final int CHECKPOINTS = 20;
+    // 并发put的key的个数上限
+    private static final int KEYS = 100000;
+
+    @Test
+    public void checkpointWhilePutting() throws Exception {
+
+        String dir = "herdb-checkpoint-online";
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SEGMENTS_SIZE, String.valueOf(SEGMENTS));
+        config.set(Configuration.SLOTS_CAPACITY, "256");
+        config.set(Configuration.GROWTH_MODE, String.valueOf(Configuration.GROWTH_MODE_LINEAR));
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        final HerDB herDB = HerDB.create(config, dir);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < KEYS && !stop.get(); i++) {
+                        herDB.put("key" + i, "value" + i);
+                        written.set(i + 1);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writer.start();
+
+        for (int round = 0; round < CHECKPOINTS; round++) {
+            Thread.sleep(20);
+            int before = written.get();
+            herDB.checkpoint();
+            String copy = dir + "-copy";
+            copyDir(new File(dir), new File(copy));
+
+            HerDB reopened = HerDB.open(copy);
+            for (int i = 0; i < before; i++) {
+                Assert.assertEquals("round " + round, "value" + i, reopened.get("key" + i));
+            }
+            reopened.commit();
+        }
+        stop.set(true);
+        writer.join();
+        Assert.assertNull(String.valueOf(failure.get()), failure.get());
+        herDB.commit();
+    }
+
+    @Test
+    public void checkpointDuringSplit() throws Exception {
+
+        checkpointDuringSplit("herdb-checkpoint-split", Configuration.INDEX_MODE_HEAP);
+    }
+
+    @Test
+    public void checkpointDuringSplitMapped() throws Exception {
+
+        checkpointDuringSplit("herdb-checkpoint-split-mapped", Configuration.INDEX_MODE_MMAP);
+    }
+
+    private void checkpointDuringSplit(String dir, int indexMode) throws Exception {
+
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.INDEX_MODE, String.valueOf(indexMode));
+        config.set(Configuration.SEGMENTS_SIZE, "1");
+        config.set(Configuration.SLOTS_CAPACITY, "1024");
+        config.set(Configuration.GROWTH_MODE, String.valueOf(Configuration.GROWTH_MODE_LINEAR));
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        HerDB herDB = HerDB.create(config, dir);
+
+        // 一轮分裂要put容量的一半次，每隔100次checkpoint一次，总有落在分裂途中的
+        for (int i = 0; i < 10000; i++) {
+            herDB.put("key" + i, "value" + i);
+            if (i % 100 == 99) {
+                herDB.checkpoint();
+                Assert.assertEquals("after put " + i, new File(dir, "segment0.data").length(), checkpointed(dir));
+            }
+        }
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals("value" + i, herDB.get("key" + i));
+        }
+        herDB.commit();
+    }
+
+    // checkpoint文件里记录的数据地址，只有一个数据文件
+    private static long checkpointed(String dir) throws IOException {
+
+        byte[] bytes = read(new File(dir, "segment0.checkpoint"));
+        Assert.assertEquals(12, bytes.length);
+        long position = 0;
+        for (int i = 4; i < 12; i++) {
+            position = position << 8 | (bytes[i] & 0xFF);
+        }
+        return position;
+    }
+
+    // 拷贝数据库的目录，不拷贝锁文件
+    private static void copyDir(File from, File to) throws IOException {
+
+        if (to.exists()) {
+            for (File file : to.listFiles()) {
+                file.delete();
+            }
+        }
+        to.mkdirs();
+        for (File file : from.listFiles()) {
+            if (!file.getName().equals("herDB.lock")) {
+                FileOutputStream out = new FileOutputStream(new File(to, file.getName()));
+                try {
+                    out.write(read(file));
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return read == bytes.length ? bytes : Arrays.copyOf(bytes, read);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.File;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 反复覆盖同一批key之后，后台compact把大部分是无效数据的数据文件搬走删除：数据文件的总大小降下来，
+ * 期间与重新打开之后每个key都读到最后一次put的value
+ */
+public class compactionTest {
+
+    private static final int KEYS = 2000;
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void overwritesShrinkDisk() throws Exception {
+
+        String dir = "herdb-compaction";
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SEGMENTS_SIZE, "1");
+        config.set(Configuration.DATA_FILE_SIZE, "16384");
+        config.set(Configuration.COMPACTION_GARBAGE_RATIO, "50");
+        config.set(Configuration.COMPACTION_INTERVAL, "20");
+        config.set(Configuration.COMPACTION_RATE, "0");
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        HerDB herDB = HerDB.create(config, dir);
+        herDB.cacheOff();
+        for (int round = 0; round <= ROUNDS; round++) {
+            for (int i = 0; i < KEYS; i++) {
+                herDB.put("key" + i, value(i, round));
+            }
+        }
+        long peak = dataSize(dir);
+
+        // 有效的数据只占十一分之一，compact完之后远小于峰值
+        long deadline = System.currentTimeMillis() + 60000;
+        while (dataSize(dir) * 3 > peak && System.currentTimeMillis() < deadline) {
+            verify(herDB);
+            Thread.sleep(100);
+        }
+        long compacted = dataSize(dir);
+        Assert.assertTrue(compacted + " of " + peak, compacted * 3 <= peak);
+        verify(herDB);
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        herDB.cacheOff();
+        verify(herDB);
+        herDB.commit();
+        Assert.assertTrue(dataSize(dir) * 3 <= peak);
+    }
+
+    private static String value(int i, int round) {
+
+        return "value" + i + "-round" + round;
+    }
+
+    private static void verify(HerDB herDB) {
+
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("key" + i, value(i, ROUNDS), herDB.get("key" + i));
+        }
+    }
+
+    // 所有数据文件的总大小
+    private static long dataSize(String dir) {
+
+        long size = 0;
+        for (File file : new File(dir).listFiles()) {
+            if (file.getName().endsWith(".data")) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+
+/**
+ * 多个线程并发get的吞吐量：不加锁读索引(index.optimistic.reads为2)与总是加锁读(为0)对比，
+ * 分别在只有get与同时有一个线程不停put的情况下；不经过缓存，get都读数据文件
+ * <p>
+ * 不是单元测试；运行: java concurrentGetBenchmark [每次测量的毫秒数]
+ */
+public class concurrentGetBenchmark {
+
+    private static final int KEYS = 100000;
+    private static final int[] THREADS = {1, 4, 8, 16};
+
+    public static void main(String[] args) throws Exception {
+
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        HerDB optimistic = load("herdb-bench-optimistic", 2);
+        HerDB locked = load("herdb-bench-locked", 0);
+        // 预热JIT, 结果不算
+        getRate(optimistic, 4, millis, false);
+        getRate(locked, 4, millis, false);
+
+        for (boolean withPut : new boolean[]{false, true}) {
+            for (int threads : THREADS) {
+                System.out.printf("threads=%-3d put=%-5s optimistic %,12.0f gets/s   locked %,12.0f gets/s%n",
+                        threads, withPut, getRate(optimistic, threads, millis, withPut),
+                        getRate(locked, threads, millis, withPut));
+            }
+        }
+        optimistic.commit();
+        locked.commit();
+    }
+
+    private static HerDB load(String dir, int optimisticReads) throws Exception {
+
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SLOTS_CAPACITY, "262144");
+        config.set(Configuration.OPTIMISTIC_READS, String.valueOf(optimisticReads));
+        HerDB herDB = HerDB.create(config, dir);
+        herDB.cacheOff();
+        for (int i = 0; i < KEYS; i++) {
+            herDB.putBytes("key" + i, ("value" + i).getBytes());
+        }
+        return herDB;
+    }
+
+    // threads个线程随机get millis毫秒，withPut的时候另有一个线程不停覆盖已有的key；返回每秒get的次数
+    private static double getRate(final HerDB herDB, int threads, long millis, boolean withPut) throws Exception {
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong gets = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads + (withPut ? 1 : 0));
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long n = 0;
+                    int i = id;
+                    while (!stop.get()) {
+                        i = (i + 7919) % KEYS;
+                        herDB.getBytes("key" + i);
+                        n++;
+                    }
+                    gets.addAndGet(n);
+                    done.countDown();
+                }
+            }).start();
+        }
+        if (withPut) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = 0;
+                    while (!stop.get()) {
+                        i = (i + 104729) % KEYS;
+                        herDB.putBytes("key" + i, ("value" + i).getBytes());
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        Thread.sleep(millis);
+        stop.set(true);
+        done.await();
+        return gets.get() * 1000000000.0 / (System.nanoTime() - begin);
+    }
+}
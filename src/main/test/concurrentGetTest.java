@@ -0,0 +1,99 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 不加锁的get与并发的put、扩容：get读到的value只能是这个key某一次put的value，不能读到别的key的或者读不到
+ */
+public class concurrentGetTest {
+
+    private static final int KEYS = 20000;
+    private static final int WRITERS = 2;
+    private static final int READERS = 4;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void rehashGrowth() throws Exception {
+
+        getWhilePut(Configuration.GROWTH_MODE_REHASH, "rehash");
+    }
+
+    @Test
+    public void linearGrowth() throws Exception {
+
+        getWhilePut(Configuration.GROWTH_MODE_LINEAR, "linear");
+    }
+
+    @Test
+    public void backgroundGrowth() throws Exception {
+
+        getWhilePut(Configuration.GROWTH_MODE_BACKGROUND, "background");
+    }
+
+    private void getWhilePut(int growthMode, String name) throws Exception {
+
+        String dir = "herdb-concurrent-" + name;
+        Configuration config = Configuration.create(dir);
+        // 很小的初始容量，put的过程中要扩容多次
+        config.set(Configuration.SLOTS_CAPACITY, "256");
+        config.set(Configuration.SEGMENTS_SIZE, "2");
+        config.set(Configuration.GROWTH_MODE, String.valueOf(growthMode));
+        config.set(Configuration.COMPACTION_GARBAGE_RATIO, "0");
+        final HerDB herDB = HerDB.create(config, dir);
+        // 只测索引，不经过缓存
+        herDB.cacheOff();
+        for (int i = 0; i < KEYS; i++) {
+            herDB.putBytes("key" + i, ("key" + i + "#0").getBytes());
+        }
+
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+        for (int t = 0; t < WRITERS; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // 覆盖旧的key，同时加入新的key让索引继续扩容
+                    for (int round = 1; round <= ROUNDS; round++) {
+                        for (int i = id; i < KEYS; i += WRITERS) {
+                            herDB.putBytes("key" + i, ("key" + i + "#" + round).getBytes());
+                            herDB.putBytes("new" + round + "-" + i, ("new" + round + "-" + i).getBytes());
+                        }
+                    }
+                    writersDone.countDown();
+                }
+            }).start();
+        }
+        for (int t = 0; t < READERS; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = id;
+                    while (writersDone.getCount() > 0 && failure.get() == null) {
+                        i = (i + 7919) % KEYS;
+                        byte[] value = herDB.getBytes("key" + i);
+                        if (value == null || !new String(value).startsWith("key" + i + "#")) {
+                            failure.compareAndSet(null, "key" + i + " -> " + (value == null ? null : new String(value)));
+                        }
+                    }
+                    readersDone.countDown();
+                }
+            }).start();
+        }
+        writersDone.await();
+        readersDone.await();
+        Assert.assertNull(failure.get(), failure.get());
+
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("key" + i + "#" + ROUNDS, new String(herDB.getBytes("key" + i)));
+            Assert.assertEquals("new" + ROUNDS + "-" + i, new String(herDB.getBytes("new" + ROUNDS + "-" + i)));
+        }
+        herDB.commit();
+    }
+}
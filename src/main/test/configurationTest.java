@@ -0,0 +1,44 @@
+import java.io.File;
+import java.io.FileWriter;
+
+import org.herDB.herdb.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 打开数据库时的配置：配置文件里没有的配置项沿用旧版本的行为，创建时写入的配置项不受新的默认值影响
+ */
+public class configurationTest {
+
+    @Test
+    public void oldStoreKeepsOldBehaviour() throws Exception {
+
+        File dir = new File("herdb-old-conf");
+        dir.mkdirs();
+        // 旧版本创建的数据库的配置文件
+        FileWriter writer = new FileWriter(new File(dir, "herDB.conf"));
+        writer.write("buffered.block.size:32768\nitem.max.size:1024\nslots.capacity:32768\nsegments.size:8\n");
+        writer.close();
+
+        Configuration conf = Configuration.open(dir.getPath());
+        Assert.assertEquals(Configuration.HASH_FUNCTION_LEGACY, conf.get(Configuration.HASH_FUNCTION));
+        Assert.assertEquals(Configuration.GROWTH_MODE_REWRITE, conf.get(Configuration.GROWTH_MODE));
+        Assert.assertEquals(Configuration.RESIZE_POLICY_OVERFLOW, conf.get(Configuration.RESIZE_POLICY));
+        Assert.assertEquals(0, conf.get(Configuration.COMPACTION_GARBAGE_RATIO));
+    }
+
+    @Test
+    public void newStoreKeepsItsDefaults() throws Exception {
+
+        File dir = new File("herdb-new-conf");
+        dir.mkdirs();
+        new File(dir, "herDB.conf").delete();
+        Configuration.create(dir.getPath()).checkAndStore();
+
+        Configuration conf = Configuration.open(dir.getPath());
+        Assert.assertEquals(Configuration.HASH_FUNCTION_XXHASH64, conf.get(Configuration.HASH_FUNCTION));
+        Assert.assertEquals(Configuration.GROWTH_MODE_REHASH, conf.get(Configuration.GROWTH_MODE));
+        Assert.assertEquals(Configuration.RESIZE_POLICY_LOAD, conf.get(Configuration.RESIZE_POLICY));
+        Assert.assertEquals(50, conf.get(Configuration.COMPACTION_GARBAGE_RATIO));
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.File;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 数据文件写满data.file.size就换一个新的：每个数据文件都不超过这个大小，重新打开之后所有的数据文件都能读到，
+ * 之后的put接着写到新的数据文件里
+ */
+public class dataFileTest {
+
+    private static final int FILE_SIZE = 4096;
+    private static final int KEYS = 5000;
+
+    @Test
+    public void rollsAndReopens() throws Exception {
+
+        String dir = "herdb-data-files";
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SEGMENTS_SIZE, "1");
+        config.set(Configuration.DATA_FILE_SIZE, String.valueOf(FILE_SIZE));
+        // 不compact，数据文件只会因为写满而增加
+        config.set(Configuration.COMPACTION_GARBAGE_RATIO, "0");
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        HerDB herDB = HerDB.create(config, dir);
+        herDB.cacheOff();
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "value" + i);
+        }
+        herDB.commit();
+        int files = assertFileSizes(dir);
+        Assert.assertTrue(String.valueOf(files), files > 10);
+
+        herDB = HerDB.open(dir);
+        herDB.cacheOff();
+        verify(herDB, KEYS, -1);
+        // 覆盖一部分，再添加新的key
+        for (int i = 0; i < KEYS; i += 2) {
+            herDB.put("key" + i, "new" + i);
+        }
+        for (int i = KEYS; i < KEYS * 2; i++) {
+            herDB.put("key" + i, "value" + i);
+        }
+        verify(herDB, KEYS * 2, KEYS);
+        herDB.commit();
+        Assert.assertTrue(assertFileSizes(dir) > files);
+
+        herDB = HerDB.open(dir);
+        herDB.cacheOff();
+        verify(herDB, KEYS * 2, KEYS);
+        herDB.commit();
+    }
+
+    // 每个数据文件都不超过FILE_SIZE，返回数据文件的个数
+    private static int assertFileSizes(String dir) {
+
+        int files = 0;
+        for (File file : new File(dir).listFiles()) {
+            if (file.getName().startsWith("segment0") && file.getName().endsWith(".data")) {
+                Assert.assertTrue(file.getName() + " " + file.length(), file.length() <= FILE_SIZE);
+                files++;
+            }
+        }
+        return files;
+    }
+
+    // 序号小于overwritten的偶数key被覆盖过
+    private static void verify(HerDB herDB, int keys, int overwritten) {
+
+        for (int i = 0; i < keys; i++) {
+            String value = i < overwritten && i % 2 == 0 ? "new" + i : "value" + i;
+            Assert.assertEquals("key" + i, value, herDB.get("key" + i));
+        }
+    }
+}
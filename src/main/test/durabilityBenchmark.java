@@ -0,0 +1,71 @@
+import java.util.concurrent.CountDownLatch;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+
+/**
+ * 不同持久化方式下多个线程并发put的吞吐量：DURABILITY_NONE、DURABILITY_PERIODIC与DURABILITY_SYNC(组提交),
+ * 线程越多，组提交的一次fsync分摊给的put越多
+ * <p>
+ * 不是单元测试，结果取决于磁盘；运行: java durabilityBenchmark [每个线程put的次数]
+ */
+public class durabilityBenchmark {
+
+    private static final int[] THREADS = {1, 4, 16};
+    private static final String[] NAMES = {"none", "periodic", "sync"};
+    private static final int[] MODES = {Configuration.DURABILITY_NONE, Configuration.DURABILITY_PERIODIC,
+            Configuration.DURABILITY_SYNC};
+
+    public static void main(String[] args) throws Exception {
+
+        int puts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        byte[] value = new byte[100];
+        // 预热JIT, 结果不算
+        putRate(Configuration.DURABILITY_NONE, "warmup", 4, puts, value);
+        for (int m = 0; m < MODES.length; m++) {
+            for (int threads : THREADS) {
+                double rate = putRate(MODES[m], NAMES[m], threads, puts, value);
+                System.out.printf("%-9s threads=%-3d %,12.0f puts/s%n", NAMES[m], threads, rate);
+            }
+        }
+    }
+
+    // threads个线程各put puts次，返回每秒put的次数
+    private static double putRate(int mode, String name, int threads, final int puts, final byte[] value)
+            throws Exception {
+
+        String dir = "herdb-bench-" + name + "-" + threads;
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SLOTS_CAPACITY, "262144");
+        config.set(Configuration.DURABILITY_MODE, String.valueOf(mode));
+        config.set(Configuration.SYNC_INTERVAL, "100");
+        final HerDB herDB = HerDB.create(config, dir);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < puts; i++) {
+                            herDB.putBytes("key" + id + "-" + i, value);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        herDB.commit();
+        return (double) threads * puts * 1000000000L / elapsed;
+    }
+}
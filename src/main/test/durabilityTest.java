@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 不同持久化方式下的数据：commit之后重新打开都在；进程崩溃的时候，
+ * DURABILITY_SYNC下put返回了的数据都在，DURABILITY_PERIODIC下超过sync间隔的数据都在，
+ * DURABILITY_NONE下还在追加缓冲里的数据丢失，但是之前的数据完整
+ * <p>
+ * 崩溃用子进程put完直接halt模拟，不commit也不关闭文件
+ * <p>
+ * 注意：halt只结束进程，已经write到操作系统的数据还在page cache里，重新打开照样读得到；
+ * 所以这里的崩溃测试只能验证put返回前数据已经离开了进程里的追加缓冲，验证不了fsync真的做了，
+ * 那要断电或者虚拟机层面的崩溃才能测出来。各种方式的吞吐量见durabilityBenchmark
+ */
+public class durabilityTest {
+
+    private static final int THREADS = 4;
+    private static final int PUTS_PER_THREAD = 500;
+    // 子进程halt的退出码
+    private static final int CRASHED = 7;
+
+    @Test
+    public void noSyncSurvivesReopen() throws Exception {
+
+        survivesReopen(Configuration.DURABILITY_NONE, "none");
+    }
+
+    @Test
+    public void periodicSyncSurvivesReopen() throws Exception {
+
+        survivesReopen(Configuration.DURABILITY_PERIODIC, "periodic");
+    }
+
+    @Test
+    public void groupCommitSurvivesReopen() throws Exception {
+
+        survivesReopen(Configuration.DURABILITY_SYNC, "sync");
+    }
+
+    @Test
+    public void groupCommitSurvivesCrash() throws Exception {
+
+        String dir = crash(Configuration.DURABILITY_SYNC, "sync");
+        HerDB herDB = HerDB.open(dir);
+        // put返回之前已经写入文件并sync, 全部都在；page cache没有随halt丢失，这里证明不了fsync
+        assertPuts(herDB, "before", true);
+        assertPuts(herDB, "after", true);
+        herDB.commit();
+    }
+
+    @Test
+    public void periodicSyncSurvivesCrash() throws Exception {
+
+        String dir = crash(Configuration.DURABILITY_PERIODIC, "periodic");
+        HerDB herDB = HerDB.open(dir);
+        // 子进程在halt之前等过了几个sync间隔
+        assertPuts(herDB, "before", true);
+        assertPuts(herDB, "after", true);
+        herDB.commit();
+    }
+
+    @Test
+    public void noSyncLosesBufferedPuts() throws Exception {
+
+        String dir = crash(Configuration.DURABILITY_NONE, "none");
+        HerDB herDB = HerDB.open(dir);
+        // checkpoint之前的数据已经写入文件，之后的还在追加缓冲里，随进程一起丢失
+        assertPuts(herDB, "before", true);
+        assertPuts(herDB, "after", false);
+        // 丢掉的是末尾的数据，数据库仍然可以继续读写
+        herDB.put("again", "eclipse");
+        Assert.assertEquals("eclipse", herDB.get("again"));
+        herDB.commit();
+    }
+
+    private void survivesReopen(int mode, String name) throws Exception {
+
+        String dir = "herdb-" + name;
+        Configuration config = config(dir, mode);
+        final HerDB herDB = HerDB.create(config, dir);
+
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < PUTS_PER_THREAD; i++) {
+                        herDB.put("java" + id + "-" + i, "eclipse" + i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        herDB.commit();
+
+        HerDB reopened = HerDB.open(dir);
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < PUTS_PER_THREAD; i++) {
+                Assert.assertEquals("eclipse" + i, reopened.get("java" + t + "-" + i));
+            }
+        }
+        reopened.commit();
+    }
+
+    private static Configuration config(String dir, int mode) {
+
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SLOTS_CAPACITY, "65536");
+        config.set(Configuration.DURABILITY_MODE, String.valueOf(mode));
+        config.set(Configuration.SYNC_INTERVAL, "100");
+        // 追加缓冲只在写满或者sync的时候写入文件
+        config.set(Configuration.WRITE_BUFFER_SIZE, "65536");
+        config.set(Configuration.WRITE_FLUSH_INTERVAL, "0");
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        return config;
+    }
+
+    // 在子进程里put之后崩溃，返回数据库的目录
+    private String crash(int mode, String name) throws Exception {
+
+        String dir = "herdb-crash-" + name;
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(durabilityTest.class.getName());
+        command.add(dir);
+        command.add(String.valueOf(mode));
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        Assert.assertEquals(CRASHED, process.waitFor());
+        return dir;
+    }
+
+    private static void assertPuts(HerDB herDB, String prefix, boolean present) {
+
+        for (int i = 0; i < PUTS_PER_THREAD; i++) {
+            String value = herDB.get(prefix + i);
+            if (present) {
+                Assert.assertEquals(prefix + i, "eclipse" + i, value);
+            } else {
+                Assert.assertNull(prefix + i, value);
+            }
+        }
+    }
+
+    /**
+     * 子进程：put一批数据之后checkpoint, 再put一批数据，然后直接halt
+     *
+     * @param args 数据库的目录与持久化方式
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        int mode = Integer.parseInt(args[1]);
+        HerDB herDB = HerDB.create(config(args[0], mode), args[0]);
+        for (int i = 0; i < PUTS_PER_THREAD; i++) {
+            herDB.put("before" + i, "eclipse" + i);
+        }
+        herDB.checkpoint();
+        for (int i = 0; i < PUTS_PER_THREAD; i++) {
+            herDB.put("after" + i, "eclipse" + i);
+        }
+        if (mode == Configuration.DURABILITY_PERIODIC) {
+            Thread.sleep(1000);
+        }
+        Runtime.getRuntime().halt(CRASHED);
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.herDB.cache.CacheStats;
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 缓存里最热的key：commit的时候与每隔一段时间写入herDB.hotkeys，重新打开的时候在后台按列表预热缓存，
+ * 预热完了读这些key不再读数据文件；列表不完整的话不预热，不影响打开
+ */
+public class hotKeysTest {
+
+    private static final int KEYS = 2000;
+    private static final int HOT = 100;
+    private static final int ROUNDS = 3;
+    private static final String HOT_KEYS_FILE = "herDB.hotkeys";
+
+    @Test
+    public void warmUpAfterReopen() throws Exception {
+
+        String dir = "herdb-hotkeys";
+        HerDB herDB = HerDB.create(config(dir, "3600000"), dir).cacheOn();
+        putKeys(herDB);
+        Assert.assertFalse(new File(dir, HOT_KEYS_FILE).exists());
+        herDB.commit();
+        Assert.assertTrue(new File(dir, HOT_KEYS_FILE).exists());
+
+        herDB = HerDB.open(dir);
+        awaitEntries(herDB, HOT);
+        CacheStats before = herDB.cacheStats();
+        readHotKeys(herDB);
+        CacheStats after = herDB.cacheStats();
+        // 都已经预热进缓存
+        Assert.assertEquals(HOT * ROUNDS, after.hits() - before.hits());
+        Assert.assertEquals(0, after.misses() - before.misses());
+        herDB.commit();
+    }
+
+    @Test
+    public void savedPeriodically() throws Exception {
+
+        String dir = "herdb-hotkeys-periodic";
+        HerDB herDB = HerDB.create(config(dir, "50"), dir).cacheOn();
+        putKeys(herDB);
+        File file = new File(dir, HOT_KEYS_FILE);
+        for (int i = 0; i < 100 && !file.exists(); i++) {
+            Thread.sleep(50);
+        }
+        // 不用等到commit
+        Assert.assertTrue(file.exists());
+        herDB.commit();
+    }
+
+    @Test
+    public void brokenListIgnored() throws Exception {
+
+        String dir = "herdb-hotkeys-broken";
+        HerDB herDB = HerDB.create(config(dir, "3600000"), dir).cacheOn();
+        putKeys(herDB);
+        herDB.commit();
+        FileOutputStream out = new FileOutputStream(new File(dir, HOT_KEYS_FILE));
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        herDB = HerDB.open(dir);
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("value" + i, herDB.get("key" + i));
+        }
+        herDB.commit();
+        // commit的时候写入了新的完整列表
+        Assert.assertTrue(new File(dir, HOT_KEYS_FILE).length() > 3);
+    }
+
+    private static Configuration config(String dir, String interval) throws Exception {
+
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.HOT_KEYS_COUNT, String.valueOf(KEYS));
+        config.set(Configuration.HOT_KEYS_INTERVAL, interval);
+        return config;
+    }
+
+    // put所有的key，只读前HOT个，缓存里只有它们
+    private static void putKeys(HerDB herDB) {
+
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "value" + i);
+        }
+        readHotKeys(herDB);
+    }
+
+    private static void readHotKeys(HerDB herDB) {
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < HOT; i++) {
+                Assert.assertEquals("value" + i, herDB.get("key" + i));
+            }
+        }
+    }
+
+    // 预热在后台进行，等缓存里有了entries个key
+    private static void awaitEntries(HerDB herDB, int entries) throws InterruptedException {
+
+        for (int i = 0; i < 100 && herDB.cacheStats().entries() < entries; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(entries, herDB.cacheStats().entries());
+    }
+}
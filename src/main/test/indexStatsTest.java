@@ -0,0 +1,46 @@
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.herDB.index.IndexStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * RESIZE_POLICY_LOAD按装载因子与slot链长度扩容：从很小的容量一直put，indexStats()里的装载因子不超过
+ * index.load.factor，最长的slot链也不随key的个数增长
+ */
+public class indexStatsTest {
+
+    private static final int KEYS = 100000;
+    private static final int MAX_CHAIN = 8;
+
+    @Test
+    public void chainsStayBoundedUnderLoadPolicy() throws Exception {
+
+        String dir = "herdb-index-stats";
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SEGMENTS_SIZE, "1");
+        config.set(Configuration.SLOTS_CAPACITY, "64");
+        config.set(Configuration.RESIZE_POLICY, String.valueOf(Configuration.RESIZE_POLICY_LOAD));
+        config.set(Configuration.LOAD_FACTOR, "100");
+        config.set(Configuration.MAX_CHAIN, String.valueOf(MAX_CHAIN));
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        HerDB herDB = HerDB.create(config, dir);
+
+        int longest = 0;
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "value" + i);
+            if (i % 1000 == 999) {
+                IndexStats stats = herDB.indexStats()[0];
+                Assert.assertEquals(i + 1, stats.entries());
+                Assert.assertTrue(stats.toString(), stats.loadFactor() <= 1.0);
+                Assert.assertTrue(stats.toString(), stats.averageChain() <= 2.0);
+                longest = Math.max(longest, stats.longestChain());
+            }
+        }
+        IndexStats stats = herDB.indexStats()[0];
+        // 装载因子到一半以上，链长过index.max.chain就会扩容，链长最多超出扩容前最后一次put的那一个
+        Assert.assertTrue(stats.toString(), longest <= MAX_CHAIN + 1);
+        Assert.assertTrue(stats.toString(), stats.capacity() >= KEYS);
+        herDB.commit();
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.herDB.store.FSDirectory;
+import org.herDB.store.InputOutData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 读写数据文件的线程被中断会关掉共用的channel：被中断的和同时在读写的线程都重新打开文件重试，
+ * 数据不丢失、不错位，之后的追加照常进行
+ */
+public class interruptTest {
+
+    private static final int RECORD = 16;
+    private static final int RECORDS = 2000;
+
+    @Test
+    public void interruptedWriterKeepsAppending() throws Exception {
+
+        FSDirectory fsd = FSDirectory.create("herdb-interrupt-write", true);
+        InputOutData stream = fsd.createDataStream("data", false);
+        // 缓冲只放得下4条，追加的时候经常要写入文件
+        stream.bufferAppends(RECORD * 4, 0);
+        for (int i = 0; i < RECORDS; i++) {
+            if (i % 7 == 0) {
+                Thread.currentThread().interrupt();
+            }
+            stream.append(record(i));
+            // 中断状态在写完之后恢复
+            if (i % 7 == 0) {
+                Assert.assertTrue(Thread.interrupted());
+            }
+        }
+        stream.flush();
+        Assert.assertEquals((long) RECORD * RECORDS, stream.maxOffSet());
+        for (int i = 0; i < RECORDS; i++) {
+            Assert.assertArrayEquals(record(i), stream.seek((long) i * RECORD, RECORD));
+        }
+
+        Thread.currentThread().interrupt();
+        stream.sync();
+        Assert.assertTrue(Thread.interrupted());
+        stream.close();
+        fsd.releaseDir();
+    }
+
+    @Test
+    public void readersSurviveInterrupts() throws Exception {
+
+        FSDirectory fsd = FSDirectory.create("herdb-interrupt-read", true);
+        final InputOutData stream = fsd.createDataStream("data", false);
+        for (int i = 0; i < RECORDS; i++) {
+            stream.append(record(i));
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(4);
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final int id = t;
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < 20000; n++) {
+                            int i = (id + n * 31) % RECORDS;
+                            byte[] read = stream.seek((long) i * RECORD, RECORD);
+                            if (!new String(read).equals(new String(record(i)))) {
+                                throw new AssertionError("record " + i + " -> " + new String(read));
+                            }
+                            Thread.interrupted();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        while (done.getCount() > 0) {
+            for (Thread reader : readers) {
+                reader.interrupt();
+            }
+            Thread.sleep(1);
+        }
+        Assert.assertNull(String.valueOf(failure.get()), failure.get());
+
+        // 被关掉过很多次之后追加的数据仍然在正确的位置上
+        stream.append(record(RECORDS));
+        stream.flush();
+        Assert.assertArrayEquals(record(RECORDS), stream.seek((long) RECORDS * RECORD, RECORD));
+        stream.close();
+        fsd.releaseDir();
+    }
+
+    // 长度为RECORD的第i条数据
+    private static byte[] record(int i) {
+
+        StringBuilder record = new StringBuilder("record" + i + "|");
+        while (record.length() < RECORD) {
+            record.append('x');
+        }
+        return record.toString().getBytes();
+    }
+}
@@ -0,0 +1,75 @@
+import org.herDB.cache.CacheStats;
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 不存在的key的缓存：查过一次之后不再读索引，key被put之后去掉，之后读到put的value
+ */
+public class negativeCacheTest {
+
+    private static final int KEYS = 1000;
+
+    @Test
+    public void onlyNegativeCache() throws Exception {
+
+        absentUntilPut("herdb-negative", "0", Configuration.CACHE_WRITE_INVALIDATE);
+    }
+
+    @Test
+    public void withValueCache() throws Exception {
+
+        absentUntilPut("herdb-negative-values", "1048576", Configuration.CACHE_WRITE_INVALIDATE);
+    }
+
+    @Test
+    public void writeThrough() throws Exception {
+
+        absentUntilPut("herdb-negative-through", "1048576", Configuration.CACHE_WRITE_THROUGH);
+    }
+
+    @Test
+    public void writeBack() throws Exception {
+
+        absentUntilPut("herdb-negative-back", "1048576", Configuration.CACHE_WRITE_BACK);
+    }
+
+    private void absentUntilPut(String dir, String cacheSize, int writeMode) throws Exception {
+
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.STORAGE_CACHE_SIZE, cacheSize);
+        config.set(Configuration.NEGATIVE_CACHE_SIZE, String.valueOf(KEYS * 2));
+        config.set(Configuration.CACHE_WRITE_MODE, String.valueOf(writeMode));
+        HerDB herDB = HerDB.create(config, dir).cacheOn();
+
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertNull(herDB.get("key" + i));
+        }
+        Assert.assertEquals(KEYS, herDB.cacheStats().absentEntries());
+        // 第二次查询与contains都在缓存里查到不存在
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertNull(herDB.get("key" + i));
+            Assert.assertFalse(herDB.contains("key" + i));
+        }
+        CacheStats stats = herDB.cacheStats();
+        Assert.assertEquals(KEYS * 2, stats.absentHits());
+
+        for (int i = 0; i < KEYS; i += 2) {
+            herDB.put("key" + i, "value" + i);
+        }
+        // put过的key不再缓存为不存在，没有put过的仍然是
+        Assert.assertEquals(KEYS / 2, herDB.cacheStats().absentEntries());
+        for (int i = 0; i < KEYS; i++) {
+            if (i % 2 == 0) {
+                Assert.assertTrue(herDB.contains("key" + i));
+                Assert.assertEquals("value" + i, herDB.get("key" + i));
+            } else {
+                Assert.assertFalse(herDB.contains("key" + i));
+                Assert.assertNull(herDB.get("key" + i));
+            }
+        }
+        Assert.assertEquals(stats.absentHits() + KEYS, herDB.cacheStats().absentHits());
+        herDB.commit();
+    }
+}
@@ -0,0 +1,160 @@
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.herDB.cache.CacheStats;
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 堆上与堆外两层缓存下并发的get与put：堆外内存很小，slab不停地被淘汰分给别的分片，
+ * get读到的只能是这个key某一次put的value；put都返回之后，缓存里不能留下旧的value
+ */
+public class offHeapCacheTest {
+
+    private static final int KEYS = 20000;
+    private static final int WRITERS = 2;
+    private static final int READERS = 4;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void invalidateWhileGet() throws Exception {
+
+        getWhilePut(Configuration.CACHE_WRITE_INVALIDATE, "invalidate");
+    }
+
+    @Test
+    public void writeThroughWhileGet() throws Exception {
+
+        getWhilePut(Configuration.CACHE_WRITE_THROUGH, "through");
+    }
+
+    /**
+     * 只有一个slab：分配之后、写之前另一个size class要分配，slab被钉住不能淘汰，那次分配失败；
+     * 写完之后再分配才淘汰它，原来的引用随之失效。SlabAllocator不公开，用反射调用
+     */
+    @Test
+    public void evictionBetweenAllocateAndWrite() throws Exception {
+
+        Class<?> type = Class.forName("org.herDB.cache.SlabAllocator");
+        Constructor<?> create = type.getDeclaredConstructor(long.class, int.class);
+        create.setAccessible(true);
+        Object allocator = create.newInstance(65536L, 65536);
+        Method allocate = method(type, "allocate", int.class);
+        Method write = method(type, "write", long.class, byte[].class, byte[].class);
+        Method isValid = method(type, "isValid", long.class);
+        Method slab = method(type, "slab", long.class);
+        Method offset = method(type, "offset", long.class);
+        Method evictions = method(type, "evictions");
+
+        byte[] key = "key".getBytes();
+        byte[] value = value(7, 1);
+        long ref = (Long) allocate.invoke(allocator, 8 + key.length + value.length);
+        Assert.assertTrue(ref >= 0);
+        // 别的size class要一个新的slab，唯一的slab还没写完
+        Assert.assertEquals(-1L, allocate.invoke(allocator, 40000));
+        Assert.assertEquals(0L, evictions.invoke(allocator));
+
+        write.invoke(allocator, ref, key, value);
+        Assert.assertTrue((Boolean) isValid.invoke(allocator, ref));
+        ByteBuffer chunk = ((ByteBuffer) slab.invoke(allocator, ref)).duplicate();
+        chunk.position((Integer) offset.invoke(allocator, ref));
+        Assert.assertEquals(key.length, chunk.getInt());
+        Assert.assertEquals(value.length, chunk.getInt());
+        byte[] read = new byte[key.length + value.length];
+        chunk.get(read);
+        Assert.assertEquals("key" + new String(value), new String(read));
+
+        // 写完之后slab可以淘汰了
+        long other = (Long) allocate.invoke(allocator, 40000);
+        Assert.assertTrue(other >= 0);
+        Assert.assertFalse((Boolean) isValid.invoke(allocator, ref));
+        Assert.assertEquals(1L, evictions.invoke(allocator));
+        write.invoke(allocator, other, key, new byte[40000 - 8 - key.length]);
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameters) throws Exception {
+
+        Method method = type.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        return method;
+    }
+
+    private void getWhilePut(int writeMode, String name) throws Exception {
+
+        String dir = "herdb-offheap-" + name;
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.STORAGE_CACHE_SIZE, "65536");
+        // 1MB的堆外内存只有16个slab，放不下所有的key
+        config.set(Configuration.OFFHEAP_CACHE_SIZE, "1");
+        config.set(Configuration.CACHE_SLAB_SIZE, "65536");
+        config.set(Configuration.CACHE_WRITE_MODE, String.valueOf(writeMode));
+        final HerDB herDB = HerDB.create(config, dir);
+        herDB.cacheOn();
+        for (int i = 0; i < KEYS; i++) {
+            herDB.putBytes("key" + i, value(i, 0));
+        }
+
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+        for (int t = 0; t < WRITERS; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int round = 1; round <= ROUNDS; round++) {
+                        for (int i = id; i < KEYS; i += WRITERS) {
+                            herDB.putBytes("key" + i, value(i, round));
+                        }
+                    }
+                    writersDone.countDown();
+                }
+            }).start();
+        }
+        for (int t = 0; t < READERS; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = id;
+                    while (writersDone.getCount() > 0 && failure.get() == null) {
+                        i = (i + 7919) % KEYS;
+                        byte[] value = herDB.getBytes("key" + i);
+                        if (value == null || !new String(value).startsWith("key" + i + "#")) {
+                            failure.compareAndSet(null, "key" + i + " -> " + (value == null ? null : new String(value)));
+                        }
+                    }
+                    readersDone.countDown();
+                }
+            }).start();
+        }
+        writersDone.await();
+        readersDone.await();
+        Assert.assertNull(failure.get(), failure.get());
+
+        // 每个key读两遍，第二遍从缓存里读
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < KEYS; i++) {
+                Assert.assertArrayEquals("key" + i, value(i, ROUNDS), herDB.getBytes("key" + i));
+            }
+        }
+        CacheStats stats = herDB.cacheStats();
+        Assert.assertTrue(stats.toString(), stats.offHeapEvictions() > 0);
+        herDB.commit();
+    }
+
+    // 不同的key的value长度不同，分在不同的size class里
+    private static byte[] value(int i, int round) {
+
+        StringBuilder value = new StringBuilder("key" + i + "#" + round + "|");
+        for (int j = 0; j < i % 200; j++) {
+            value.append('x');
+        }
+        return value.toString().getBytes();
+    }
+}
@@ -0,0 +1,503 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.herDB.store.InputOutData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 扩容或者compact写数据文件的途中崩溃之后重新打开：写了一半的数据文件里是旧数据的拷贝，
+ * 不能覆盖崩溃之前put的新数据；checkpoint写完日志、还没写完索引文件的时候崩溃；映射模式下没有正常关闭
+ * <p>
+ * 子进程put完直接halt模拟崩溃，再按扩容崩溃时的样子改写目录里的文件
+ */
+public class recoveryTest {
+
+    private static final int KEYS = 2000;
+    // 子进程halt的退出码
+    private static final int CRASHED = 7;
+    // hint文件的标识"HINT"
+    private static final int HINT_MAGIC = 0x48494E54;
+    // 后台扩容测试里put的次数，一半是新的key，一半覆盖之前的key
+    private static final int OPS = 40000;
+    // 子进程put完了还没有遇到扩容的退出码
+    private static final int FINISHED = 8;
+
+    @Test
+    public void unfinishedTargetOnReopen() throws Exception {
+
+        String dir = crashWithUnfinishedTarget("herdb-unfinished");
+        HerDB herDB = HerDB.open(dir);
+        assertValues(herDB);
+        herDB.commit();
+        // 没有索引指向，打开的时候已经删除
+        Assert.assertFalse(new File(dir, "segment0.2.data").exists());
+        Assert.assertFalse(new File(dir, "segment0.2.hint.tep").exists());
+
+        herDB = HerDB.open(dir);
+        assertValues(herDB);
+        herDB.commit();
+    }
+
+    @Test
+    public void unfinishedTargetOnRebuild() throws Exception {
+
+        String dir = crashWithUnfinishedTarget("herdb-unfinished-rebuild");
+        // 索引也丢了，用所有的数据文件重建
+        for (String name : new String[]{"segment0.index", "segment0.checkpoint", "segment0.journal", "segment0.bloom"}) {
+            new File(dir, name).delete();
+        }
+        HerDB herDB = HerDB.open(dir);
+        assertValues(herDB);
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        assertValues(herDB);
+        herDB.commit();
+    }
+
+    @Test
+    public void crashBeforeFirstCheckpoint() throws Exception {
+
+        String dir = "herdb-fresh-crash";
+        runChild(dir, "fresh");
+        // 新建分段的索引文件在第一次checkpoint之前是空的
+        Assert.assertEquals(0, new File(dir, "segment0.index").length());
+
+        HerDB herDB = HerDB.open(dir);
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("key" + i, "old" + i, herDB.get("key" + i));
+        }
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        Assert.assertEquals("old0", herDB.get("key0"));
+        herDB.commit();
+    }
+
+    @Test
+    public void crashBeforeIndexWrite() throws Exception {
+
+        crashAfterJournal("herdb-journal-crash", 1);
+    }
+
+    @Test
+    public void crashDuringIndexWrite() throws Exception {
+
+        // 文件头与第一个page已经写入索引文件
+        crashAfterJournal("herdb-journal-crash-torn", 3);
+    }
+
+    /**
+     * checkpoint的日志已经fsync, 写索引文件的第halt次write的时候崩溃；打开的时候先用日志把索引文件写完整
+     */
+    private void crashAfterJournal(String dir, int halt) throws Exception {
+
+        runChild(dir, "journal", String.valueOf(halt));
+        Assert.assertTrue(new File(dir, "segment0.journal").length() > 0);
+
+        HerDB herDB = HerDB.open(dir);
+        Assert.assertEquals(0, new File(dir, "segment0.journal").length());
+        assertValues(herDB);
+        for (int i = KEYS; i < KEYS * 2; i++) {
+            Assert.assertEquals("key" + i, "added" + i, herDB.get("key" + i));
+        }
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        assertValues(herDB);
+        herDB.commit();
+    }
+
+    @Test
+    public void uncleanMappedIndex() throws Exception {
+
+        String dir = "herdb-mapped-crash";
+        runChild(dir, "mapped");
+        Assert.assertTrue(new File(dir, "segment0.mapped").exists());
+        // 没有正常关闭的映射的索引文件可能写回了任意一部分页，这里把slot全部清零
+        RandomAccessFile index = new RandomAccessFile(new File(dir, "segment0.index"), "rw");
+        try {
+            index.seek(20);
+            index.write(new byte[(int) index.length() - 20]);
+        } finally {
+            index.close();
+        }
+
+        HerDB herDB = HerDB.open(dir);
+        assertValues(herDB);
+        herDB.commit();
+        Assert.assertFalse(new File(dir, "segment0.mapped").exists());
+
+        herDB = HerDB.open(dir);
+        assertValues(herDB);
+        herDB.commit();
+    }
+
+    @Test
+    public void crashDuringResize() throws Exception {
+
+        String dir = "herdb-resize-crash";
+        runChild(dir, "resize");
+        HerDB herDB = HerDB.open(dir);
+        assertPrefix(herDB);
+        herDB.commit();
+        // 扩容写到一半的数据文件没有索引指向，打开的时候已经删除
+        for (String name : new File(dir).list()) {
+            Assert.assertFalse(name, name.endsWith(".tep"));
+        }
+
+        herDB = HerDB.open(dir);
+        assertPrefix(herDB);
+        herDB.commit();
+    }
+
+    @Test
+    public void crashDuringResizeRebuild() throws Exception {
+
+        String dir = "herdb-resize-crash-rebuild";
+        runChild(dir, "resize");
+        for (String name : new String[]{"segment0.index", "segment0.checkpoint", "segment0.journal", "segment0.bloom"}) {
+            new File(dir, name).delete();
+        }
+        HerDB herDB = HerDB.open(dir);
+        assertPrefix(herDB);
+        herDB.commit();
+    }
+
+    // 第op次put的key: 偶数次是新的key, 奇数次覆盖之前的key
+    private static String keyOf(int op) {
+
+        return "key" + (op % 2 == 0 ? op / 2 : op / 4);
+    }
+
+    // 第op次put的value, 加长让扩容拷贝数据文件的时间长一些
+    private static String valueOf(int op) {
+
+        char[] filler = new char[300];
+        Arrays.fill(filler, 'x');
+        return op + "|" + new String(filler);
+    }
+
+    /**
+     * 崩溃之后数据库应该正好是某个前缀的put都在的样子：每个key的value是前缀里对它的最后一次put，
+     * 前缀里没有put过的key不存在；扩容写的旧数据的拷贝覆盖了新的value的话就找不到这样的前缀
+     */
+    private static void assertPrefix(HerDB herDB) {
+
+        int[] next = new int[OPS];
+        int[] first = new int[OPS];
+        Arrays.fill(first, -1);
+        // 每次put之后对同一个key的下一次put
+        int[] last = new int[OPS];
+        Arrays.fill(last, -1);
+        for (int op = 0; op < OPS; op++) {
+            int key = Integer.parseInt(keyOf(op).substring(3));
+            next[op] = OPS;
+            if (last[key] >= 0) {
+                next[last[key]] = op;
+            } else {
+                first[key] = op;
+            }
+            last[key] = op;
+        }
+
+        // 前缀的长度在(low, high]之间
+        long low = -1, high = OPS;
+        for (int key = 0; key < OPS; key++) {
+            if (first[key] < 0) {
+                continue;
+            }
+            String value = herDB.get("key" + key);
+            if (value == null) {
+                high = Math.min(high, first[key]);
+                continue;
+            }
+            int op = Integer.parseInt(value.substring(0, value.indexOf('|')));
+            Assert.assertEquals(keyOf(op), "key" + key);
+            Assert.assertEquals(valueOf(op), value);
+            low = Math.max(low, op);
+            high = Math.min(high, next[op]);
+        }
+        Assert.assertTrue("no prefix of the puts matches: " + low + " " + high, low < high);
+    }
+
+    /**
+     * 子进程commit了旧的value, 又put了一半key的新value之后崩溃；再把目录改成扩容写到一半时崩溃的样子：
+     * <ul>
+     * <li>segment0.data: checkpoint之前的旧数据，扩容的来源</li>
+     * <li>segment0.1.data: 扩容开始之后put的新数据</li>
+     * <li>segment0.2.data: 扩容写的旧数据的拷贝，hint文件只有临时文件里的文件头</li>
+     * </ul>
+     */
+    private String crashWithUnfinishedTarget(String dir) throws Exception {
+
+        runChild(dir, "overwrite");
+
+        long checkpointed;
+        DataInputStream in = new DataInputStream(new FileInputStream(new File(dir, "segment0.checkpoint")));
+        try {
+            Assert.assertEquals(0, in.readInt());
+            checkpointed = in.readLong();
+        } finally {
+            in.close();
+        }
+        byte[] data = read(new File(dir, "segment0.data"));
+        Assert.assertTrue(data.length > checkpointed);
+
+        write(new File(dir, "segment0.data"), Arrays.copyOfRange(data, 0, (int) checkpointed));
+        write(new File(dir, "segment0.1.data"), Arrays.copyOfRange(data, (int) checkpointed, data.length));
+        write(new File(dir, "segment0.2.data"), Arrays.copyOfRange(data, 0, (int) checkpointed));
+        DataOutputStream hint = new DataOutputStream(new FileOutputStream(new File(dir, "segment0.2.hint.tep")));
+        try {
+            hint.writeInt(HINT_MAGIC);
+            // 扩容开始之后put的第一个数据文件
+            hint.writeInt(1);
+        } finally {
+            hint.close();
+        }
+        return dir;
+    }
+
+    // 偶数的key是崩溃之前put的新value
+    private static void assertValues(HerDB herDB) {
+
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("key" + i, (i % 2 == 0 ? "new" : "old") + i, herDB.get("key" + i));
+        }
+    }
+
+    private void runChild(String... args) throws Exception {
+
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(recoveryTest.class.getName());
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        Assert.assertEquals(CRASHED, process.waitFor());
+    }
+
+    private static byte[] read(File file) throws IOException {
+
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 子进程，只有一个分段；最后直接halt
+     * <ul>
+     * <li>overwrite: commit旧的value之后重新打开，覆盖一半的key</li>
+     * <li>fresh: 新建数据库put完就halt，还没有checkpoint过</li>
+     * <li>resize: 后台扩容，不停地put新的key与覆盖旧的key, 一看到扩容写的hint临时文件就halt</li>
+     * <li>journal: overwrite之后再put一批新的key, checkpoint写索引文件的第args[2]次write的时候halt</li>
+     * <li>mapped: 映射模式下overwrite, checkpoint之后halt</li>
+     * </ul>
+     *
+     * @param args 数据库的目录与要做的事
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        final String dir = args[0];
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SEGMENTS_SIZE, "1");
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        config.set(Configuration.COMPACTION_GARBAGE_RATIO, "0");
+        if ("resize".equals(args[1])) {
+            config.set(Configuration.SLOTS_CAPACITY, "256");
+            config.set(Configuration.GROWTH_MODE, String.valueOf(Configuration.GROWTH_MODE_BACKGROUND));
+            HerDB herDB = HerDB.create(config, dir);
+            Thread watcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        for (String name : new File(dir).list()) {
+                            if (name.endsWith(".hint.tep")) {
+                                Runtime.getRuntime().halt(CRASHED);
+                            }
+                        }
+                    }
+                }
+            });
+            watcher.setDaemon(true);
+            watcher.start();
+            for (int op = 0; op < OPS; op++) {
+                herDB.put(keyOf(op), valueOf(op));
+            }
+            Runtime.getRuntime().halt(FINISHED);
+        }
+        if ("fresh".equals(args[1])) {
+            HerDB herDB = HerDB.create(config, dir);
+            for (int i = 0; i < KEYS; i++) {
+                herDB.put("key" + i, "old" + i);
+            }
+            Runtime.getRuntime().halt(CRASHED);
+        }
+
+        if ("mapped".equals(args[1])) {
+            config.set(Configuration.INDEX_MODE, String.valueOf(Configuration.INDEX_MODE_MMAP));
+        }
+        if ("journal".equals(args[1])) {
+            // 新加的key让索引扩容，写了一半的索引文件是新的文件头配上旧的slot
+            config.set(Configuration.SLOTS_CAPACITY, "1024");
+        }
+        HerDB herDB = HerDB.create(config, dir);
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "old" + i);
+        }
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        for (int i = 0; i < KEYS; i += 2) {
+            herDB.put("key" + i, "new" + i);
+        }
+        if ("mapped".equals(args[1])) {
+            herDB.checkpoint();
+        }
+        if ("journal".equals(args[1])) {
+            for (int i = KEYS; i < KEYS * 2; i++) {
+                herDB.put("key" + i, "added" + i);
+            }
+            // 换掉分段写索引文件用的io入口
+            Field segments = HerDB.class.getDeclaredField("segments");
+            segments.setAccessible(true);
+            Object segment = ((Object[]) segments.get(herDB))[0];
+            Field fsIndex = segment.getClass().getDeclaredField("fsIndex");
+            fsIndex.setAccessible(true);
+            fsIndex.set(segment, new HaltOnWrite((InputOutData) fsIndex.get(segment), Integer.parseInt(args[2])));
+            herDB.checkpoint();
+            Runtime.getRuntime().halt(FINISHED);
+        }
+        Runtime.getRuntime().halt(CRASHED);
+    }
+
+    // 第halt次write的时候halt, 之前的write照常写入文件
+    private static class HaltOnWrite extends InputOutData {
+
+        private final InputOutData target;
+        private int writes;
+
+        HaltOnWrite(InputOutData target, int halt) {
+
+            this.target = target;
+            this.writes = halt;
+        }
+
+        @Override
+        public void write(long offset, byte[] data) throws IOException {
+
+            if (--writes == 0) {
+                Runtime.getRuntime().halt(CRASHED);
+            }
+            target.write(offset, data);
+        }
+
+        @Override
+        public byte[] readFully() throws IOException {
+            return target.readFully();
+        }
+
+        @Override
+        public byte[] seek(long offset, int size) throws IOException {
+            return target.seek(offset, size);
+        }
+
+        @Override
+        public void flush(byte[] data) {
+            target.flush(data);
+        }
+
+        @Override
+        public InputOutData append(byte[] data) throws IOException {
+            target.append(data);
+            return this;
+        }
+
+        @Override
+        public byte[] readSequentially(int size) throws IOException {
+            return target.readSequentially(size);
+        }
+
+        @Override
+        public long maxOffSet() {
+            return target.maxOffSet();
+        }
+
+        @Override
+        public InputOutData position(long offset) throws IOException {
+            target.position(offset);
+            return this;
+        }
+
+        @Override
+        public InputOutData deleteFile() {
+            target.deleteFile();
+            return this;
+        }
+
+        @Override
+        public InputOutData createNewFile() throws IOException {
+            target.createNewFile();
+            return this;
+        }
+
+        @Override
+        public void jumpHeader() throws IOException {
+            target.jumpHeader();
+        }
+
+        @Override
+        public int readBlock(byte[] block) throws IOException {
+            return target.readBlock(block);
+        }
+
+        @Override
+        public boolean reName(String newName) {
+            return target.reName(newName);
+        }
+
+        @Override
+        public void truncate(long length) throws IOException {
+            target.truncate(length);
+        }
+
+        @Override
+        public void sync() throws IOException {
+            target.sync();
+        }
+
+        @Override
+        public void close() {
+            target.close();
+        }
+    }
+}
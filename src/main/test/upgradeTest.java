@@ -0,0 +1,247 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.herDB.index.Slot;
+import org.herDB.utils.NumberPacker;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 旧版本创建的数据库：配置文件只有旧版本的配置项，没有checkpoint、布隆过滤器与hint文件，
+ * 索引文件是v1到v4的格式(由当前版本的索引文件按旧格式改写)；打开之后所有key都读得到，
+ * 旧的slot经过BucketResolver读取key补上buckethash，commit之后索引文件改写成v5
+ * <p>
+ * 另外rehash扩容：容量翻倍多次之后，包括被覆盖过的，每个key都读得到正确的value
+ */
+public class upgradeTest {
+
+    private static final int MAGIC = 0x48455244;
+    private static final int HEADER_SIZE = 20;
+    private static final int KEYS = 3000;
+    // 旧版本的配置文件里只有这些配置项
+    private static final String[] BASELINE_KEYS = {"buffered.block.size", "item.max.size", "slots.capacity",
+            "segments.size", "storage.main.java.org.herDB.cache.size"};
+
+    @Test
+    public void upgradeHeapIndex() throws Exception {
+
+        for (int version = 1; version <= 4; version++) {
+            upgrade("herdb-upgrade-v" + version, version, Configuration.INDEX_MODE_HEAP);
+        }
+    }
+
+    @Test
+    public void upgradeMappedIndex() throws Exception {
+
+        for (int version = 1; version <= 4; version++) {
+            upgrade("herdb-upgrade-mapped-v" + version, version, Configuration.INDEX_MODE_MMAP);
+        }
+    }
+
+    @Test
+    public void currentFormatSurvivesReopen() throws Exception {
+
+        String dir = "herdb-upgrade-v5";
+        fixture(dir);
+        HerDB herDB = HerDB.open(dir);
+        verify(herDB, KEYS);
+        herDB.commit();
+
+        byte[] index = read(new File(dir, "segment0.index"));
+        Assert.assertEquals(MAGIC, NumberPacker.unpackInt(index, 0));
+        Assert.assertEquals(5, NumberPacker.unpackInt(index, 4));
+    }
+
+    @Test
+    public void rehashKeepsEveryKey() throws Exception {
+
+        String dir = "herdb-upgrade-rehash";
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SEGMENTS_SIZE, "1");
+        config.set(Configuration.SLOTS_CAPACITY, "64");
+        config.set(Configuration.GROWTH_MODE, String.valueOf(Configuration.GROWTH_MODE_REHASH));
+        HerDB herDB = HerDB.create(config, dir);
+
+        // 64扩容到65536，再覆盖三分之一的key
+        int keys = 40000;
+        for (int i = 0; i < keys; i++) {
+            herDB.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < keys; i += 3) {
+            herDB.put("key" + i, "value" + i + "-new");
+        }
+        verify(herDB, keys, 3);
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        verify(herDB, keys, 3);
+        herDB.commit();
+    }
+
+    private void upgrade(String dir, int version, int indexMode) throws Exception {
+
+        fixture(dir);
+        File index = new File(dir, "segment0.index");
+        write(index, downgrade(read(index), version));
+        // 升级之后用rehash扩容，按slot里的buckethash分到新的bucket，buckethash不对的话key就找不到了
+        String separator = System.getProperty("line.separator");
+        FileOutputStream out = new FileOutputStream(new File(dir, "herDB.conf"), true);
+        try {
+            out.write((Configuration.INDEX_MODE + ":" + indexMode + separator).getBytes());
+            out.write((Configuration.GROWTH_MODE + ":" + Configuration.GROWTH_MODE_REHASH + separator).getBytes());
+        } finally {
+            out.close();
+        }
+
+        HerDB herDB = HerDB.open(dir);
+        verify(herDB, KEYS);
+        // 在升级之后的索引上继续put，扩容几次
+        for (int i = KEYS; i < KEYS * 8; i++) {
+            herDB.put("key" + i, "value" + i);
+        }
+        verify(herDB, KEYS * 8);
+        herDB.commit();
+
+        byte[] upgraded = read(index);
+        Assert.assertEquals("v" + version, MAGIC, NumberPacker.unpackInt(upgraded, 0));
+        Assert.assertEquals("v" + version, 5, NumberPacker.unpackInt(upgraded, 4));
+        herDB = HerDB.open(dir);
+        verify(herDB, KEYS * 8);
+        herDB.commit();
+    }
+
+    // 用旧版本的行为写一个数据库：旧的hash函数、attachedSlots用完才扩容，只留下旧版本有的文件
+    private static void fixture(String dir) throws Exception {
+
+        File directory = new File(dir);
+        if (directory.exists()) {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+        }
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.SEGMENTS_SIZE, "1");
+        // 旧版本只有一个数据文件，不能扩容
+        config.set(Configuration.SLOTS_CAPACITY, "4096");
+        config.set(Configuration.HASH_FUNCTION, String.valueOf(Configuration.HASH_FUNCTION_LEGACY));
+        config.set(Configuration.GROWTH_MODE, String.valueOf(Configuration.GROWTH_MODE_REWRITE));
+        config.set(Configuration.RESIZE_POLICY, String.valueOf(Configuration.RESIZE_POLICY_OVERFLOW));
+        config.set(Configuration.COMPACTION_GARBAGE_RATIO, "0");
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        HerDB herDB = HerDB.create(config, dir);
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "old" + i);
+        }
+        // 数据文件里留下被覆盖的旧数据
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "value" + i);
+        }
+        herDB.commit();
+
+        StringBuilder conf = new StringBuilder();
+        for (String line : new String(read(new File(dir, "herDB.conf"))).split("\\r?\\n")) {
+            if (Arrays.asList(BASELINE_KEYS).contains(line.split(":")[0])) {
+                conf.append(line).append(System.getProperty("line.separator"));
+            }
+        }
+        write(new File(dir, "herDB.conf"), conf.toString().getBytes());
+        for (File file : directory.listFiles()) {
+            String name = file.getName();
+            if (!name.equals("herDB.conf") && !name.equals("segment0.index") && !name.equals("segment0.data")) {
+                Assert.assertTrue(name, file.delete());
+            }
+        }
+    }
+
+    // 将v5的索引文件改写成version版本的格式：旧版本的attachedSlots与bucket一样多
+    private static byte[] downgrade(byte[] index, int version) {
+
+        Assert.assertEquals(MAGIC, NumberPacker.unpackInt(index, 0));
+        Assert.assertEquals(5, NumberPacker.unpackInt(index, 4));
+        int capacity = NumberPacker.unpackInt(index, 8);
+        int current = NumberPacker.unpackInt(index, 12);
+        int overflow = NumberPacker.unpackInt(index, 16);
+        Assert.assertEquals(capacity, overflow);
+
+        int headerSize = version == 1 ? 8 : 16;
+        int slotSize = Slot.sizeOf(version);
+        byte[] bytes = new byte[headerSize + capacity * 2 * slotSize];
+        if (version > 1) {
+            NumberPacker.packInt(MAGIC, bytes, 0);
+            NumberPacker.packInt(version, bytes, 4);
+        }
+        NumberPacker.packInt(capacity, bytes, headerSize - 8);
+        NumberPacker.packInt(current, bytes, headerSize - 4);
+        for (int i = 0; i < capacity * 2; i++) {
+            int from = HEADER_SIZE + i * Slot.slotSize;
+            int to = headerSize + i * slotSize;
+            int hashcode = Slot.getHashCode(index, from);
+            long address = Slot.getFileInfo(index, from);
+            int length = Slot.getLength(index, from);
+            int attached = Slot.getAttachedSlot(index, from);
+            if (version == 4) {
+                System.arraycopy(index, from, bytes, to, Slot.slotSize);
+            } else if (version == 3) {
+                System.arraycopy(index, from, bytes, to, slotSize);
+            } else {
+                // v1、v2只有一个数据文件
+                Assert.assertEquals(0, Slot.fileId(address));
+                NumberPacker.packInt(hashcode, bytes, to);
+                NumberPacker.packLong(Slot.position(address), bytes, to + 4);
+                if (version == 2) {
+                    NumberPacker.packInt(length, bytes, to + 9);
+                }
+                NumberPacker.packInt(attached, bytes, to + (version == 1 ? 9 : 13));
+            }
+        }
+        return bytes;
+    }
+
+    private static void verify(HerDB herDB, int keys) {
+
+        verify(herDB, keys, 0);
+    }
+
+    // 序号是overwritten的倍数的key被覆盖过
+    private static void verify(HerDB herDB, int keys, int overwritten) {
+
+        for (int i = 0; i < keys; i++) {
+            String value = overwritten > 0 && i % overwritten == 0 ? "value" + i + "-new" : "value" + i;
+            Assert.assertEquals("key" + i, value, herDB.get("key" + i));
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return read == bytes.length ? bytes : Arrays.copyOf(bytes, read);
+        } finally {
+            in.close();
+        }
+    }
+}
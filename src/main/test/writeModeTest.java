@@ -0,0 +1,174 @@
+import java.util.concurrent.CountDownLatch;
+
+import org.herDB.cache.CacheStats;
+import org.herDB.herdb.Configuration;
+import org.herDB.herdb.HerDB;
+import org.herDB.index.IndexStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * put与缓存的关系：write-through下put之后直接从缓存读到新的value；
+ * write-back下put先留在缓冲里，读得到但还没写入索引，checkpoint或者commit的时候写入，同一个key只留最后一次put
+ */
+public class writeModeTest {
+
+    private static final int KEYS = 1000;
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 20;
+
+    @Test
+    public void writeThroughCachesNewValue() throws Exception {
+
+        String dir = "herdb-write-through";
+        HerDB herDB = HerDB.create(config(dir, Configuration.CACHE_WRITE_THROUGH), dir).cacheOn();
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "old" + i);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "new" + i);
+        }
+
+        CacheStats before = herDB.cacheStats();
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("new" + i, herDB.get("key" + i));
+        }
+        CacheStats after = herDB.cacheStats();
+        // put的时候已经放入缓存，一次也不用读数据文件
+        Assert.assertEquals(KEYS, after.hits() - before.hits());
+        Assert.assertEquals(0, after.misses() - before.misses());
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("new" + i, herDB.get("key" + i));
+        }
+        herDB.commit();
+    }
+
+    @Test
+    public void writeThroughConcurrentPuts() throws Exception {
+
+        String dir = "herdb-write-through-concurrent";
+        HerDB herDB = HerDB.create(config(dir, Configuration.CACHE_WRITE_THROUGH), dir).cacheOn();
+        overwrite(herDB);
+        // 缓存里留下的是最后写入数据文件的value
+        assertLastRound(herDB);
+        herDB.commit();
+    }
+
+    @Test
+    public void writeBackReadsBufferedValues() throws Exception {
+
+        String dir = "herdb-write-back";
+        HerDB herDB = HerDB.create(config(dir, Configuration.CACHE_WRITE_BACK), dir);
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "old" + i);
+            herDB.put("key" + i, "new" + i);
+        }
+        // 还在缓冲里，索引里没有
+        Assert.assertEquals(0, entries(herDB));
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertTrue(herDB.contains("key" + i));
+            Assert.assertEquals("new" + i, herDB.get("key" + i));
+        }
+
+        herDB.checkpoint();
+        // 同一个key的两次put只写入了最后一次
+        Assert.assertEquals(KEYS, entries(herDB));
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("new" + i, herDB.get("key" + i));
+        }
+        herDB.commit();
+    }
+
+    @Test
+    public void writeBackLaterPutWins() throws Exception {
+
+        String dir = "herdb-write-back-order";
+        HerDB herDB = HerDB.create(config(dir, Configuration.CACHE_WRITE_BACK), dir).cacheOn();
+        for (int i = 0; i < KEYS; i++) {
+            herDB.put("key" + i, "old" + i);
+        }
+        herDB.checkpoint();
+        // 旧的value读进缓存之后又被put，缓冲里的新value优先
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("old" + i, herDB.get("key" + i));
+            herDB.put("key" + i, "new" + i);
+            Assert.assertEquals("new" + i, herDB.get("key" + i));
+        }
+        herDB.checkpoint();
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("new" + i, herDB.get("key" + i));
+        }
+        herDB.commit();
+    }
+
+    @Test
+    public void writeBackFlushesOnCommit() throws Exception {
+
+        String dir = "herdb-write-back-commit";
+        Configuration config = config(dir, Configuration.CACHE_WRITE_BACK);
+        // 定时写入与put的时候缓冲满了写入都会发生
+        config.set(Configuration.WRITE_BACK_INTERVAL, "1");
+        config.set(Configuration.WRITE_BACK_SIZE, "4096");
+        HerDB herDB = HerDB.create(config, dir).cacheOn();
+        overwrite(herDB);
+        assertLastRound(herDB);
+        // 缓冲里剩下的value在commit的时候写入
+        herDB.commit();
+
+        herDB = HerDB.open(dir);
+        Assert.assertEquals(KEYS, entries(herDB));
+        assertLastRound(herDB);
+        herDB.commit();
+    }
+
+    // 写入间隔很长，只在checkpoint与commit的时候写入
+    private static Configuration config(String dir, int writeMode) {
+
+        Configuration config = Configuration.create(dir);
+        config.set(Configuration.CACHE_WRITE_MODE, String.valueOf(writeMode));
+        config.set(Configuration.WRITE_BACK_INTERVAL, "3600000");
+        config.set(Configuration.CHECKPOINT_INTERVAL, "0");
+        return config;
+    }
+
+    // 每个线程覆盖自己的一部分key，一轮比一轮新
+    private static void overwrite(final HerDB herDB) throws InterruptedException {
+
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        for (int i = id; i < KEYS; i += THREADS) {
+                            herDB.put("key" + i, "value" + i + "#" + round);
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+    }
+
+    private static void assertLastRound(HerDB herDB) {
+
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("value" + i + "#" + (ROUNDS - 1), herDB.get("key" + i));
+        }
+    }
+
+    // 所有分段的索引里的key个数
+    private static int entries(HerDB herDB) {
+
+        int entries = 0;
+        for (IndexStats stats : herDB.indexStats()) {
+            entries += stats.entries();
+        }
+        return entries;
+    }
+}
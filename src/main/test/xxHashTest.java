@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.herDB.utils.Hash;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * xxHash64与公开的测试向量一致；不少于32字节的输入走四路累加，末尾剩下的8、4、1字节各种组合都与
+ * 按规范逐步写的参照实现一致
+ */
+public class xxHashTest {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    @Test
+    public void knownVectors() throws Exception {
+
+        Hash hash = Hash.xxHash64(0);
+        Assert.assertEquals(0xef46db3751d8e999L, hash.hash(new byte[0]));
+        Assert.assertEquals(0xd24ec4f1a98c6e5bL, hash.hash("a".getBytes("UTF-8")));
+        Assert.assertEquals(0x44bc2cf5ad770999L, hash.hash("abc".getBytes("UTF-8")));
+        Assert.assertEquals(0x32dd38952c4bc720L, hash.hash("xxhash".getBytes("UTF-8")));
+        // 39字节：一轮四路累加，剩下4字节与3个单字节
+        Assert.assertEquals(0xfbcea83c8a378bf1L,
+                hash.hash("Nobody inspects the spammish repetition".getBytes("UTF-8")));
+        Assert.assertEquals(0xb559b98d844e0635L, Hash.xxHash64(20141025).hash("xxhash".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void everyLengthMatchesReference() {
+
+        Random random = new Random(7);
+        byte[] buffer = new byte[300];
+        random.nextBytes(buffer);
+        long[] seeds = {0, 1, 20141025, -1, random.nextLong()};
+        for (long seed : seeds) {
+            Hash hash = Hash.xxHash64(seed);
+            // 0到256字节覆盖了每种末尾的组合，起始位置不对齐
+            for (int length = 0; length <= 256; length++) {
+                for (int start = 0; start < 8; start++) {
+                    byte[] data = Arrays.copyOfRange(buffer, start, start + length);
+                    Assert.assertEquals("seed " + seed + " length " + length + " start " + start,
+                            reference(data, seed), hash.hash(data));
+                }
+            }
+        }
+    }
+
+    // 按xxHash64的规范逐步计算，用ByteBuffer按小端序读取
+    private static long reference(byte[] data, long seed) {
+
+        ByteBuffer input = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        long hash;
+        if (input.remaining() >= 32) {
+            long[] lanes = {seed + PRIME1 + PRIME2, seed + PRIME2, seed, seed - PRIME1};
+            while (input.remaining() >= 32) {
+                for (int i = 0; i < 4; i++) {
+                    lanes[i] = round(lanes[i], input.getLong());
+                }
+            }
+            hash = Long.rotateLeft(lanes[0], 1) + Long.rotateLeft(lanes[1], 7) + Long.rotateLeft(lanes[2], 12)
+                    + Long.rotateLeft(lanes[3], 18);
+            for (int i = 0; i < 4; i++) {
+                hash = (hash ^ round(0, lanes[i])) * PRIME1 + PRIME4;
+            }
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += data.length;
+        while (input.remaining() >= 8) {
+            hash = Long.rotateLeft(hash ^ round(0, input.getLong()), 27) * PRIME1 + PRIME4;
+        }
+        if (input.remaining() >= 4) {
+            hash = Long.rotateLeft(hash ^ (input.getInt() & 0xFFFFFFFFL) * PRIME1, 23) * PRIME2 + PRIME3;
+        }
+        while (input.hasRemaining()) {
+            hash = Long.rotateLeft(hash ^ (input.get() & 0xFF) * PRIME5, 11) * PRIME1;
+        }
+        hash = (hash ^ hash >>> 33) * PRIME2;
+        hash = (hash ^ hash >>> 29) * PRIME3;
+        return hash ^ hash >>> 32;
+    }
+
+    private static long round(long acc, long input) {
+
+        return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+    }
+}